@@ -0,0 +1,489 @@
+package tools.bink.p2pcounter;
+
+import android.util.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Compact native attendance store.
+ *
+ * Attendee codes are interned to dense int ids and eventIds are dictionary
+ * encoded, so per-attendee state lives in primitive arrays and bitsets
+ * instead of one boxed CounterData object per code. Lookups and updates of
+ * known codes do not allocate.
+ */
+public class AttendeeStore {
+    private static final String TAG = "AttendeeStore";
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NO_EVENT = -1;
+
+    private final InternTable codeIds;
+    private final InternTable eventIds;
+
+    // Indexed by attendee id
+    private String[] codes;
+    private int[] eventOf;
+    private long[] versions;
+    private long[] writers; // Node id that wrote versions[id], breaks version ties
+
+    // Indexed by event id, then attendee id
+    private String[] events;
+    private BitSet[] presentByEvent;
+    private BitSet[] manualByEvent;
+
+    // Per-event aggregates, maintained incrementally on every merge.
+    // manualCounts only counts attendees that are both present and manual.
+    private int[] totalCounts;
+    private int[] presentCounts;
+    private int[] manualCounts;
+
+    private int attendeeCount;
+    private int eventCount;
+
+    public static class CounterUpdate {
+        public final String code;
+        public final String eventId;
+        public final boolean isPresent;
+        public final boolean isManual;
+        public final long version; // HybridLogicalClock timestamp
+        public final long nodeId; // Full id of the writing node, 0 if unknown
+
+        public CounterUpdate(String code, String eventId, boolean isPresent, boolean isManual,
+                             long version, long nodeId) {
+            this.code = code;
+            this.eventId = eventId;
+            this.isPresent = isPresent;
+            this.isManual = isManual;
+            this.version = version;
+            this.nodeId = nodeId;
+        }
+
+        /** Parses an update received from the mesh, keeping its version and writer. */
+        public static CounterUpdate fromJSON(JSONObject json) {
+            return fromJSON(json, json.optLong("version"), parseNode(json.optString("node", null)));
+        }
+
+        /** Parses an update and stamps it with the given version and writer. */
+        public static CounterUpdate fromJSON(JSONObject json, long version, long nodeId) {
+            return new CounterUpdate(
+                json.optString("code", null),
+                json.optString("eventId", null),
+                json.optBoolean("isPresent"),
+                json.optBoolean("isManual"),
+                version,
+                nodeId
+            );
+        }
+
+        /**
+         * Parses state held by the JS layer, keeping the version and writer
+         * its events carried. Without them the update is dated by its
+         * timestamp and loses every tie, since its writer isn't known.
+         */
+        public static CounterUpdate fromStateJSON(JSONObject json) {
+            String version = json.optString("version", null);
+            if (version != null) {
+                try {
+                    return fromJSON(json, Long.parseLong(version), parseNode(json.optString("node", null)));
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid version: " + version, e);
+                }
+            }
+            return fromJSON(json, HybridLogicalClock.fromPhysicalTime(json.optLong("timestamp")), 0);
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = toEventJSON();
+            json.put("version", version);
+            json.put("node", HybridLogicalClock.formatNodeId(nodeId));
+            return json;
+        }
+
+        private static long parseNode(String node) {
+            if (node == null) return 0;
+            try {
+                return HybridLogicalClock.parseNodeId(node);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid writer node id: " + node, e);
+                return 0;
+            }
+        }
+
+        /**
+         * Serializes the update for the JS layer. The packed version doesn't
+         * fit a JS number, so it is passed as a string next to its wall-clock
+         * part, for the JS side to hand back with sendInitialState.
+         */
+        public JSONObject toEventJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("code", code);
+            json.put("eventId", eventId);
+            json.put("isPresent", isPresent);
+            json.put("isManual", isManual);
+            json.put("timestamp", HybridLogicalClock.physicalTime(version));
+            json.put("version", Long.toString(version));
+            json.put("node", HybridLogicalClock.formatNodeId(nodeId));
+            return json;
+        }
+    }
+
+    public AttendeeStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public AttendeeStore(int expectedAttendees) {
+        int capacity = Math.max(16, expectedAttendees);
+        this.codeIds = new InternTable(capacity);
+        this.eventIds = new InternTable(16);
+        this.codes = new String[capacity];
+        this.eventOf = new int[capacity];
+        this.versions = new long[capacity];
+        this.writers = new long[capacity];
+        this.events = new String[8];
+        this.presentByEvent = new BitSet[8];
+        this.manualByEvent = new BitSet[8];
+        this.totalCounts = new int[8];
+        this.presentCounts = new int[8];
+        this.manualCounts = new int[8];
+    }
+
+    public synchronized boolean apply(String code, String eventId, boolean isPresent,
+                                      boolean isManual, long version) {
+        return applyLocked(code, eventId, isPresent, isManual, version, 0);
+    }
+
+    /**
+     * Merges a counter update. Updates are ordered by (version, nodeId), and
+     * ones that are not newer than the stored state for the same code are
+     * ignored, so redelivered updates are idempotent and concurrent writes
+     * with equal versions resolve the same way on every device.
+     *
+     * @return true if the stored state changed
+     */
+    public synchronized boolean apply(String code, String eventId, boolean isPresent,
+                                      boolean isManual, long version, long nodeId) {
+        return applyLocked(code, eventId, isPresent, isManual, version, nodeId);
+    }
+
+    public synchronized boolean apply(CounterUpdate update) {
+        return applyLocked(update.code, update.eventId, update.isPresent, update.isManual,
+            update.version, update.nodeId);
+    }
+
+    /**
+     * Merges a batch of updates under a single lock acquisition.
+     *
+     * @return the updates that changed the stored state
+     */
+    public synchronized List<CounterUpdate> applyAll(List<CounterUpdate> updates) {
+        List<CounterUpdate> applied = new ArrayList<>(updates.size());
+        for (CounterUpdate update : updates) {
+            if (applyLocked(update.code, update.eventId, update.isPresent, update.isManual,
+                    update.version, update.nodeId)) {
+                applied.add(update);
+            }
+        }
+        return applied;
+    }
+
+    private boolean applyLocked(String code, String eventId, boolean isPresent,
+                                boolean isManual, long version, long nodeId) {
+        if (code == null) return false;
+
+        int id = codeIds.get(code);
+        if (id < 0) {
+            id = addAttendee(code);
+        } else if (version < versions[id]
+                || (version == versions[id] && Long.compareUnsigned(nodeId, writers[id]) <= 0)) {
+            return false;
+        }
+
+        int previousEvent = eventOf[id];
+        int event;
+        if (eventId != null) {
+            event = internEvent(eventId);
+        } else {
+            // Updates without an eventId keep the attendee's current event
+            event = previousEvent != NO_EVENT ? previousEvent : internEvent("");
+        }
+        if (previousEvent != NO_EVENT) {
+            uncount(previousEvent, id);
+            if (previousEvent != event) {
+                presentByEvent[previousEvent].clear(id);
+                manualByEvent[previousEvent].clear(id);
+            }
+        }
+
+        eventOf[id] = event;
+        versions[id] = version;
+        writers[id] = nodeId;
+        presentByEvent[event].set(id, isPresent);
+        manualByEvent[event].set(id, isManual);
+        count(event, id);
+        return true;
+    }
+
+    public synchronized boolean contains(String code) {
+        return codeIds.get(code) >= 0;
+    }
+
+    public synchronized boolean isPresent(String code) {
+        int id = codeIds.get(code);
+        if (id < 0 || eventOf[id] == NO_EVENT) return false;
+        return presentByEvent[eventOf[id]].get(id);
+    }
+
+    public synchronized boolean isManual(String code) {
+        int id = codeIds.get(code);
+        if (id < 0 || eventOf[id] == NO_EVENT) return false;
+        return manualByEvent[eventOf[id]].get(id);
+    }
+
+    /** Returns the version of the last applied update, or -1 if unknown. */
+    public synchronized long getVersion(String code) {
+        int id = codeIds.get(code);
+        return id < 0 ? -1 : versions[id];
+    }
+
+    public synchronized String getEventId(String code) {
+        int id = codeIds.get(code);
+        if (id < 0 || eventOf[id] == NO_EVENT) return null;
+        return events[eventOf[id]];
+    }
+
+    public synchronized int size() {
+        return attendeeCount;
+    }
+
+    public synchronized int getEventCount() {
+        return eventCount;
+    }
+
+    public synchronized int getPresentCount(String eventId) {
+        int event = eventIds.get(eventId);
+        return event < 0 ? 0 : presentCounts[event];
+    }
+
+    public synchronized int getAbsentCount(String eventId) {
+        int event = eventIds.get(eventId);
+        return event < 0 ? 0 : totalCounts[event] - presentCounts[event];
+    }
+
+    public synchronized int getManualCount(String eventId) {
+        int event = eventIds.get(eventId);
+        return event < 0 ? 0 : manualCounts[event];
+    }
+
+    public synchronized int getTotalCount(String eventId) {
+        int event = eventIds.get(eventId);
+        return event < 0 ? 0 : totalCounts[event];
+    }
+
+    /**
+     * Serializes the per-event aggregates as eventId -> counts. Costs
+     * O(events), independent of the number of attendees.
+     */
+    public synchronized JSONObject countsToJSON() {
+        JSONObject counts = new JSONObject();
+        try {
+            for (int event = 0; event < eventCount; event++) {
+                counts.put(events[event], eventCountsToJSON(event));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error serializing attendee counts", e);
+        }
+        return counts;
+    }
+
+    /** Returns the counts for a single event, or null if it is unknown. */
+    public synchronized JSONObject countsToJSON(String eventId) {
+        int event = eventIds.get(eventId);
+        if (event < 0) return null;
+        try {
+            return eventCountsToJSON(event);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error serializing attendee counts", e);
+            return null;
+        }
+    }
+
+    private JSONObject eventCountsToJSON(int event) throws JSONException {
+        JSONObject counts = new JSONObject();
+        counts.put("present", presentCounts[event]);
+        counts.put("absent", totalCounts[event] - presentCounts[event]);
+        counts.put("manual", manualCounts[event]);
+        counts.put("total", totalCounts[event]);
+        return counts;
+    }
+
+    private void count(int event, int id) {
+        totalCounts[event]++;
+        if (presentByEvent[event].get(id)) {
+            presentCounts[event]++;
+            if (manualByEvent[event].get(id)) manualCounts[event]++;
+        }
+    }
+
+    private void uncount(int event, int id) {
+        totalCounts[event]--;
+        if (presentByEvent[event].get(id)) {
+            presentCounts[event]--;
+            if (manualByEvent[event].get(id)) manualCounts[event]--;
+        }
+    }
+
+    /** Serializes the store as a code -> CounterData record. */
+    public synchronized JSONObject toJSON() {
+        JSONObject attendees = new JSONObject();
+        try {
+            for (int id = 0; id < attendeeCount; id++) {
+                attendees.put(codes[id], attendeeToJSON(id));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error serializing attendee store", e);
+        }
+        return attendees;
+    }
+
+    private JSONObject attendeeToJSON(int id) throws JSONException {
+        int event = eventOf[id];
+        JSONObject attendee = new JSONObject();
+        attendee.put("code", codes[id]);
+        attendee.put("eventId", event == NO_EVENT ? "" : events[event]);
+        attendee.put("isPresent", event != NO_EVENT && presentByEvent[event].get(id));
+        attendee.put("isManual", event != NO_EVENT && manualByEvent[event].get(id));
+        attendee.put("timestamp", HybridLogicalClock.physicalTime(versions[id]));
+        attendee.put("version", versions[id]);
+        attendee.put("node", HybridLogicalClock.formatNodeId(writers[id]));
+        return attendee;
+    }
+
+    public synchronized void clear() {
+        codeIds.clear();
+        eventIds.clear();
+        Arrays.fill(codes, 0, attendeeCount, null);
+        Arrays.fill(events, 0, eventCount, null);
+        Arrays.fill(presentByEvent, 0, eventCount, null);
+        Arrays.fill(manualByEvent, 0, eventCount, null);
+        Arrays.fill(totalCounts, 0);
+        Arrays.fill(presentCounts, 0);
+        Arrays.fill(manualCounts, 0);
+        attendeeCount = 0;
+        eventCount = 0;
+    }
+
+    private int addAttendee(String code) {
+        if (attendeeCount == codes.length) {
+            int newCapacity = codes.length + (codes.length >> 1);
+            codes = Arrays.copyOf(codes, newCapacity);
+            eventOf = Arrays.copyOf(eventOf, newCapacity);
+            versions = Arrays.copyOf(versions, newCapacity);
+            writers = Arrays.copyOf(writers, newCapacity);
+        }
+        int id = attendeeCount++;
+        codes[id] = code;
+        eventOf[id] = NO_EVENT;
+        versions[id] = Long.MIN_VALUE;
+        writers[id] = 0;
+        codeIds.put(code, id);
+        return id;
+    }
+
+    private int internEvent(String eventId) {
+        int event = eventIds.get(eventId);
+        if (event >= 0) return event;
+
+        if (eventCount == events.length) {
+            int newCapacity = events.length * 2;
+            events = Arrays.copyOf(events, newCapacity);
+            presentByEvent = Arrays.copyOf(presentByEvent, newCapacity);
+            manualByEvent = Arrays.copyOf(manualByEvent, newCapacity);
+            totalCounts = Arrays.copyOf(totalCounts, newCapacity);
+            presentCounts = Arrays.copyOf(presentCounts, newCapacity);
+            manualCounts = Arrays.copyOf(manualCounts, newCapacity);
+        }
+        event = eventCount++;
+        events[event] = eventId;
+        presentByEvent[event] = new BitSet(codes.length);
+        manualByEvent[event] = new BitSet();
+        eventIds.put(eventId, event);
+        return event;
+    }
+
+    /**
+     * Open-addressed String -> int table with linear probing. Keys are never
+     * removed individually, which keeps probing simple and allocation free.
+     */
+    static final class InternTable {
+        private String[] keys;
+        private int[] values;
+        private int size;
+        private int mask;
+
+        InternTable(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2) - 1) << 1;
+            keys = new String[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        int get(String key) {
+            int slot = mix(key.hashCode()) & mask;
+            while (keys[slot] != null) {
+                if (keys[slot].equals(key)) return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(String key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int slot = mix(key.hashCode()) & mask;
+            while (keys[slot] != null) {
+                if (keys[slot].equals(key)) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            Arrays.fill(keys, null);
+            size = 0;
+        }
+
+        private void resize(int capacity) {
+            String[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new String[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int mix(int hash) {
+            // Spread clustered String hashes (e.g. sequential ticket codes)
+            int h = hash * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
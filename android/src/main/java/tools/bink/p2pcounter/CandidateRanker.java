@@ -0,0 +1,110 @@
+package tools.bink.p2pcounter;
+
+import java.util.*;
+
+/**
+ * Keeps the k best-scoring connection candidates as scores change one at a time.
+ *
+ * All scores live in a map; the top k sit in a bounded min-heap so a new score
+ * only has to beat the weakest of them. The heap is rebuilt from the map only
+ * when one of its members is removed or drops, since an outsider might then
+ * belong in it.
+ */
+public class CandidateRanker {
+    private final int capacity;
+    private final Map<String, Double> scores;
+    private final Map<String, Candidate> ranked; // Heap members by device id
+    private final PriorityQueue<Candidate> heap; // Weakest member first
+
+    private static class Candidate {
+        final String deviceId;
+        final double score;
+
+        Candidate(String deviceId, double score) {
+            this.deviceId = deviceId;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_SCORE = (a, b) -> {
+        int result = Double.compare(a.score, b.score);
+        return result != 0 ? result : a.deviceId.compareTo(b.deviceId);
+    };
+
+    public CandidateRanker(int capacity) {
+        this.capacity = capacity;
+        this.scores = new HashMap<>();
+        this.ranked = new HashMap<>();
+        this.heap = new PriorityQueue<>(capacity, BY_SCORE);
+    }
+
+    public void update(String deviceId, double score) {
+        scores.put(deviceId, score);
+        Candidate previous = ranked.remove(deviceId);
+        if (previous != null) {
+            heap.remove(previous);
+        }
+        offer(new Candidate(deviceId, score));
+        if (previous != null && score < previous.score && scores.size() > heap.size()) {
+            rebuild();
+        }
+    }
+
+    public void remove(String deviceId) {
+        if (scores.remove(deviceId) == null) return;
+        Candidate previous = ranked.remove(deviceId);
+        if (previous != null) {
+            heap.remove(previous);
+            if (scores.size() > heap.size()) {
+                rebuild();
+            }
+        }
+    }
+
+    public boolean contains(String deviceId) {
+        return scores.containsKey(deviceId);
+    }
+
+    public Set<String> getDeviceIds() {
+        return Collections.unmodifiableSet(scores.keySet());
+    }
+
+    /** The top candidates, best first. */
+    public List<String> getTop() {
+        List<Candidate> top = new ArrayList<>(heap);
+        top.sort(BY_SCORE.reversed());
+        List<String> deviceIds = new ArrayList<>(top.size());
+        for (Candidate candidate : top) {
+            deviceIds.add(candidate.deviceId);
+        }
+        return deviceIds;
+    }
+
+    public double getScore(String deviceId) {
+        Double score = scores.get(deviceId);
+        return score != null ? score : 0.0;
+    }
+
+    public int size() {
+        return scores.size();
+    }
+
+    private void offer(Candidate candidate) {
+        if (heap.size() < capacity) {
+            heap.add(candidate);
+            ranked.put(candidate.deviceId, candidate);
+        } else if (BY_SCORE.compare(candidate, heap.peek()) > 0) {
+            ranked.remove(heap.poll().deviceId);
+            heap.add(candidate);
+            ranked.put(candidate.deviceId, candidate);
+        }
+    }
+
+    private void rebuild() {
+        heap.clear();
+        ranked.clear();
+        for (Map.Entry<String, Double> entry : scores.entrySet()) {
+            offer(new Candidate(entry.getKey(), entry.getValue()));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package tools.bink.p2pcounter;
+
+import com.getcapacitor.JSObject;
+import org.json.JSONArray;
+import java.util.*;
+
+/**
+ * Batches plugin events so bursts cross the Capacitor bridge once per flush
+ * instead of once per event.
+ *
+ * While enabled, events are buffered per type and delivered together as one
+ * "eventBatch" event, { count, events: { type: [data, ...] } }, after the
+ * batch interval or as soon as maxBatchSize events are waiting. State-like
+ * types only keep their latest event per batch. Immediate types bypass the
+ * buffer, after flushing it so listeners still see events in order. A batch
+ * interval of 0 (the default) delivers every event on its own as before.
+ *
+ * The buffer is swapped out under its lock and delivered after releasing it,
+ * so buffering producers never wait on the bridge. Deliveries hold a separate
+ * lock, which keeps batches and immediate events in order.
+ */
+public class EventBatcher {
+    public static final String EVENT_BATCH = "eventBatch";
+    private static final int DEFAULT_MAX_BATCH_SIZE = 200;
+    // Peer and NFC lifecycle events are rare and the UI reacts to them right away
+    private static final Set<String> DEFAULT_IMMEDIATE_TYPES = new HashSet<>(Arrays.asList(
+        "peerConnected", "peerTimeout", "nfcDiscovered", "nfcError", "nfcPushComplete"
+    ));
+    // Each event supersedes the previous one of its type
+    private static final Set<String> LATEST_WINS_TYPES = new HashSet<>(Arrays.asList(
+        "countsChanged", "metrics"
+    ));
+
+    public interface Sink {
+        void deliver(String eventName, JSObject data);
+    }
+
+    private final Sink sink;
+    private final Map<String, List<JSObject>> pending; // Insertion order keeps types in first-seen order
+    private final Object deliveryLock = new Object(); // Taken before the batcher's own lock
+    private volatile Set<String> immediateTypes = DEFAULT_IMMEDIATE_TYPES;
+    private volatile long batchInterval;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int pendingCount;
+    private Timer flushTimer;
+    private boolean flushScheduled;
+
+    public EventBatcher(Sink sink) {
+        this.sink = sink;
+        this.pending = new LinkedHashMap<>();
+    }
+
+    /**
+     * @param batchInterval ms to buffer events for, 0 to deliver each at once
+     * @param maxBatchSize  buffered events that trigger an early flush
+     * @param immediate     types that bypass batching, or null to keep the current ones
+     */
+    public void configure(long batchInterval, int maxBatchSize, Collection<String> immediate) {
+        synchronized (this) {
+            this.batchInterval = Math.max(0, batchInterval);
+            this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : DEFAULT_MAX_BATCH_SIZE;
+            if (immediate != null) {
+                this.immediateTypes = new HashSet<>(immediate);
+            }
+        }
+        if (batchInterval <= 0) {
+            flush();
+        }
+    }
+
+    public long getBatchInterval() {
+        return batchInterval;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void submit(String eventName, JSObject data) {
+        if (batchInterval == 0 || immediateTypes.contains(eventName)) {
+            synchronized (deliveryLock) {
+                deliver(takeBatch());
+                sink.deliver(eventName, data);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            List<JSObject> events = pending.get(eventName);
+            if (events == null) {
+                events = new ArrayList<>();
+                pending.put(eventName, events);
+            }
+            if (LATEST_WINS_TYPES.contains(eventName) && !events.isEmpty()) {
+                events.set(0, data);
+            } else {
+                events.add(data);
+                pendingCount++;
+            }
+
+            if (pendingCount < maxBatchSize) {
+                scheduleFlush();
+                return;
+            }
+        }
+        flush();
+    }
+
+    // One-shot timer armed by the first buffered event, so an idle mesh costs nothing
+    private void scheduleFlush() {
+        if (flushScheduled) return;
+        if (flushTimer == null) {
+            flushTimer = new Timer(true);
+        }
+        flushScheduled = true;
+        flushTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (EventBatcher.this) {
+                    flushScheduled = false;
+                }
+                flush();
+            }
+        }, batchInterval);
+    }
+
+    /** Delivers everything buffered as one batch event. */
+    public void flush() {
+        synchronized (deliveryLock) {
+            deliver(takeBatch());
+        }
+    }
+
+    // Swaps the buffer out as a batch event, or returns null if it is empty
+    private synchronized JSObject takeBatch() {
+        if (pendingCount == 0) return null;
+        JSObject events = new JSObject();
+        for (Map.Entry<String, List<JSObject>> entry : pending.entrySet()) {
+            events.put(entry.getKey(), new JSONArray(entry.getValue()));
+        }
+        JSObject batch = new JSObject();
+        batch.put("count", pendingCount);
+        batch.put("events", events);
+        pending.clear();
+        pendingCount = 0;
+        return batch;
+    }
+
+    private void deliver(JSObject batch) {
+        if (batch != null) {
+            sink.deliver(EVENT_BATCH, batch);
+        }
+    }
+
+    public void stop() {
+        flush();
+        synchronized (this) {
+            if (flushTimer != null) {
+                flushTimer.cancel();
+                flushTimer = null;
+            }
+            flushScheduled = false;
+        }
+    }
+}
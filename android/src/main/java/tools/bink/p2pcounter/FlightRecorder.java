@@ -0,0 +1,154 @@
+package tools.bink.p2pcounter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on ring of the most recent mesh events, for post-mortems.
+ *
+ * Writers claim a slot with one atomic increment and fill its four longs
+ * without locking; the slot's sequence is cleared first and published last,
+ * so a dump skips slots that are mid-write. Peers are interned into a small
+ * table so a record stays 32 bytes.
+ *
+ * Dump format (big-endian), decoded by decodeFlightRecorder in the JS package:
+ *
+ *   magic "P2FR", u16 version (1), u16 record size (32)
+ *   i64 wall clock ms and i64 System.nanoTime() at dump, to place records in time
+ *   i64 events ever recorded, u32 peer count, then per peer u16 length + UTF-8 id
+ *   u32 record count, then records oldest first:
+ *     i64 sequence, i64 nanoTime, u16 event, u16 reserved, i32 peer (-1 none), i64 arg
+ */
+public class FlightRecorder {
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 32;
+    private static final int DEFAULT_CAPACITY = 1 << 15; // ~1 MB, a few minutes at peak event rates
+    private static final int MAX_PEERS = 4096; // Later peers are recorded as unknown (-1)
+    private static final int LONGS_PER_RECORD = 4;
+
+    // Event codes; arg meaning in comments
+    public static final int FRAME_SENT = 1;       // bytes
+    public static final int FRAME_RECEIVED = 2;   // bytes
+    public static final int ENQUEUE = 3;          // priority ordinal
+    public static final int DEQUEUE = 4;          // ms spent queued
+    public static final int RETRY = 5;            // retry count
+    public static final int PEER_TIMEOUT = 6;     // -
+    public static final int TOPOLOGY_CHANGE = 7;  // topology version
+    public static final int PEER_CONNECTED = 8;   // -
+    public static final int PEER_SUSPECTED = 9;   // 1 suspected, 0 cleared
+
+    private final AtomicLongArray slots; // sequence, nanoTime, event << 32 | peer, arg
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    private final Map<String, Integer> peerIndexes = new ConcurrentHashMap<>();
+    private final List<String> peers = new ArrayList<>();
+
+    public FlightRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Capacity in records, rounded up to a power of two. */
+    public FlightRecorder(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicLongArray(size * LONGS_PER_RECORD);
+        this.mask = size - 1;
+    }
+
+    public void record(int event, long arg) {
+        write(event, -1, arg);
+    }
+
+    public void record(int event, String peerId, long arg) {
+        write(event, peerIndex(peerId), arg);
+    }
+
+    private void write(int event, int peer, long arg) {
+        long sequence = cursor.getAndIncrement() + 1;
+        int base = (int) (sequence & mask) * LONGS_PER_RECORD;
+        slots.set(base, 0);
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, ((long) event << 32) | (peer & 0xffffffffL));
+        slots.lazySet(base + 3, arg);
+        slots.set(base, sequence);
+    }
+
+    private int peerIndex(String peerId) {
+        if (peerId == null) return -1;
+        Integer index = peerIndexes.get(peerId);
+        if (index != null) return index;
+        synchronized (peers) {
+            index = peerIndexes.get(peerId);
+            if (index != null) return index;
+            if (peers.size() >= MAX_PEERS) return -1;
+            peers.add(peerId);
+            peerIndexes.put(peerId, peers.size() - 1);
+            return peers.size() - 1;
+        }
+    }
+
+    /** Writes the ring to a file in the format above and returns the number of records written. */
+    public int dump(File file) throws IOException {
+        long wallClock = System.currentTimeMillis();
+        long nanoTime = System.nanoTime();
+        long recorded = cursor.get();
+        List<String> peerTable;
+        synchronized (peers) {
+            peerTable = new ArrayList<>(peers);
+        }
+
+        // Copy out consistent records first, so the header can carry the count
+        int capacity = mask + 1;
+        long first = Math.max(1, recorded - capacity + 1);
+        long[] records = new long[(int) (recorded - first + 1) * LONGS_PER_RECORD];
+        int count = 0;
+        for (long sequence = first; sequence <= recorded; sequence++) {
+            int base = (int) (sequence & mask) * LONGS_PER_RECORD;
+            if (slots.get(base) != sequence) continue; // Being written or already overwritten
+            long time = slots.get(base + 1);
+            long packed = slots.get(base + 2);
+            long arg = slots.get(base + 3);
+            if (slots.get(base) != sequence) continue;
+            int offset = count++ * LONGS_PER_RECORD;
+            records[offset] = sequence;
+            records[offset + 1] = time;
+            records[offset + 2] = packed;
+            records[offset + 3] = arg;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeBytes("P2FR");
+            out.writeShort(VERSION);
+            out.writeShort(RECORD_SIZE);
+            out.writeLong(wallClock);
+            out.writeLong(nanoTime);
+            out.writeLong(recorded);
+            out.writeInt(peerTable.size());
+            for (String peer : peerTable) {
+                byte[] bytes = peer.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                int offset = i * LONGS_PER_RECORD;
+                out.writeLong(records[offset]);
+                out.writeLong(records[offset + 1]);
+                out.writeShort((int) (records[offset + 2] >>> 32));
+                out.writeShort(0);
+                out.writeInt((int) records[offset + 2]);
+                out.writeLong(records[offset + 3]);
+            }
+        }
+        return count;
+    }
+}
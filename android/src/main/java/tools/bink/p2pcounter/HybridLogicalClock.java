@@ -0,0 +1,134 @@
+package tools.bink.p2pcounter;
+
+import android.util.Log;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+/**
+ * Hybrid logical clock used to version mesh messages and counter state.
+ *
+ * Timestamps are packed into a single long so that ordering two versions is
+ * one comparison:
+ *
+ *   [ 48 bits physical ms | 8 bits logical counter | 8 bits node tag ]
+ *
+ * The physical part never runs backwards and tracks the highest clock seen
+ * from peers, so a device with a slow wall clock cannot overwrite newer
+ * updates. The node tag spreads devices that stamp the same physical and
+ * logical time, but with only 8 bits two devices share a tag about once in
+ * 256 pairs, so stores that need a total order also compare the full node
+ * id (see {@link #getNodeId()}).
+ */
+public class HybridLogicalClock {
+    private static final String TAG = "HybridLogicalClock";
+    private static final int LOGICAL_BITS = 8;
+    private static final int NODE_BITS = 8;
+    private static final int PHYSICAL_SHIFT = LOGICAL_BITS + NODE_BITS;
+    private static final long LOGICAL_MAX = (1L << LOGICAL_BITS) - 1;
+    private static final long NODE_MASK = (1L << NODE_BITS) - 1;
+    private static final long MAX_CLOCK_DRIFT = 60000; // 1 minute
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long nodeId;
+    private final long nodeTag;
+    private long physical;
+    private long logical;
+
+    public HybridLogicalClock(long nodeId) {
+        this.nodeId = nodeId;
+        this.nodeTag = mix(nodeId) & NODE_MASK;
+    }
+
+    /** The full node id, for breaking ties between equal versions. */
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    /** Returns a new version for a local or send event. */
+    public synchronized long now() {
+        long wallTime = System.currentTimeMillis();
+        if (wallTime > physical) {
+            physical = wallTime;
+            logical = 0;
+        } else {
+            increment();
+        }
+        return pack();
+    }
+
+    /** Merges a version received from a peer and returns a new local version. */
+    public synchronized long update(long remoteVersion) {
+        long wallTime = System.currentTimeMillis();
+        long remotePhysical = physicalTime(remoteVersion);
+        long remoteLogical = (remoteVersion >>> NODE_BITS) & LOGICAL_MAX;
+
+        if (remotePhysical - wallTime > MAX_CLOCK_DRIFT) {
+            // Don't let a peer with a far-future clock drag ours along
+            Log.w(TAG, "Ignoring remote clock " + (remotePhysical - wallTime) + "ms ahead");
+            return now();
+        }
+
+        if (wallTime > physical && wallTime > remotePhysical) {
+            physical = wallTime;
+            logical = 0;
+        } else if (remotePhysical > physical) {
+            physical = remotePhysical;
+            logical = remoteLogical;
+            increment();
+        } else if (remotePhysical == physical) {
+            logical = Math.max(logical, remoteLogical);
+            increment();
+        } else {
+            increment();
+        }
+        return pack();
+    }
+
+    private void increment() {
+        if (logical == LOGICAL_MAX) {
+            // Borrow from the physical component rather than overflow
+            physical++;
+            logical = 0;
+        } else {
+            logical++;
+        }
+    }
+
+    private long pack() {
+        return (physical << PHYSICAL_SHIFT) | (logical << NODE_BITS) | nodeTag;
+    }
+
+    /** Extracts the wall-clock milliseconds from a packed version. */
+    public static long physicalTime(long version) {
+        return version >>> PHYSICAL_SHIFT;
+    }
+
+    /** Converts wall-clock milliseconds to the lowest version at that time. */
+    public static long fromPhysicalTime(long millis) {
+        return millis << PHYSICAL_SHIFT;
+    }
+
+    /** Generates a random, collision-resistant 64-bit node id. */
+    public static long newNodeId() {
+        long nodeId;
+        do {
+            nodeId = RANDOM.nextLong();
+        } while (nodeId == 0);
+        return nodeId;
+    }
+
+    public static String formatNodeId(long nodeId) {
+        return String.format(Locale.US, "%016x", nodeId);
+    }
+
+    public static long parseNodeId(String nodeId) {
+        return Long.parseUnsignedLong(nodeId, 16);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,139 @@
+package tools.bink.p2pcounter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.Arrays;
+
+/**
+ * Log-linear latency histogram in the style of HdrHistogram.
+ *
+ * Values below SUB_BUCKETS ms get a bucket each; above that every power of
+ * two is split into SUB_BUCKETS equal buckets, so any value is recorded
+ * within ~6% however long the tail gets. Bucket boundaries are fixed, which
+ * makes histograms from different peers, types or devices mergeable by
+ * adding counts index by index. Not thread-safe; callers synchronize.
+ */
+public class LatencyHistogram {
+    public static final int SUB_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final long MAX_VALUE = 3600000; // One hour in ms; longer values are clamped
+
+    private long[] counts = new long[SUB_BUCKETS * 2]; // Grows to the highest bucket recorded
+    private long totalCount;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        int index = bucketIndex(value);
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length * 2));
+        }
+        counts[index]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(LatencyHistogram other) {
+        if (other.totalCount == 0) return;
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    /** Upper bound of the bucket holding the given percentile, e.g. 99 for p99; 0 when empty. */
+    public long getPercentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Compact form: summary figures plus the non-empty buckets as a flat
+     * [index, count, index, count, ...] array. A bucket index maps back to
+     * its lower bound as described in {@link #lowerBound(int)}.
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", totalCount);
+        json.put("min", getMin());
+        json.put("max", max);
+        json.put("mean", getMean());
+        json.put("p50", getPercentile(50));
+        json.put("p90", getPercentile(90));
+        json.put("p99", getPercentile(99));
+        json.put("p999", getPercentile(99.9));
+
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                buckets.put(i);
+                buckets.put(counts[i]);
+            }
+        }
+        json.put("buckets", buckets);
+        return json;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Smallest value in a bucket: the index itself below SUB_BUCKETS, otherwise
+     * (index % SUB_BUCKETS + SUB_BUCKETS) << (index / SUB_BUCKETS - 1).
+     */
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        return (long) (index % SUB_BUCKETS + SUB_BUCKETS) << (index / SUB_BUCKETS - 1);
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        return lowerBound(index) + (1L << (index / SUB_BUCKETS - 1)) - 1;
+    }
+}
@@ -0,0 +1,144 @@
+package tools.bink.p2pcounter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.*;
+
+/**
+ * Latency histograms for each stage of a message's life, kept per peer and
+ * per message type:
+ *
+ *   ENQUEUE_TO_SEND     time spent in the outgoing priority queue, per target peer
+ *   SEND_TO_ACK         first send until the next hop acknowledged it, per next hop
+ *   ORIGIN_TO_DELIVERY  origin timestamp until local delivery, per origin; across
+ *                       devices this includes their clock offset
+ *
+ * Origins include devices many hops away and types come from the application,
+ * so each stage keeps at most MAX_PEERS peers and MAX_TYPES types; later ones
+ * share an "other" histogram.
+ */
+public class LatencyRecorder {
+    private static final int MAX_AWAITED_ACKS = 4096; // Oldest unacknowledged sends are forgotten first
+    private static final int MAX_PEERS = 256;
+    private static final int MAX_TYPES = 64;
+    static final String OTHER = "other";
+
+    public enum Stage {
+        ENQUEUE_TO_SEND("enqueueToSend"),
+        SEND_TO_ACK("sendToAck"),
+        ORIGIN_TO_DELIVERY("originToDelivery");
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    private static class StageHistograms {
+        final Map<String, LatencyHistogram> byPeer = new HashMap<>();
+        final Map<String, LatencyHistogram> byType = new HashMap<>();
+    }
+
+    private static class AwaitedAck {
+        final String type;
+        final long sentAt;
+
+        AwaitedAck(String type, long sentAt) {
+            this.type = type;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final Map<Stage, StageHistograms> stages;
+    private final LinkedHashMap<String, AwaitedAck> awaitedAcks; // messageId|peerId -> first send
+
+    public LatencyRecorder() {
+        this.stages = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) {
+            stages.put(stage, new StageHistograms());
+        }
+        this.awaitedAcks = new LinkedHashMap<String, AwaitedAck>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AwaitedAck> eldest) {
+                return size() > MAX_AWAITED_ACKS;
+            }
+        };
+    }
+
+    public synchronized void record(Stage stage, String peerId, String type, long latency) {
+        StageHistograms histograms = stages.get(stage);
+        if (peerId != null) {
+            histogram(histograms.byPeer, peerId, MAX_PEERS).record(latency);
+        }
+        histogram(histograms.byType, typeKey(type), MAX_TYPES).record(latency);
+    }
+
+    /** Notes a send that the peer will acknowledge; later chunks of the same message keep the first time. */
+    public synchronized void onSent(String messageId, String peerId, String type, long now) {
+        awaitedAcks.putIfAbsent(messageId + "|" + peerId, new AwaitedAck(type, now));
+    }
+
+    public void onAck(String messageId, String peerId, long now) {
+        AwaitedAck sent;
+        synchronized (this) {
+            sent = awaitedAcks.remove(messageId + "|" + peerId);
+        }
+        if (sent != null) {
+            record(Stage.SEND_TO_ACK, peerId, sent.type, now - sent.sentAt);
+        }
+    }
+
+    /** Removes a departed peer's histograms. */
+    public synchronized void removePeer(String peerId) {
+        for (StageHistograms histograms : stages.values()) {
+            histograms.byPeer.remove(peerId);
+        }
+    }
+
+    /**
+     * Histograms of every stage as { stage: { all, peers: {..}, types: {..} } },
+     * where "all" is the merge of the per-type histograms.
+     */
+    public synchronized JSONObject snapshot(boolean reset) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("subBuckets", LatencyHistogram.SUB_BUCKETS);
+        for (Map.Entry<Stage, StageHistograms> entry : stages.entrySet()) {
+            StageHistograms histograms = entry.getValue();
+            LatencyHistogram all = new LatencyHistogram();
+            JSONObject types = new JSONObject();
+            for (Map.Entry<String, LatencyHistogram> type : histograms.byType.entrySet()) {
+                all.merge(type.getValue());
+                types.put(type.getKey(), type.getValue().toJSON());
+            }
+            JSONObject peers = new JSONObject();
+            for (Map.Entry<String, LatencyHistogram> peer : histograms.byPeer.entrySet()) {
+                peers.put(peer.getKey(), peer.getValue().toJSON());
+            }
+
+            JSONObject stage = new JSONObject();
+            stage.put("all", all.toJSON());
+            stage.put("peers", peers);
+            stage.put("types", types);
+            json.put(entry.getKey().key, stage);
+
+            if (reset) {
+                histograms.byPeer.clear();
+                histograms.byType.clear();
+            }
+        }
+        return json;
+    }
+
+    private static LatencyHistogram histogram(Map<String, LatencyHistogram> histograms, String key, int max) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(histograms.size() < max ? key : OTHER, k -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+
+    private static String typeKey(String type) {
+        return type == null || type.isEmpty() ? "unknown" : type;
+    }
+}
@@ -0,0 +1,69 @@
+package tools.bink.p2pcounter;
+
+/**
+ * Quality estimate for one direct link, fed by keepalive probes.
+ *
+ * ETX (expected transmission count) is the inverse of the probe delivery
+ * ratio: 1.0 on a clean link, growing as pings go unanswered. Delivery ratio
+ * and RTT are exponentially smoothed so a single lost ping doesn't flip
+ * routes; the RTT comes from the link's RttStats.
+ */
+public class LinkMetrics {
+    private static final double ALPHA = 0.2; // Weight of the newest sample
+    private static final double MIN_DELIVERY_RATIO = 0.1; // Caps ETX at 10
+    private static final double RTT_PER_TRANSMISSION = 100; // ms of RTT that cost as much as one transmission
+
+    private final RttStats rttStats = new RttStats();
+    private double deliveryRatio = 1.0;
+    private boolean probeOutstanding;
+
+    /**
+     * Records that a probe was sent.
+     *
+     * @return true if the previous probe was never answered and counted as lost
+     */
+    public synchronized boolean onProbeSent() {
+        boolean lost = probeOutstanding;
+        if (lost) {
+            deliveryRatio = (1 - ALPHA) * deliveryRatio;
+        }
+        probeOutstanding = true;
+        return lost;
+    }
+
+    public synchronized void onProbeAnswered(long rtt) {
+        probeOutstanding = false;
+        deliveryRatio = (1 - ALPHA) * deliveryRatio + ALPHA;
+        rttStats.add(rtt);
+    }
+
+    public synchronized double getEtx() {
+        return 1.0 / Math.max(deliveryRatio, MIN_DELIVERY_RATIO);
+    }
+
+    /** Smoothed round-trip time in ms, or 0 before the first answer. */
+    public double getRtt() {
+        return rttStats.getSmoothed();
+    }
+
+    /** Smoothed share of probes that went unanswered, 0..1. */
+    public synchronized double getLossRate() {
+        return 1.0 - deliveryRatio;
+    }
+
+    public RttStats getRttStats() {
+        return rttStats;
+    }
+
+    public synchronized double getCost() {
+        return cost(getEtx(), getRtt());
+    }
+
+    /**
+     * Routing cost of a link: its ETX plus latency expressed in transmissions.
+     * A clean, fast link costs ~1, so unmeasured graphs route by hop count.
+     */
+    public static double cost(double etx, double rtt) {
+        return Math.max(etx, 1.0) + Math.max(rtt, 0) / RTT_PER_TRANSMISSION;
+    }
+}
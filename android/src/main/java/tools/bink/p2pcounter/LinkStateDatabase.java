@@ -0,0 +1,296 @@
+package tools.bink.p2pcounter;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.*;
+
+/**
+ * Link-state advertisements (LSAs) flooded through the mesh.
+ *
+ * Every device periodically, and shortly after its links change, floods the
+ * list of its direct links with their measured metrics. Each LSA carries a
+ * sequence number (a hybrid logical clock version, so it keeps increasing
+ * across restarts) and its age in seconds since origination. Receivers
+ * install the newest LSA per origin into the topology graph, where it
+ * replaces that origin's outgoing edges, and only re-flood LSAs that were
+ * new to them. LSAs older than MAX_AGE are flushed. A link is only installed
+ * once both ends advertise it, so a link that one side has already dropped,
+ * or never saw come up, isn't routed over.
+ */
+public class LinkStateDatabase {
+    private static final String TAG = "LinkStateDatabase";
+    public static final String TYPE_LINK_STATE = "linkState";
+    private static final long REFRESH_INTERVAL = 30000; // Re-originate every 30 seconds
+    private static final long MIN_ORIGINATION_INTERVAL = 1000; // At most one change-driven LSA per second
+    static final int MAX_AGE = 120; // Seconds after origination before an unrefreshed LSA is flushed
+
+    private final String localDeviceId;
+    private final MeshTopologyManager topologyManager;
+    private final HybridLogicalClock clock;
+    private final Transport transport;
+    private final Map<String, Entry> entries; // origin -> newest LSA
+    private JSONObject ownAdvertisement;
+    private long lastOriginated;
+    private boolean originationPending;
+    private Timer timer;
+
+    public interface Transport {
+        void sendLinkState(String peerId, JSONObject lsa);
+        Collection<String> getLinkedPeers();
+    }
+
+    private static class Entry {
+        final long sequence;
+        final int age; // Seconds since origination when received
+        final long receivedAt;
+        final JSONObject lsa;
+
+        Entry(long sequence, int age, JSONObject lsa) {
+            this.sequence = sequence;
+            this.age = age;
+            this.receivedAt = System.currentTimeMillis();
+            this.lsa = lsa;
+        }
+
+        int currentAge() {
+            return age + (int) ((System.currentTimeMillis() - receivedAt) / 1000);
+        }
+    }
+
+    public LinkStateDatabase(String localDeviceId, MeshTopologyManager topologyManager,
+                             HybridLogicalClock clock, Transport transport) {
+        this.localDeviceId = localDeviceId;
+        this.topologyManager = topologyManager;
+        this.clock = clock;
+        this.transport = transport;
+        this.entries = new HashMap<>();
+        this.timer = new Timer(true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                originate();
+                expireEntries();
+            }
+        }, REFRESH_INTERVAL, REFRESH_INTERVAL);
+    }
+
+    /** Schedules a fresh LSA after our links changed, rate-limited to MIN_ORIGINATION_INTERVAL. */
+    public synchronized void onLocalLinksChanged() {
+        if (timer == null || originationPending) return;
+        originationPending = true;
+        long delay = Math.max(0, lastOriginated + MIN_ORIGINATION_INTERVAL - System.currentTimeMillis());
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                originate();
+            }
+        }, delay);
+    }
+
+    /** Floods our current links to every direct peer. */
+    public void originate() {
+        JSONObject lsa;
+        synchronized (this) {
+            originationPending = false;
+            // Our direct links may have changed, which decides which links to us are two-way
+            for (Entry entry : entries.values()) {
+                if (linksOf(entry.lsa).has(localDeviceId)) {
+                    installQuietly(entry.lsa);
+                }
+            }
+            lastOriginated = System.currentTimeMillis();
+            try {
+                lsa = new JSONObject();
+                lsa.put("type", TYPE_LINK_STATE);
+                lsa.put("origin", localDeviceId);
+                lsa.put("sequence", clock.now());
+                lsa.put("age", 0);
+
+                JSONObject metrics = topologyManager.getLinkMetrics(localDeviceId);
+                JSONObject links = new JSONObject();
+                for (String peer : topologyManager.getDirectPeers()) {
+                    JSONObject link = metrics.optJSONObject(peer);
+                    links.put(peer, link != null ? link : new JSONObject());
+                }
+                lsa.put("links", links);
+
+                JSONArray relays = new JSONArray();
+                for (String relay : topologyManager.getMultipointRelays()) {
+                    relays.put(relay);
+                }
+                lsa.put("relays", relays);
+                ownAdvertisement = lsa;
+            } catch (JSONException e) {
+                Log.e(TAG, "Error creating link-state advertisement", e);
+                return;
+            }
+        }
+        flood(lsa, null);
+    }
+
+    /** Installs an LSA received from a direct peer and floods it on if it was new. */
+    public void handleAdvertisement(String fromPeerId, JSONObject lsa) {
+        try {
+            String origin = lsa.getString("origin");
+            long sequence = lsa.getLong("sequence");
+            int age = lsa.optInt("age", 0);
+
+            if (origin.equals(localDeviceId)) {
+                // Our own LSA echoed back; merge its clock so the next one supersedes it
+                clock.update(sequence);
+                return;
+            }
+
+            boolean newNeighbor;
+            synchronized (this) {
+                Entry existing = entries.get(origin);
+                if (existing != null && existing.sequence >= sequence) return; // Stale or already seen
+                newNeighbor = existing == null && origin.equals(fromPeerId);
+                if (age >= MAX_AGE) {
+                    entries.remove(origin);
+                    topologyManager.setPeerConnections(origin, Collections.emptyList());
+                } else {
+                    entries.put(origin, new Entry(sequence, age, lsa));
+                    install(lsa);
+                }
+                // Links the peers on either side listed may have become (or stopped being) two-way
+                reinstallPeers(linksOf(lsa));
+                if (existing != null) {
+                    reinstallPeers(linksOf(existing.lsa));
+                }
+            }
+
+            // Forwarding takes milliseconds, so the age in seconds is passed on as received.
+            // The stored LSA is shared with later floods and database syncs, so never modify it.
+            flood(lsa, fromPeerId);
+
+            // First word from a new neighbor: bring it up to date instead of waiting for refreshes
+            if (newNeighbor) {
+                sendDatabase(fromPeerId);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error handling link-state advertisement", e);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        originationPending = false;
+    }
+
+    // Installs the origin's links that the other end advertises too
+    private void install(JSONObject lsa) throws JSONException {
+        String origin = lsa.getString("origin");
+        JSONObject links = lsa.getJSONObject("links");
+        Set<String> directPeers = topologyManager.getDirectPeers();
+        List<String> peers = new ArrayList<>(links.length());
+        Iterator<String> keys = links.keys();
+        while (keys.hasNext()) {
+            String peer = keys.next();
+            if (!isTwoWay(origin, peer, directPeers)) continue;
+            peers.add(peer);
+            JSONObject link = links.getJSONObject(peer);
+            if (link.has("etx")) {
+                topologyManager.updateLinkMetrics(origin, peer, link.getDouble("etx"), link.optDouble("rtt", 0));
+            }
+        }
+        topologyManager.setPeerConnections(origin, peers);
+
+        JSONArray relays = lsa.optJSONArray("relays");
+        if (relays != null) {
+            List<String> selectedRelays = new ArrayList<>(relays.length());
+            for (int i = 0; i < relays.length(); i++) {
+                selectedRelays.add(relays.getString(i));
+            }
+            topologyManager.updateNeighborRelays(origin, selectedRelays);
+        }
+    }
+
+    private boolean isTwoWay(String origin, String peer, Set<String> directPeers) {
+        if (peer.equals(localDeviceId)) {
+            return directPeers.contains(origin);
+        }
+        Entry reverse = entries.get(peer);
+        return reverse != null && linksOf(reverse.lsa).has(origin);
+    }
+
+    private void reinstallPeers(JSONObject links) {
+        Iterator<String> peers = links.keys();
+        while (peers.hasNext()) {
+            Entry entry = entries.get(peers.next());
+            if (entry != null) {
+                installQuietly(entry.lsa);
+            }
+        }
+    }
+
+    private void installQuietly(JSONObject lsa) {
+        try {
+            install(lsa);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error installing link-state advertisement", e);
+        }
+    }
+
+    private static JSONObject linksOf(JSONObject lsa) {
+        JSONObject links = lsa.optJSONObject("links");
+        return links != null ? links : new JSONObject();
+    }
+
+    // Withdraw the links of origins that stopped refreshing their LSA
+    private void expireEntries() {
+        synchronized (this) {
+            List<Entry> expired = new ArrayList<>();
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getValue().currentAge() >= MAX_AGE) {
+                    expired.add(entry.getValue());
+                    topologyManager.setPeerConnections(entry.getKey(), Collections.emptyList());
+                    iterator.remove();
+                }
+            }
+            for (Entry entry : expired) {
+                reinstallPeers(linksOf(entry.lsa));
+            }
+        }
+    }
+
+    private void sendDatabase(String peerId) throws JSONException {
+        List<JSONObject> advertisements = new ArrayList<>();
+        synchronized (this) {
+            if (ownAdvertisement != null) {
+                JSONObject lsa = new JSONObject(ownAdvertisement.toString());
+                lsa.put("age", (int) ((System.currentTimeMillis() - lastOriginated) / 1000));
+                advertisements.add(lsa);
+            }
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getKey().equals(peerId)) continue;
+                // Copies, with the age brought up to date
+                JSONObject lsa = new JSONObject(entry.getValue().lsa.toString());
+                lsa.put("age", entry.getValue().currentAge());
+                advertisements.add(lsa);
+            }
+        }
+        for (JSONObject lsa : advertisements) {
+            transport.sendLinkState(peerId, lsa);
+        }
+    }
+
+    private void flood(JSONObject lsa, String excludedPeerId) {
+        for (String peer : transport.getLinkedPeers()) {
+            if (!peer.equals(excludedPeerId)) {
+                transport.sendLinkState(peer, lsa);
+            }
+        }
+    }
+}
@@ -9,59 +9,104 @@ import java.util.*;
 
 public class MeshDiscoveryManager {
     private static final String TAG = "MeshDiscoveryManager";
+    public static final String TYPE_NEIGHBORS_REQUEST = "meshNeighborsRequest";
+    public static final String TYPE_NEIGHBORS = "meshNeighbors";
     private final String localDeviceId;
     private final P2PCounterPlugin plugin;
+    private final MeshTopologyManager topologyManager;
+    private final Transport transport;
     private final Map<String, PeerInfo> discoveredPeers;
     private final Map<String, Long> lastAnnouncementTime;
+    private final CandidateRanker candidates;
+    private final Map<String, Long> requestedConnections; // deviceId -> when we last asked
+    private int connectionBudget = CONNECTION_BUDGET;
+    private long scoredEpoch = -1; // Topology epoch the candidate scores were computed in
+    private final TrickleTimer announcementTimer;
     private Timer discoveryTimer;
-    private static final long ANNOUNCEMENT_INTERVAL = 10000; // 10 seconds
+    private Set<String> knownNeighborhood; // Cached per topology epoch
+    private long knownNeighborhoodEpoch = -1;
+    private static final long MIN_ANNOUNCEMENT_INTERVAL = 1000; // 1 second after a change
+    private static final long MAX_ANNOUNCEMENT_INTERVAL = 64000; // 64 seconds when stable
+    private static final int ANNOUNCEMENT_REDUNDANCY = 3; // Stay quiet after hearing this many consistent announcements
+    private static final long CLEANUP_INTERVAL = 10000; // 10 seconds
     private static final long PEER_TIMEOUT = 30000; // 30 seconds
+    private static final int STALE_INTERVALS = 8; // Announcement intervals of silence before a peer is dropped
     private static final int MAX_PEERS = 10;
+    private static final double CONNECTION_THRESHOLD = 0.7;
+    private static final int RANKED_CANDIDATES = 8; // Top-k kept ranked
+    private static final int CONNECTION_BUDGET = 2; // Connection requests per cleanup interval
+    private static final long REQUEST_COOLDOWN = 30000; // Before asking the same peer again
 
     private static class PeerInfo {
         String deviceId;
+        final long firstSeen;
         long lastSeen;
+        long announcementInterval;
         int connectionCount;
         double networkStrength;
-        Set<String> connectedPeers;
+        NeighborDigest digest; // From the latest announcement
+        Set<String> connectedPeers; // Full list, fetched when the digest changes
+        NeighborDigest connectedPeersDigest; // Digest of connectedPeers
 
         PeerInfo(String deviceId) {
             this.deviceId = deviceId;
-            this.lastSeen = System.currentTimeMillis();
+            this.firstSeen = System.currentTimeMillis();
+            this.lastSeen = firstSeen;
             this.connectionCount = 0;
             this.networkStrength = 0.0;
-            this.connectedPeers = new HashSet<>();
         }
+
+        boolean hasCurrentPeerList() {
+            return connectedPeers != null && digest != null && digest.sameAs(connectedPeersDigest);
+        }
+    }
+
+    public interface Transport {
+        void sendToPeer(String peerId, JSONObject message);
     }
 
-    public MeshDiscoveryManager(String localDeviceId, P2PCounterPlugin plugin) {
+    public MeshDiscoveryManager(String localDeviceId, P2PCounterPlugin plugin, MeshTopologyManager topologyManager,
+                                Transport transport) {
         this.localDeviceId = localDeviceId;
         this.plugin = plugin;
+        this.topologyManager = topologyManager;
+        this.transport = transport;
         this.discoveredPeers = new HashMap<>();
         this.lastAnnouncementTime = new HashMap<>();
+        this.candidates = new CandidateRanker(RANKED_CANDIDATES);
+        this.requestedConnections = new HashMap<>();
+        this.announcementTimer = new TrickleTimer(MIN_ANNOUNCEMENT_INTERVAL, MAX_ANNOUNCEMENT_INTERVAL,
+            ANNOUNCEMENT_REDUNDANCY, this::announcePresence);
     }
 
     public void startDiscovery() {
         if (discoveryTimer != null) return;
 
+        announcementTimer.start();
         discoveryTimer = new Timer(true);
         discoveryTimer.scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
-                announcePresence();
                 cleanupStaleEntries();
+                refillConnectionBudget();
             }
-        }, 0, ANNOUNCEMENT_INTERVAL);
+        }, CLEANUP_INTERVAL, CLEANUP_INTERVAL);
     }
 
     public void stopDiscovery() {
+        announcementTimer.stop();
         if (discoveryTimer != null) {
             discoveryTimer.cancel();
             discoveryTimer = null;
         }
     }
 
-    private void announcePresence() {
+    /** Our direct links changed; announce at the fast rate again. */
+    public void onLocalStateChanged() {
+        announcementTimer.hearInconsistent();
+    }
+
+    private synchronized void announcePresence(long interval) {
         try {
             JSONObject announcement = new JSONObject();
             announcement.put("type", "meshAnnouncement");
@@ -69,12 +114,9 @@ public class MeshDiscoveryManager {
             announcement.put("timestamp", System.currentTimeMillis());
             announcement.put("connectionCount", discoveredPeers.size());
             announcement.put("networkStrength", calculateNetworkStrength());
-
-            JSONArray connectedPeers = new JSONArray();
-            for (PeerInfo peer : discoveredPeers.values()) {
-                connectedPeers.put(peer.deviceId);
-            }
-            announcement.put("connectedPeers", connectedPeers);
+            announcement.put("interval", interval);
+            // Constant size however many peers we know; the full list is sent on request
+            announcement.put("digest", NeighborDigest.of(discoveredPeers.keySet()).toJSON());
 
             JSObject event = new JSObject();
             event.put("type", "meshAnnouncement");
@@ -86,18 +128,29 @@ public class MeshDiscoveryManager {
         }
     }
 
-    public void handleAnnouncement(String deviceId, JSONObject announcement) {
+    public synchronized void handleAnnouncement(String deviceId, JSONObject announcement) {
         try {
+            boolean isNew = !discoveredPeers.containsKey(deviceId);
             PeerInfo peer = discoveredPeers.computeIfAbsent(deviceId, PeerInfo::new);
             peer.lastSeen = System.currentTimeMillis();
-            peer.connectionCount = announcement.getInt("connectionCount");
+            peer.announcementInterval = announcement.optLong("interval", MAX_ANNOUNCEMENT_INTERVAL);
+            int connectionCount = announcement.getInt("connectionCount");
             peer.networkStrength = announcement.getDouble("networkStrength");
-            
-            // Update connected peers
-            peer.connectedPeers.clear();
-            JSONArray connectedPeers = announcement.getJSONArray("connectedPeers");
-            for (int i = 0; i < connectedPeers.length(); i++) {
-                peer.connectedPeers.add(connectedPeers.getString(i));
+
+            NeighborDigest digest = NeighborDigest.fromJSON(announcement.getJSONObject("digest"));
+            boolean digestChanged = !digest.sameAs(peer.digest);
+
+            // Nothing new means the neighborhood is settled and our announcements can slow down
+            if (isNew || connectionCount != peer.connectionCount || digestChanged) {
+                announcementTimer.hearInconsistent();
+            } else {
+                announcementTimer.hearConsistent();
+            }
+            peer.connectionCount = connectionCount;
+            peer.digest = digest;
+
+            if (digestChanged && !peer.hasCurrentPeerList()) {
+                requestNeighbors(deviceId);
             }
 
             // Evaluate if we should connect to this peer
@@ -108,19 +161,98 @@ public class MeshDiscoveryManager {
         }
     }
 
+    public synchronized void handleNeighborsRequest(String deviceId) {
+        try {
+            JSONObject response = new JSONObject();
+            response.put("type", TYPE_NEIGHBORS);
+            response.put("deviceId", localDeviceId);
+            response.put("connectedPeers", new JSONArray(discoveredPeers.keySet()));
+            transport.sendToPeer(deviceId, response);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating neighbor list", e);
+        }
+    }
+
+    public synchronized void handleNeighbors(String deviceId, JSONObject response) {
+        try {
+            PeerInfo peer = discoveredPeers.get(deviceId);
+            if (peer == null) return;
+
+            JSONArray connectedPeers = response.getJSONArray("connectedPeers");
+            Set<String> peers = new HashSet<>(connectedPeers.length() * 2);
+            for (int i = 0; i < connectedPeers.length(); i++) {
+                peers.add(connectedPeers.getString(i));
+            }
+            peer.connectedPeers = peers;
+            peer.connectedPeersDigest = NeighborDigest.of(peers);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error handling neighbor list", e);
+        }
+    }
+
+    private void requestNeighbors(String deviceId) {
+        try {
+            JSONObject request = new JSONObject();
+            request.put("type", TYPE_NEIGHBORS_REQUEST);
+            request.put("deviceId", localDeviceId);
+            transport.sendToPeer(deviceId, request);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error requesting neighbor list", e);
+        }
+    }
+
+    // Rescore only the announcing peer, then spend any remaining budget on the best candidates
     private void evaluateConnection(PeerInfo peer) {
-        // Don't connect if we're at max peers
-        if (discoveredPeers.size() >= MAX_PEERS) return;
+        if (topologyManager.getDirectPeers().contains(peer.deviceId)) {
+            candidates.remove(peer.deviceId);
+            return;
+        }
+        candidates.update(peer.deviceId, calculateConnectionScore(peer));
+        requestBestCandidates();
+    }
 
-        // Calculate connection score based on various factors
-        double score = calculateConnectionScore(peer);
+    private void requestBestCandidates() {
+        if (connectionBudget <= 0) return;
 
-        // If score is above threshold, request connection
-        if (score > 0.7) { // 70% threshold
-            requestConnection(peer.deviceId);
+        Set<String> directPeers = topologyManager.getDirectPeers();
+        int openSlots = MAX_PEERS - directPeers.size();
+        long now = System.currentTimeMillis();
+        for (String deviceId : candidates.getTop()) {
+            if (connectionBudget <= 0 || openSlots <= 0) break;
+            if (candidates.getScore(deviceId) <= CONNECTION_THRESHOLD) break; // Best first, so the rest score lower
+            if (directPeers.contains(deviceId)) continue;
+            Long requestedAt = requestedConnections.get(deviceId);
+            if (requestedAt != null && now - requestedAt < REQUEST_COOLDOWN) continue;
+
+            requestedConnections.put(deviceId, now);
+            connectionBudget--;
+            openSlots--;
+            requestConnection(deviceId);
         }
     }
 
+    private synchronized void refillConnectionBudget() {
+        connectionBudget = CONNECTION_BUDGET;
+
+        // Diversity scores depend on our neighborhood; rescore everyone once it has changed
+        long epoch = topologyManager.getTopologyEpoch();
+        if (epoch != scoredEpoch) {
+            scoredEpoch = epoch;
+            Set<String> directPeers = topologyManager.getDirectPeers();
+            for (PeerInfo peer : discoveredPeers.values()) {
+                if (directPeers.contains(peer.deviceId)) {
+                    candidates.remove(peer.deviceId);
+                } else {
+                    candidates.update(peer.deviceId, calculateConnectionScore(peer));
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        requestedConnections.values().removeIf(requestedAt -> now - requestedAt >= REQUEST_COOLDOWN);
+        requestBestCandidates();
+    }
+
     private double calculateConnectionScore(PeerInfo peer) {
         double score = 0.0;
 
@@ -133,25 +265,41 @@ public class MeshDiscoveryManager {
 
         // Factor 3: Network diversity (30%)
         // Prefer peers that connect us to new parts of the network
-        Set<String> uniquePeers = new HashSet<>(peer.connectedPeers);
-        uniquePeers.removeAll(getKnownPeers());
-        score += (uniquePeers.size() / (double)MAX_PEERS) * 0.3;
+        int uniquePeers = countUnreachedNeighbors(peer);
+        score += Math.min(uniquePeers / (double)MAX_PEERS, 1.0) * 0.3;
 
         // Factor 4: Connection stability (20%)
         // Prefer peers that have been consistently available
-        long uptime = System.currentTimeMillis() - peer.lastSeen;
+        long uptime = System.currentTimeMillis() - peer.firstSeen;
         score += Math.min(uptime / (double)PEER_TIMEOUT, 1.0) * 0.2;
 
         return score;
     }
 
-    private Set<String> getKnownPeers() {
-        Set<String> knownPeers = new HashSet<>();
-        for (PeerInfo peer : discoveredPeers.values()) {
-            knownPeers.add(peer.deviceId);
-            knownPeers.addAll(peer.connectedPeers);
+    // Exact when we hold the peer's current list, a Bloom filter estimate from its digest otherwise
+    private int countUnreachedNeighbors(PeerInfo peer) {
+        if (peer.digest == null) {
+            return topologyManager.countUnreachedNeighbors(peer.deviceId);
         }
-        return knownPeers;
+
+        long epoch = topologyManager.getTopologyEpoch();
+        if (knownNeighborhood == null || knownNeighborhoodEpoch != epoch) {
+            knownNeighborhood = topologyManager.getKnownNeighborhood();
+            knownNeighborhoodEpoch = epoch;
+        }
+
+        int overlap = 0;
+        if (peer.hasCurrentPeerList()) {
+            for (String neighbor : peer.connectedPeers) {
+                if (knownNeighborhood.contains(neighbor)) overlap++;
+            }
+        } else {
+            // False positives only overstate the overlap, so the estimate errs low
+            for (String known : knownNeighborhood) {
+                if (peer.digest.mightContain(known)) overlap++;
+            }
+        }
+        return Math.max(peer.digest.getCount() - overlap, 0);
     }
 
     private double calculateNetworkStrength() {
@@ -176,14 +324,25 @@ public class MeshDiscoveryManager {
         plugin.notifyWebRTCEvent("connectionRequest", request);
     }
 
-    private void cleanupStaleEntries() {
+    private synchronized void cleanupStaleEntries() {
         long now = System.currentTimeMillis();
-        discoveredPeers.entrySet().removeIf(entry ->
-            now - entry.getValue().lastSeen > PEER_TIMEOUT
-        );
+        // Peers announce less often as the mesh settles, so silence is measured in their own intervals
+        boolean removed = false;
+        Iterator<Map.Entry<String, PeerInfo>> iterator = discoveredPeers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            PeerInfo peer = iterator.next().getValue();
+            if (now - peer.lastSeen > Math.max(PEER_TIMEOUT, STALE_INTERVALS * peer.announcementInterval)) {
+                iterator.remove();
+                candidates.remove(peer.deviceId);
+                removed = true;
+            }
+        }
+        if (removed) {
+            announcementTimer.hearInconsistent();
+        }
     }
 
-    public JSONObject getDiscoverySnapshot() {
+    public synchronized JSONObject getDiscoverySnapshot() {
         JSONObject snapshot = new JSONObject();
         try {
             snapshot.put("localDeviceId", localDeviceId);
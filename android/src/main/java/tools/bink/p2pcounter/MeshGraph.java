@@ -0,0 +1,244 @@
+package tools.bink.p2pcounter;
+
+import java.util.Arrays;
+
+/**
+ * Directed device graph with ids interned to dense ints and adjacency kept
+ * as bitset rows (one long per 64 devices), so neighborhood, 2-hop and
+ * set-difference queries are word-wide loops that don't allocate.
+ *
+ * Indexes are never reused: a device that drops out and comes back keeps
+ * its index, so the index space grows with the number of distinct devices
+ * seen rather than with churn. Not thread-safe; callers synchronize.
+ */
+public class MeshGraph {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final AttendeeStore.InternTable indexes;
+    private String[] deviceIds;
+    private long[][] outgoing; // node -> nodes it links to
+    private long[][] incoming; // node -> nodes linking to it
+    private long[] present; // nodes with a known adjacency list
+    private int size; // interned ids
+    private int words; // longs per row
+    private int edgeCount;
+
+    public MeshGraph() {
+        this.indexes = new AttendeeStore.InternTable(INITIAL_CAPACITY);
+        this.deviceIds = new String[INITIAL_CAPACITY];
+        this.words = INITIAL_CAPACITY / 64;
+        this.outgoing = new long[INITIAL_CAPACITY][words];
+        this.incoming = new long[INITIAL_CAPACITY][words];
+        this.present = new long[words];
+    }
+
+    /** Returns the index of a device, assigning the next free one if it's new. */
+    public int intern(String deviceId) {
+        int index = indexes.get(deviceId);
+        if (index >= 0) return index;
+
+        index = size++;
+        if (index == deviceIds.length) {
+            grow(deviceIds.length * 2);
+        }
+        deviceIds[index] = deviceId;
+        indexes.put(deviceId, index);
+        return index;
+    }
+
+    /** Returns the index of a device, or -1 if it was never seen. */
+    public int indexOf(String deviceId) {
+        return indexes.get(deviceId);
+    }
+
+    public String deviceId(int index) {
+        return deviceIds[index];
+    }
+
+    /** Upper bound (exclusive) of assigned indexes. */
+    public int size() {
+        return size;
+    }
+
+    /** Length every node-indexed array must have to cover all assigned indexes. */
+    public int capacity() {
+        return deviceIds.length;
+    }
+
+    /** Number of longs in a bitset covering all assigned indexes. */
+    public int words() {
+        return words;
+    }
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+    public int getNodeCount() {
+        return cardinality(present);
+    }
+
+    public boolean contains(int node) {
+        return get(present, node);
+    }
+
+    /** Marks the node as having a known (possibly empty) adjacency list. */
+    public boolean addNode(int node) {
+        if (get(present, node)) return false;
+        set(present, node);
+        return true;
+    }
+
+    public boolean addEdge(int from, int to) {
+        if (get(outgoing[from], to)) return false;
+        set(outgoing[from], to);
+        set(incoming[to], from);
+        edgeCount++;
+        return true;
+    }
+
+    public boolean removeEdge(int from, int to) {
+        if (!get(outgoing[from], to)) return false;
+        clear(outgoing[from], to);
+        clear(incoming[to], from);
+        edgeCount--;
+        return true;
+    }
+
+    public boolean hasEdge(int from, int to) {
+        return get(outgoing[from], to);
+    }
+
+    /** Removes the node and every edge into or out of it. Returns false if there was nothing to remove. */
+    public boolean removeNode(int node) {
+        boolean removed = get(present, node);
+        clear(present, node);
+        for (int peer = nextSetBit(outgoing[node], 0); peer >= 0; peer = nextSetBit(outgoing[node], peer + 1)) {
+            clear(incoming[peer], node);
+            edgeCount--;
+            removed = true;
+        }
+        for (int peer = nextSetBit(incoming[node], 0); peer >= 0; peer = nextSetBit(incoming[node], peer + 1)) {
+            clear(outgoing[peer], node);
+            edgeCount--;
+            removed = true;
+        }
+        Arrays.fill(outgoing[node], 0);
+        Arrays.fill(incoming[node], 0);
+        return removed;
+    }
+
+    /** Iterates out-neighbors: {@code for (int n = nextNeighbor(v, 0); n >= 0; n = nextNeighbor(v, n + 1))}. */
+    public int nextNeighbor(int node, int fromIndex) {
+        return nextSetBit(outgoing[node], fromIndex);
+    }
+
+    public int nextIncoming(int node, int fromIndex) {
+        return nextSetBit(incoming[node], fromIndex);
+    }
+
+    public int nextNode(int fromIndex) {
+        return nextSetBit(present, fromIndex);
+    }
+
+    public int degree(int node) {
+        return cardinality(outgoing[node]);
+    }
+
+    /** Live out-neighbor row; read-only for callers. */
+    long[] neighbors(int node) {
+        return outgoing[node];
+    }
+
+    /** Fills the set with nodes exactly two links away: neighbors of neighbors, minus neighbors and the node itself. */
+    public void twoHopInto(int node, long[] set) {
+        Arrays.fill(set, 0);
+        long[] direct = outgoing[node];
+        for (int peer = nextSetBit(direct, 0); peer >= 0; peer = nextSetBit(direct, peer + 1)) {
+            long[] reached = outgoing[peer];
+            for (int w = 0; w < words; w++) {
+                set[w] |= reached[w];
+            }
+        }
+        for (int w = 0; w < words; w++) {
+            set[w] &= ~direct[w];
+        }
+        clear(set, node);
+    }
+
+    /** Number of the node's neighbors that are not in the set. */
+    public int countNeighborsNotIn(int node, long[] set) {
+        long[] row = outgoing[node];
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(row[w] & ~set[w]);
+        }
+        return count;
+    }
+
+    /** Number of the node's neighbors that are in the set. */
+    public int countNeighborsIn(int node, long[] set) {
+        long[] row = outgoing[node];
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(row[w] & set[w]);
+        }
+        return count;
+    }
+
+    /** Returns a bitset covering all assigned indexes, reusing the given one when it's big enough. */
+    public long[] ensureSet(long[] set) {
+        return set != null && set.length >= words ? set : new long[words];
+    }
+
+    private void grow(int capacity) {
+        deviceIds = Arrays.copyOf(deviceIds, capacity);
+        words = capacity / 64;
+        outgoing = growRows(outgoing, capacity);
+        incoming = growRows(incoming, capacity);
+        present = Arrays.copyOf(present, words);
+    }
+
+    private long[][] growRows(long[][] rows, int capacity) {
+        long[][] grown = new long[capacity][];
+        for (int i = 0; i < capacity; i++) {
+            grown[i] = i < rows.length ? Arrays.copyOf(rows[i], words) : new long[words];
+        }
+        return grown;
+    }
+
+    // Bitset helpers over plain long arrays
+
+    public static boolean get(long[] set, int index) {
+        int w = index >>> 6;
+        return w < set.length && (set[w] & (1L << index)) != 0;
+    }
+
+    public static void set(long[] set, int index) {
+        set[index >>> 6] |= 1L << index;
+    }
+
+    public static void clear(long[] set, int index) {
+        int w = index >>> 6;
+        if (w < set.length) set[w] &= ~(1L << index);
+    }
+
+    public static int nextSetBit(long[] set, int fromIndex) {
+        int w = fromIndex >>> 6;
+        if (w >= set.length) return -1;
+        long word = set[w] & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == set.length) return -1;
+            word = set[w];
+        }
+    }
+
+    public static int cardinality(long[] set) {
+        int count = 0;
+        for (long word : set) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+}
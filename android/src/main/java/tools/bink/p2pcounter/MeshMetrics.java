@@ -0,0 +1,107 @@
+package tools.bink.p2pcounter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and gauges for the mesh pipeline.
+ *
+ * Counters are striped across padded slots picked by thread, so the WebRTC,
+ * worker and timer threads bumping the same counter rarely touch the same
+ * cache line (LongAdder would do this too, but needs API 24). Gauges are
+ * read only when a snapshot is taken. Components look their counters up
+ * once and keep the handle, so the hot path is a single atomic add.
+ */
+public class MeshMetrics {
+    private static final int STRIPES = 8; // Power of two
+    private static final int PADDING = 8; // Longs per stripe, one 64-byte cache line
+
+    public static final class Counter {
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(long delta) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            cells.addAndGet(stripe * PADDING, delta);
+        }
+
+        public long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    public interface Gauge {
+        long read();
+    }
+
+    /** Traffic over one direct link. */
+    public static final class PeerCounters {
+        public final Counter bytesIn = new Counter();
+        public final Counter bytesOut = new Counter();
+        public final Counter framesIn = new Counter();
+        public final Counter framesOut = new Counter();
+    }
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final Map<String, PeerCounters> peers = new ConcurrentHashMap<>();
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public PeerCounters peer(String deviceId) {
+        PeerCounters counters = peers.get(deviceId);
+        return counters != null ? counters : peers.computeIfAbsent(deviceId, k -> new PeerCounters());
+    }
+
+    public void removePeer(String deviceId) {
+        peers.remove(deviceId);
+    }
+
+    /** { counters: {name: n}, gauges: {name: n}, peers: {id: {bytesIn, bytesOut, framesIn, framesOut}} } */
+    public JSONObject snapshot() throws JSONException {
+        JSONObject counterValues = new JSONObject();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        JSONObject gaugeValues = new JSONObject();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            gaugeValues.put(entry.getKey(), entry.getValue().read());
+        }
+
+        JSONObject peerValues = new JSONObject();
+        for (Map.Entry<String, PeerCounters> entry : peers.entrySet()) {
+            PeerCounters peer = entry.getValue();
+            JSONObject values = new JSONObject();
+            values.put("bytesIn", peer.bytesIn.sum());
+            values.put("bytesOut", peer.bytesOut.sum());
+            values.put("framesIn", peer.framesIn.sum());
+            values.put("framesOut", peer.framesOut.sum());
+            peerValues.put(entry.getKey(), values);
+        }
+
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("counters", counterValues);
+        snapshot.put("gauges", gaugeValues);
+        snapshot.put("peers", peerValues);
+        return snapshot;
+    }
+}
@@ -9,8 +9,22 @@ import java.util.*;
 
 public class MeshTopologyManager {
     private static final String TAG = "MeshTopologyManager";
-    private final Map<String, Set<String>> peerConnections; // deviceId -> connected peers
-    private final Map<String, Integer> hopCount; // deviceId -> hops from this device
+    private static final int UNREACHABLE = -1;
+    private final MeshGraph graph; // Interned device graph; also guards all topology state
+    private final int localIndex;
+    private int[] hopCount; // node -> hops from this device, or UNREACHABLE
+    private long topologyEpoch; // Incremented on every structural change
+    private final RouteTable routingTable; // Rebuilt lazily per epoch
+    private final RouteTable disjointRoutes; // Scratch for getDisjointRoutes
+    private long routingEpoch = -1;
+    private long[] multipointRelays; // Neighbors we selected to relay for us
+    private long mprEpoch = -1;
+    private long[] relaySetKnown; // Neighbors that advertised their relay set
+    private long[] selectedAsRelay; // Neighbors whose relay set includes us
+    private long[] knownNeighborhood; // Us plus our 1- and 2-hop neighbors, for scoring
+    private long knownNeighborhoodEpoch = -1;
+    private long[] suspectedPeers = new long[0]; // Direct peers our failure detector suspects
+    private final LinkCosts linkCosts; // Measured cost of each link, by graph index
     private final String localDeviceId;
     private final P2PCounterPlugin plugin;
     private static final int MAX_HOPS = 5; // Maximum hops for mesh propagation
@@ -18,169 +32,1005 @@ public class MeshTopologyManager {
     private static final int MAX_PEERS_PER_NODE = 5; // Maximum direct connections
     private final Map<String, Long> lastReorganizationTime;
     private static final long REORGANIZATION_COOLDOWN = 10000; // 10 seconds
+    private static final double COST_CHANGE_THRESHOLD = 0.1; // Reroute only on >10% cost changes
+    private static final double SUSPECTED_LINK_PENALTY = 1000; // More than any route within MAX_HOPS costs
+    private static final long DEFAULT_TOPOLOGY_EVENT_INTERVAL = 200; // 200ms, ~5 updates per second
+    private Timer topologyEventTimer;
+    private final Object topologyEventLock = new Object(); // Orders topologyChange events; taken before the graph
+    private long topologyEventInterval = DEFAULT_TOPOLOGY_EVENT_INTERVAL;
+    private boolean topologyEventPending;
+    private long topologyVersion; // Version of the last emitted topology state
+    private long[][] emittedConnections; // State as of topologyVersion
+    private int[] emittedHopCounts;
+
+    // Scratch space reused by graph updates so they don't allocate
+    private int[] queue;
+    private final IntList[] levels;
+    private long[] affected;
+    private long[] removedTargets;
+    private long[] twoHop;
+    private long[] uncovered;
+    private long[] frontier;
+    private long[] nextFrontier;
+
+    /*
+     * Row h holds the cheapest routes that use at most h hops, so every
+     * prefix of a route is itself the cheapest route within its own hop
+     * budget. The last computed row is the answer.
+     */
+    private static final class RouteTable {
+        int[][] nextHop = new int[MAX_HOPS + 1][0]; // UNREACHABLE if there is no route
+        int[][] previous = new int[MAX_HOPS + 1][0]; // Valid in the row where the route last improved
+        int[][] distance = new int[MAX_HOPS + 1][0];
+        double[][] cost = new double[MAX_HOPS + 1][0]; // Double.MAX_VALUE until reached
+        int last; // Last computed row
+
+        void reset(int capacity) {
+            if (nextHop[0].length < capacity) {
+                for (int h = 0; h <= MAX_HOPS; h++) {
+                    nextHop[h] = new int[capacity];
+                    previous[h] = new int[capacity];
+                    distance[h] = new int[capacity];
+                    cost[h] = new double[capacity];
+                }
+            }
+            Arrays.fill(nextHop[0], UNREACHABLE);
+            Arrays.fill(cost[0], Double.MAX_VALUE);
+            last = 0;
+        }
+
+        // Starts row h as a copy of row h - 1
+        void extend(int h, int nodeCount) {
+            System.arraycopy(nextHop[h - 1], 0, nextHop[h], 0, nodeCount);
+            System.arraycopy(previous[h - 1], 0, previous[h], 0, nodeCount);
+            System.arraycopy(distance[h - 1], 0, distance[h], 0, nodeCount);
+            System.arraycopy(cost[h - 1], 0, cost[h], 0, nodeCount);
+            last = h;
+        }
+
+        boolean hasRoute(int node) {
+            return node >= 0 && node < nextHop[last].length && nextHop[last][node] != UNREACHABLE;
+        }
+
+        int nextHop(int node) {
+            return nextHop[last][node];
+        }
+
+        int distance(int node) {
+            return distance[last][node];
+        }
+
+        double cost(int node) {
+            return cost[last][node];
+        }
+    }
+
+    private static final class IntList {
+        int[] items = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = value;
+        }
+    }
+
+    /*
+     * Measured links in rows indexed like the graph's, so route computation
+     * reads one array slot per edge instead of hashing two device ids. A row is
+     * allocated when its device first reports a link; 0 marks a link that
+     * hasn't been measured, since every real cost is at least 1.
+     */
+    private static final class LinkCosts {
+        private double[][] cost = new double[0][];
+        private double[][] etx = new double[0][];
+        private double[][] rtt = new double[0][];
+
+        void ensureCapacity(int capacity) {
+            if (cost.length >= capacity) return;
+            cost = Arrays.copyOf(cost, capacity);
+            etx = Arrays.copyOf(etx, capacity);
+            rtt = Arrays.copyOf(rtt, capacity);
+        }
+
+        double get(int from, int to) {
+            double[] row = cost[from];
+            return row != null && to < row.length ? row[to] : 0;
+        }
+
+        // Returns the previous cost, or 0 if the link wasn't measured
+        double put(int from, int to, double linkEtx, double linkRtt) {
+            if (cost[from] == null || cost[from].length <= to) {
+                int length = cost.length;
+                cost[from] = cost[from] == null ? new double[length] : Arrays.copyOf(cost[from], length);
+                etx[from] = etx[from] == null ? new double[length] : Arrays.copyOf(etx[from], length);
+                rtt[from] = rtt[from] == null ? new double[length] : Arrays.copyOf(rtt[from], length);
+            }
+            double previous = cost[from][to];
+            cost[from][to] = LinkMetrics.cost(linkEtx, linkRtt);
+            etx[from][to] = linkEtx;
+            rtt[from][to] = linkRtt;
+            return previous;
+        }
+
+        void remove(int from, int to) {
+            double[] row = cost[from];
+            if (row != null && to < row.length) row[to] = 0;
+        }
+
+        // Forgets the node's own links and every measured link into it
+        void removeNode(int node) {
+            cost[node] = null;
+            etx[node] = null;
+            rtt[node] = null;
+            for (double[] row : cost) {
+                if (row != null && node < row.length) row[node] = 0;
+            }
+        }
+
+        void toJSON(MeshGraph graph, int from, JSONObject metrics) throws JSONException {
+            double[] row = cost[from];
+            if (row == null) return;
+            for (int to = 0; to < row.length; to++) {
+                if (row[to] == 0) continue;
+                JSONObject link = new JSONObject();
+                link.put("etx", etx[from][to]);
+                link.put("rtt", rtt[from][to]);
+                metrics.put(graph.deviceId(to), link);
+            }
+        }
+    }
 
     public MeshTopologyManager(String localDeviceId, P2PCounterPlugin plugin) {
         this.localDeviceId = localDeviceId;
         this.plugin = plugin;
-        this.peerConnections = new HashMap<>();
-        this.hopCount = new HashMap<>();
-        hopCount.put(localDeviceId, 0);
+        this.graph = new MeshGraph();
+        this.localIndex = graph.intern(localDeviceId);
+        this.hopCount = new int[0];
+        this.multipointRelays = new long[0];
+        this.relaySetKnown = new long[0];
+        this.selectedAsRelay = new long[0];
+        this.emittedConnections = new long[0][];
+        this.emittedHopCounts = new int[0];
+        this.linkCosts = new LinkCosts();
+        this.queue = new int[0];
+        ensureNodeCapacity();
+        hopCount[localIndex] = 0;
+        this.routingTable = new RouteTable();
+        this.disjointRoutes = new RouteTable();
+        this.levels = new IntList[MAX_HOPS + 1];
+        for (int i = 0; i <= MAX_HOPS; i++) {
+            levels[i] = new IntList();
+        }
+        this.topologyEventTimer = new Timer(true);
         this.lastReorganizationTime = new HashMap<>();
     }
 
+    // Interns a device and grows node-indexed state to cover it
+    private int intern(String deviceId) {
+        int node = graph.intern(deviceId);
+        ensureNodeCapacity();
+        return node;
+    }
+
+    private void ensureNodeCapacity() {
+        int capacity = graph.capacity();
+        if (hopCount.length >= capacity) return;
+
+        int oldCapacity = hopCount.length;
+        hopCount = Arrays.copyOf(hopCount, capacity);
+        Arrays.fill(hopCount, oldCapacity, capacity, UNREACHABLE);
+        queue = new int[capacity];
+        linkCosts.ensureCapacity(capacity);
+        multipointRelays = Arrays.copyOf(multipointRelays, graph.words());
+        relaySetKnown = Arrays.copyOf(relaySetKnown, graph.words());
+        selectedAsRelay = Arrays.copyOf(selectedAsRelay, graph.words());
+    }
+
     public void addPeer(String deviceId, List<String> connectedPeers) {
-        synchronized (peerConnections) {
-            peerConnections.putIfAbsent(deviceId, new HashSet<>());
-            peerConnections.get(deviceId).addAll(connectedPeers);
-            updateHopCounts();
+        synchronized (graph) {
+            addPeerLocked(deviceId, connectedPeers);
+        }
+    }
+
+    private boolean addPeerLocked(String deviceId, Collection<String> connectedPeers) {
+        int node = intern(deviceId);
+        boolean changed = graph.addNode(node);
+        for (String peer : connectedPeers) {
+            int peerNode = intern(peer);
+            if (peerNode == node || !graph.addEdge(node, peerNode)) continue;
+            onEdgeAdded(node, peerNode);
+            changed = true;
+        }
+        if (changed) {
+            topologyEpoch++;
             notifyTopologyChange();
         }
+        return changed;
     }
 
     public void removePeer(String deviceId) {
-        synchronized (peerConnections) {
-            peerConnections.remove(deviceId);
-            // Remove this peer from others' connections
-            for (Set<String> connections : peerConnections.values()) {
-                connections.remove(deviceId);
-            }
-            hopCount.remove(deviceId);
-            updateHopCounts();
+        synchronized (graph) {
+            int node = graph.indexOf(deviceId);
+            if (node < 0) return;
+
+            removedTargets = graph.ensureSet(removedTargets);
+            System.arraycopy(graph.neighbors(node), 0, removedTargets, 0, graph.words());
+            if (!graph.removeNode(node)) return;
+
+            onNodeRemoved(node, removedTargets);
+            MeshGraph.clear(relaySetKnown, node);
+            MeshGraph.clear(selectedAsRelay, node);
+            linkCosts.removeNode(node);
+            topologyEpoch++;
             notifyTopologyChange();
         }
     }
 
-    private void updateHopCounts() {
-        // Reset hop counts
-        hopCount.clear();
-        hopCount.put(localDeviceId, 0);
+    /** Replaces the advertised connections of a device, adding and removing edges as needed. */
+    public void setPeerConnections(String deviceId, Collection<String> connectedPeers) {
+        synchronized (graph) {
+            int node = intern(deviceId);
+            boolean changed = false;
+            if (graph.contains(node)) {
+                // Intern first: it may widen the bitsets
+                for (String peer : connectedPeers) {
+                    intern(peer);
+                }
+                removedTargets = graph.ensureSet(removedTargets);
+                System.arraycopy(graph.neighbors(node), 0, removedTargets, 0, graph.words());
+                for (String peer : connectedPeers) {
+                    MeshGraph.clear(removedTargets, graph.indexOf(peer));
+                }
 
-        // BFS to calculate hop counts
-        Queue<String> queue = new LinkedList<>();
-        queue.add(localDeviceId);
+                for (int peer = MeshGraph.nextSetBit(removedTargets, 0); peer >= 0;
+                        peer = MeshGraph.nextSetBit(removedTargets, peer + 1)) {
+                    graph.removeEdge(node, peer);
+                    linkCosts.remove(node, peer);
+                    changed = true;
+                }
+                if (changed && hopCount[node] != UNREACHABLE) {
+                    onEdgesRemoved(hopCount[node], removedTargets);
+                }
+            }
+            if (changed) {
+                topologyEpoch++;
+            }
+            // addPeer bumps the epoch and notifies if anything was added
+            if (!addPeerLocked(deviceId, connectedPeers) && changed) {
+                notifyTopologyChange();
+            }
+        }
+    }
 
-        while (!queue.isEmpty()) {
-            String current = queue.poll();
-            int currentHops = hopCount.get(current);
+    /** Removes the links between two devices in both directions, leaving the rest of their links. */
+    public void removeLink(String deviceId, String peerId) {
+        synchronized (graph) {
+            int node = graph.indexOf(deviceId);
+            int peer = graph.indexOf(peerId);
+            if (node < 0 || peer < 0) return;
+            boolean changed = removeEdgeLocked(node, peer);
+            changed |= removeEdgeLocked(peer, node);
+            if (changed) {
+                topologyEpoch++;
+                notifyTopologyChange();
+            }
+        }
+    }
+
+    private boolean removeEdgeLocked(int from, int to) {
+        if (!graph.removeEdge(from, to)) return false;
+        linkCosts.remove(from, to);
+        if (hopCount[from] != UNREACHABLE) {
+            removedTargets = graph.ensureSet(removedTargets);
+            Arrays.fill(removedTargets, 0);
+            MeshGraph.set(removedTargets, to);
+            onEdgesRemoved(hopCount[from], removedTargets);
+        }
+        return true;
+    }
+
+    /**
+     * Records the measured quality of the link from one device to another.
+     * Routes are only recomputed when the cost moves noticeably.
+     *
+     * @return true if the change was large enough to reroute
+     */
+    public boolean updateLinkMetrics(String fromDeviceId, String toDeviceId, double etx, double rtt) {
+        synchronized (graph) {
+            int from = intern(fromDeviceId);
+            int to = intern(toDeviceId);
+            double previous = linkCosts.put(from, to, etx, rtt);
+            double updated = linkCosts.get(from, to);
+            if (previous == 0 || Math.abs(updated - previous) > previous * COST_CHANGE_THRESHOLD) {
+                topologyEpoch++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Returns the measured links of a device as peerId -> { etx, rtt }, for announcements. */
+    public JSONObject getLinkMetrics(String deviceId) {
+        JSONObject metrics = new JSONObject();
+        synchronized (graph) {
+            try {
+                int node = graph.indexOf(deviceId);
+                if (node >= 0) {
+                    linkCosts.toJSON(graph, node, metrics);
+                }
+            } catch (JSONException e) {
+                Log.e(TAG, "Error creating link metrics", e);
+            }
+        }
+        return metrics;
+    }
 
+    // Probes measure the round trip, so a link measured from either end is good enough
+    private double getLinkCost(int from, int to) {
+        double penalty = 0;
+        if ((from == localIndex && MeshGraph.get(suspectedPeers, to))
+                || (to == localIndex && MeshGraph.get(suspectedPeers, from))) {
+            penalty = SUSPECTED_LINK_PENALTY;
+        }
+        double cost = linkCosts.get(from, to);
+        if (cost == 0) {
+            cost = linkCosts.get(to, from);
+        }
+        return (cost != 0 ? cost : 1.0) + penalty;
+    }
+
+    /**
+     * Marks a direct peer whose failure detector has grown suspicious. Its link
+     * stays in the graph but costs so much that any other route wins.
+     */
+    public void setPeerSuspected(String peerId, boolean suspected) {
+        synchronized (graph) {
+            int peer = graph.indexOf(peerId);
+            if (peer < 0 || MeshGraph.get(suspectedPeers, peer) == suspected) return;
+            suspectedPeers = graph.ensureSet(suspectedPeers);
+            if (suspected) {
+                MeshGraph.set(suspectedPeers, peer);
+            } else {
+                MeshGraph.clear(suspectedPeers, peer);
+            }
+            topologyEpoch++;
+        }
+    }
+
+    public long getTopologyEpoch() {
+        synchronized (graph) {
+            return topologyEpoch;
+        }
+    }
+
+    // Edge insertion can only shorten paths: relax outwards from the new edge
+    private void onEdgeAdded(int from, int to) {
+        int fromHops = hopCount[from];
+        if (fromHops == UNREACHABLE || fromHops >= MAX_HOPS) return;
+        int toHops = hopCount[to];
+        if (toHops != UNREACHABLE && toHops <= fromHops + 1) return;
+
+        // Level-ordered from a single seed, so each node is queued at most once
+        hopCount[to] = fromHops + 1;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = to;
+        while (head < tail) {
+            int current = queue[head++];
+            int currentHops = hopCount[current];
             if (currentHops >= MAX_HOPS) continue;
 
-            Set<String> neighbors = peerConnections.getOrDefault(current, new HashSet<>());
-            for (String neighbor : neighbors) {
-                if (!hopCount.containsKey(neighbor)) {
-                    hopCount.put(neighbor, currentHops + 1);
-                    queue.add(neighbor);
+            for (int neighbor = graph.nextNeighbor(current, 0); neighbor >= 0; neighbor = graph.nextNeighbor(current, neighbor + 1)) {
+                int neighborHops = hopCount[neighbor];
+                if (neighborHops == UNREACHABLE || neighborHops > currentHops + 1) {
+                    hopCount[neighbor] = currentHops + 1;
+                    queue[tail++] = neighbor;
                 }
             }
         }
     }
 
+    private void onNodeRemoved(int node, long[] outgoing) {
+        int removedHops = hopCount[node];
+        hopCount[node] = UNREACHABLE;
+        if (removedHops == UNREACHABLE) return;
+        onEdgesRemoved(removedHops, outgoing);
+    }
+
+    /*
+     * Edge and node removal can only lengthen paths. Only nodes whose every
+     * shortest path ran through a removed edge are affected: find them level
+     * by level, then recompute their hop counts from the unaffected boundary.
+     */
+    private void onEdgesRemoved(int fromHops, long[] removed) {
+        for (int child = MeshGraph.nextSetBit(removed, 0); child >= 0; child = MeshGraph.nextSetBit(removed, child + 1)) {
+            if (hopCount[child] == fromHops + 1) {
+                levels[fromHops + 1].add(child);
+            }
+        }
+
+        // Phase 1: collect nodes that lost all their shortest-path parents
+        affected = graph.ensureSet(affected);
+        Arrays.fill(affected, 0);
+        boolean anyAffected = false;
+        for (int level = 1; level <= MAX_HOPS; level++) {
+            IntList pending = levels[level];
+            for (int i = 0; i < pending.size; i++) {
+                int current = pending.items[i];
+                if (MeshGraph.get(affected, current) || hasParentOutside(current, level, affected)) continue;
+                MeshGraph.set(affected, current);
+                anyAffected = true;
+                if (level == MAX_HOPS) continue;
+                for (int child = graph.nextNeighbor(current, 0); child >= 0; child = graph.nextNeighbor(current, child + 1)) {
+                    if (hopCount[child] == level + 1) {
+                        levels[level + 1].add(child);
+                    }
+                }
+            }
+            pending.size = 0;
+        }
+        if (!anyAffected) return;
+
+        // Phase 2: seed affected nodes from unaffected in-neighbors, then relax within the region
+        for (int node = MeshGraph.nextSetBit(affected, 0); node >= 0; node = MeshGraph.nextSetBit(affected, node + 1)) {
+            hopCount[node] = UNREACHABLE;
+        }
+        for (int node = MeshGraph.nextSetBit(affected, 0); node >= 0; node = MeshGraph.nextSetBit(affected, node + 1)) {
+            int best = Integer.MAX_VALUE;
+            for (int parent = graph.nextIncoming(node, 0); parent >= 0; parent = graph.nextIncoming(node, parent + 1)) {
+                int parentHops = hopCount[parent];
+                if (parentHops != UNREACHABLE && parentHops < MAX_HOPS && !MeshGraph.get(affected, parent)) {
+                    best = Math.min(best, parentHops + 1);
+                }
+            }
+            if (best != Integer.MAX_VALUE) {
+                hopCount[node] = best;
+                levels[best].add(node);
+            }
+        }
+        for (int level = 1; level <= MAX_HOPS; level++) {
+            IntList pending = levels[level];
+            for (int i = 0; level < MAX_HOPS && i < pending.size; i++) {
+                int current = pending.items[i];
+                if (hopCount[current] != level) continue; // Stale entry
+                for (int child = graph.nextNeighbor(current, 0); child >= 0; child = graph.nextNeighbor(current, child + 1)) {
+                    if (!MeshGraph.get(affected, child)) continue;
+                    int childHops = hopCount[child];
+                    if (childHops == UNREACHABLE || childHops > level + 1) {
+                        hopCount[child] = level + 1;
+                        levels[level + 1].add(child);
+                    }
+                }
+            }
+            pending.size = 0;
+        }
+    }
+
+    private boolean hasParentOutside(int node, int level, long[] excluded) {
+        for (int parent = graph.nextIncoming(node, 0); parent >= 0; parent = graph.nextIncoming(node, parent + 1)) {
+            if (hopCount[parent] == level - 1 && !MeshGraph.get(excluded, parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Rebuild the next-hop table at most once per topology epoch, over
+     * measured link costs so a clean longer path beats a lossy or congested
+     * shorter one. Messages can't travel further than MAX_HOPS, so this is
+     * Bellman-Ford cut off after MAX_HOPS rounds: round h only relaxes links
+     * out of nodes whose route improved in round h - 1. A hop cap inside
+     * Dijkstra would be wrong here, since a node first settled over a cheap
+     * but long path could no longer lead on to targets that are only in reach
+     * over a costlier, shorter path to it.
+     */
+    private void ensureRoutingTable() {
+        if (routingEpoch == topologyEpoch) return;
+        computeRoutes(routingTable, null, UNREACHABLE);
+        routingEpoch = topologyEpoch;
+    }
+
+    // Fills the table with cheapest routes that avoid the excluded relays and, if set, one direct link
+    private void computeRoutes(RouteTable table, long[] excludedRelays, int excludedDirectPeer) {
+        int nodeCount = graph.size();
+        table.reset(graph.capacity());
+        table.cost[0][localIndex] = 0;
+        table.distance[0][localIndex] = 0;
+        frontier = graph.ensureSet(frontier);
+        nextFrontier = graph.ensureSet(nextFrontier);
+        Arrays.fill(frontier, 0);
+        MeshGraph.set(frontier, localIndex);
+
+        for (int h = 1; h <= MAX_HOPS && MeshGraph.nextSetBit(frontier, 0) >= 0; h++) {
+            table.extend(h, nodeCount);
+            double[] fromCost = table.cost[h - 1];
+            double[] cost = table.cost[h];
+            Arrays.fill(nextFrontier, 0);
+
+            for (int current = MeshGraph.nextSetBit(frontier, 0); current >= 0; current = MeshGraph.nextSetBit(frontier, current + 1)) {
+                boolean isLocal = current == localIndex;
+                // Excluded relays may still be reached as a destination, just not routed through
+                if (!isLocal && excludedRelays != null && MeshGraph.get(excludedRelays, current)) continue;
+
+                for (int neighbor = graph.nextNeighbor(current, 0); neighbor >= 0; neighbor = graph.nextNeighbor(current, neighbor + 1)) {
+                    if (neighbor == localIndex) continue;
+                    if (isLocal && neighbor == excludedDirectPeer) continue;
+                    double candidate = fromCost[current] + getLinkCost(current, neighbor);
+                    if (cost[neighbor] <= candidate) continue;
+                    cost[neighbor] = candidate;
+                    table.previous[h][neighbor] = current;
+                    table.distance[h][neighbor] = h;
+                    table.nextHop[h][neighbor] = isLocal ? neighbor : table.nextHop[h - 1][current];
+                    MeshGraph.set(nextFrontier, neighbor);
+                }
+            }
+
+            long[] swap = frontier;
+            frontier = nextFrontier;
+            nextFrontier = swap;
+        }
+    }
+
+    /** Returns the direct peer to forward to for the target, or null if unreachable. */
+    public String getNextHop(String targetDeviceId) {
+        synchronized (graph) {
+            ensureRoutingTable();
+            int target = graph.indexOf(targetDeviceId);
+            return routingTable.hasRoute(target) ? graph.deviceId(routingTable.nextHop(target)) : null;
+        }
+    }
+
+    /** Devices we currently have a route to, not including us. */
+    public List<String> getReachableDevices() {
+        synchronized (graph) {
+            ensureRoutingTable();
+            List<String> reachable = new ArrayList<>();
+            for (int node = graph.nextNode(0); node >= 0; node = graph.nextNode(node + 1)) {
+                if (node != localIndex && routingTable.hasRoute(node)) {
+                    reachable.add(graph.deviceId(node));
+                }
+            }
+            return reachable;
+        }
+    }
+
+    /** Returns the hop count of the cheapest route to the target, or Integer.MAX_VALUE if unreachable. */
+    public int getRouteDistance(String targetDeviceId) {
+        synchronized (graph) {
+            if (localDeviceId.equals(targetDeviceId)) return 0;
+            ensureRoutingTable();
+            int target = graph.indexOf(targetDeviceId);
+            return routingTable.hasRoute(target) ? routingTable.distance(target) : Integer.MAX_VALUE;
+        }
+    }
+
+    /** Returns the link cost of the cheapest route to the target, or Double.MAX_VALUE if unreachable. */
+    public double getRouteCost(String targetDeviceId) {
+        synchronized (graph) {
+            if (localDeviceId.equals(targetDeviceId)) return 0;
+            ensureRoutingTable();
+            int target = graph.indexOf(targetDeviceId);
+            return routingTable.hasRoute(target) ? routingTable.cost(target) : Double.MAX_VALUE;
+        }
+    }
+
     public List<String> getOptimalRoute(String targetDeviceId) {
-        if (!peerConnections.containsKey(targetDeviceId)) {
+        synchronized (graph) {
+            ensureRoutingTable();
+            return buildPath(routingTable, graph.indexOf(targetDeviceId));
+        }
+    }
+
+    /**
+     * Returns up to k node-disjoint routes to the target, cheapest first, each
+     * starting with this device. Every route after the first avoids the relays
+     * (and direct link) used by the ones before it, so one bad relay can't
+     * delay all copies. Greedy, so it may find fewer than k where an optimal
+     * disjoint-path search would not.
+     */
+    public List<List<String>> getDisjointRoutes(String targetDeviceId, int k) {
+        synchronized (graph) {
+            List<List<String>> routes = new ArrayList<>(k);
+            int target = graph.indexOf(targetDeviceId);
+            List<String> route = getOptimalRoute(targetDeviceId);
+            if (route.isEmpty()) return routes;
+            routes.add(route);
+
+            long[] usedRelays = new long[graph.words()];
+            int usedDirectPeer = UNREACHABLE;
+            while (routes.size() < k) {
+                if (route.size() == 2) {
+                    usedDirectPeer = target;
+                } else {
+                    for (String relay : route.subList(1, route.size() - 1)) {
+                        MeshGraph.set(usedRelays, graph.indexOf(relay));
+                    }
+                }
+                computeRoutes(disjointRoutes, usedRelays, usedDirectPeer);
+                route = buildPath(disjointRoutes, target);
+                if (route.isEmpty()) break;
+                routes.add(route);
+            }
+            return routes;
+        }
+    }
+
+    // Walk predecessors back to us, then reverse
+    private List<String> buildPath(RouteTable table, int target) {
+        if (!table.hasRoute(target)) {
             return Collections.emptyList();
         }
+        List<String> path = new ArrayList<>(table.distance(target) + 1);
+        int row = table.last;
+        for (int node = target; node != localIndex; ) {
+            path.add(graph.deviceId(node));
+            // The route to node last improved in the row matching its hop count,
+            // and its predecessor's route is the one a row earlier
+            int hops = table.distance[row][node];
+            node = table.previous[hops][node];
+            row = hops - 1;
+        }
+        path.add(localDeviceId);
+        Collections.reverse(path);
+        return path;
+    }
+
+    /*
+     * OLSR-style multipoint relay selection: a small subset of our direct
+     * peers whose own links cover every 2-hop neighbor. Peers that are the
+     * only path to some 2-hop neighbor are taken first, then the peer that
+     * covers the most remaining 2-hop neighbors until all are covered, with
+     * ties going to the better link.
+     */
+    private void ensureMultipointRelays() {
+        if (mprEpoch == topologyEpoch) return;
 
-        // Dijkstra's algorithm for shortest path
-        Map<String, Integer> distance = new HashMap<>();
-        Map<String, String> previous = new HashMap<>();
-        PriorityQueue<String> queue = new PriorityQueue<>(
-            Comparator.comparingInt(a -> distance.getOrDefault(a, Integer.MAX_VALUE))
-        );
+        long[] oneHop = graph.neighbors(localIndex);
+        twoHop = graph.ensureSet(twoHop);
+        uncovered = graph.ensureSet(uncovered);
+        graph.twoHopInto(localIndex, twoHop);
+        Arrays.fill(multipointRelays, 0);
 
-        for (String deviceId : peerConnections.keySet()) {
-            distance.put(deviceId, Integer.MAX_VALUE);
+        for (int node = MeshGraph.nextSetBit(twoHop, 0); node >= 0; node = MeshGraph.nextSetBit(twoHop, node + 1)) {
+            int soleCoverer = UNREACHABLE;
+            int coverers = 0;
+            for (int parent = graph.nextIncoming(node, 0); parent >= 0 && coverers < 2; parent = graph.nextIncoming(node, parent + 1)) {
+                if (MeshGraph.get(oneHop, parent)) {
+                    soleCoverer = parent;
+                    coverers++;
+                }
+            }
+            if (coverers == 1) {
+                MeshGraph.set(multipointRelays, soleCoverer);
+            }
         }
-        distance.put(localDeviceId, 0);
-        queue.add(localDeviceId);
 
-        while (!queue.isEmpty()) {
-            String current = queue.poll();
-            if (current.equals(targetDeviceId)) break;
+        System.arraycopy(twoHop, 0, uncovered, 0, graph.words());
+        for (int relay = MeshGraph.nextSetBit(multipointRelays, 0); relay >= 0; relay = MeshGraph.nextSetBit(multipointRelays, relay + 1)) {
+            removeNeighbors(uncovered, relay);
+        }
 
-            Set<String> neighbors = peerConnections.getOrDefault(current, new HashSet<>());
-            for (String neighbor : neighbors) {
-                int alt = distance.get(current) + 1;
-                if (alt < distance.getOrDefault(neighbor, Integer.MAX_VALUE)) {
-                    distance.put(neighbor, alt);
-                    previous.put(neighbor, current);
-                    queue.add(neighbor);
+        while (MeshGraph.nextSetBit(uncovered, 0) >= 0) {
+            int best = UNREACHABLE;
+            int bestCount = 0;
+            double bestCost = Double.MAX_VALUE;
+            for (int peer = MeshGraph.nextSetBit(oneHop, 0); peer >= 0; peer = MeshGraph.nextSetBit(oneHop, peer + 1)) {
+                if (MeshGraph.get(multipointRelays, peer)) continue;
+                int count = graph.countNeighborsIn(peer, uncovered);
+                if (count == 0) continue;
+                double cost = getLinkCost(localIndex, peer);
+                if (count > bestCount || (count == bestCount && cost < bestCost)) {
+                    best = peer;
+                    bestCount = count;
+                    bestCost = cost;
                 }
             }
+            if (best == UNREACHABLE) break;
+            MeshGraph.set(multipointRelays, best);
+            removeNeighbors(uncovered, best);
         }
 
-        // Build path
-        List<String> path = new ArrayList<>();
-        String current = targetDeviceId;
-        while (previous.containsKey(current)) {
-            path.add(0, current);
-            current = previous.get(current);
+        mprEpoch = topologyEpoch;
+    }
+
+    private void removeNeighbors(long[] set, int node) {
+        long[] row = graph.neighbors(node);
+        for (int w = 0; w < graph.words(); w++) {
+            set[w] &= ~row[w];
         }
-        if (!path.isEmpty()) {
-            path.add(0, localDeviceId);
+    }
+
+    /** Returns the direct peers selected to rebroadcast our floods. */
+    public Set<String> getMultipointRelays() {
+        synchronized (graph) {
+            ensureMultipointRelays();
+            return toDeviceIds(multipointRelays);
         }
-        return path;
+    }
+
+    /** Records the relay set a neighbor advertised in its announcement. */
+    public void updateNeighborRelays(String neighborId, Collection<String> relays) {
+        synchronized (graph) {
+            int neighbor = intern(neighborId);
+            MeshGraph.set(relaySetKnown, neighbor);
+            if (relays.contains(localDeviceId)) {
+                MeshGraph.set(selectedAsRelay, neighbor);
+            } else {
+                MeshGraph.clear(selectedAsRelay, neighbor);
+            }
+        }
+    }
+
+    /**
+     * Whether we should rebroadcast a flood received from the given neighbor:
+     * only if it selected us as one of its relays. Neighbors that haven't
+     * advertised a relay set yet are relayed for, to stay safe.
+     */
+    public boolean isRelayFor(String neighborId) {
+        synchronized (graph) {
+            int neighbor = graph.indexOf(neighborId);
+            return neighbor < 0 || !MeshGraph.get(relaySetKnown, neighbor) || MeshGraph.get(selectedAsRelay, neighbor);
+        }
+    }
+
+    /**
+     * Number of the device's advertised neighbors that are not already within
+     * two hops of us, i.e. how much new mesh a direct link to it would reach.
+     */
+    public int countUnreachedNeighbors(String deviceId) {
+        synchronized (graph) {
+            int node = graph.indexOf(deviceId);
+            if (node < 0) return 0;
+            return graph.countNeighborsNotIn(node, knownNeighborhoodLocked());
+        }
+    }
+
+    /** Us plus every device within two hops. */
+    public Set<String> getKnownNeighborhood() {
+        synchronized (graph) {
+            return toDeviceIds(knownNeighborhoodLocked());
+        }
+    }
+
+    private long[] knownNeighborhoodLocked() {
+        if (knownNeighborhoodEpoch != topologyEpoch || knownNeighborhood == null || knownNeighborhood.length < graph.words()) {
+            knownNeighborhood = graph.ensureSet(knownNeighborhood);
+            graph.twoHopInto(localIndex, knownNeighborhood);
+            long[] oneHop = graph.neighbors(localIndex);
+            for (int w = 0; w < graph.words(); w++) {
+                knownNeighborhood[w] |= oneHop[w];
+            }
+            MeshGraph.set(knownNeighborhood, localIndex);
+            knownNeighborhoodEpoch = topologyEpoch;
+        }
+        return knownNeighborhood;
+    }
+
+    private Set<String> toDeviceIds(long[] set) {
+        Set<String> deviceIds = new HashSet<>();
+        for (int node = MeshGraph.nextSetBit(set, 0); node >= 0; node = MeshGraph.nextSetBit(set, node + 1)) {
+            deviceIds.add(graph.deviceId(node));
+        }
+        return deviceIds;
     }
 
     public JSONObject getTopologySnapshot() {
         JSONObject topology = new JSONObject();
-        try {
-            topology.put("localDeviceId", localDeviceId);
-            
-            JSONObject connections = new JSONObject();
-            for (Map.Entry<String, Set<String>> entry : peerConnections.entrySet()) {
-                JSONArray peers = new JSONArray();
-                for (String peer : entry.getValue()) {
-                    peers.put(peer);
+        synchronized (graph) {
+            try {
+                topology.put("localDeviceId", localDeviceId);
+
+                JSONObject connections = new JSONObject();
+                for (int node = graph.nextNode(0); node >= 0; node = graph.nextNode(node + 1)) {
+                    JSONArray peers = new JSONArray();
+                    for (int peer = graph.nextNeighbor(node, 0); peer >= 0; peer = graph.nextNeighbor(node, peer + 1)) {
+                        peers.put(graph.deviceId(peer));
+                    }
+                    connections.put(graph.deviceId(node), peers);
+                }
+                topology.put("connections", connections);
+
+                JSONObject hops = new JSONObject();
+                for (int node = 0; node < graph.size(); node++) {
+                    if (hopCount[node] != UNREACHABLE) {
+                        hops.put(graph.deviceId(node), hopCount[node]);
+                    }
+                }
+                topology.put("hopCounts", hops);
+
+            } catch (JSONException e) {
+                Log.e(TAG, "Error creating topology snapshot", e);
+            }
+        }
+        return topology;
+    }
+
+    /**
+     * Returns the full topology at the version of the latest topologyChange
+     * event. Pending changes are emitted first, so later deltas apply cleanly
+     * on top of the returned snapshot.
+     */
+    public JSONObject getVersionedTopology() {
+        synchronized (topologyEventLock) {
+            JSONObject topology;
+            JSObject change;
+            synchronized (graph) {
+                change = takeTopologyChange();
+                topology = getTopologySnapshot();
+                try {
+                    topology.put("version", topologyVersion);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Error creating topology snapshot", e);
                 }
-                connections.put(entry.getKey(), peers);
             }
-            topology.put("connections", connections);
-            
+            emitTopologyChange(change);
+            return topology;
+        }
+    }
+
+    public void setTopologyEventInterval(long interval) {
+        synchronized (graph) {
+            topologyEventInterval = interval > 0 ? interval : DEFAULT_TOPOLOGY_EVENT_INTERVAL;
+        }
+    }
+
+    public void stop() {
+        synchronized (graph) {
+            if (topologyEventTimer != null) {
+                topologyEventTimer.cancel();
+                topologyEventTimer = null;
+            }
+            topologyEventPending = false;
+        }
+    }
+
+    // Coalesce changes within the event interval into one delta event
+    private void notifyTopologyChange() {
+        if (topologyEventTimer == null || topologyEventPending) return;
+        topologyEventPending = true;
+        topologyEventTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (topologyEventLock) {
+                    JSObject change;
+                    synchronized (graph) {
+                        change = takeTopologyChange();
+                    }
+                    emitTopologyChange(change);
+                }
+            }
+        }, topologyEventInterval);
+    }
+
+    /*
+     * Returns the edge and hop-count changes since the last emitted version
+     * and advances to the current state, or null if nothing changed. Called
+     * with the graph locked; the caller emits the delta after releasing it,
+     * still holding topologyEventLock so deltas reach JS in version order.
+     */
+    private JSObject takeTopologyChange() {
+        topologyEventPending = false;
+        try {
+            JSONArray addedEdges = new JSONArray();
+            JSONArray removedEdges = new JSONArray();
             JSONObject hops = new JSONObject();
-            for (Map.Entry<String, Integer> entry : hopCount.entrySet()) {
-                hops.put(entry.getKey(), entry.getValue());
+            JSONArray unreachable = new JSONArray();
+            int nodeCount = graph.size();
+            for (int node = 0; node < nodeCount; node++) {
+                long[] current = graph.neighbors(node);
+                long[] emitted = node < emittedConnections.length ? emittedConnections[node] : null;
+                for (int w = 0; w < graph.words(); w++) {
+                    long before = emitted != null && w < emitted.length ? emitted[w] : 0;
+                    putEdges(addedEdges, node, w, current[w] & ~before);
+                    putEdges(removedEdges, node, w, before & ~current[w]);
+                }
+
+                int emittedHops = node < emittedHopCounts.length ? emittedHopCounts[node] : UNREACHABLE;
+                if (hopCount[node] != emittedHops) {
+                    if (hopCount[node] == UNREACHABLE) {
+                        unreachable.put(graph.deviceId(node));
+                    } else {
+                        hops.put(graph.deviceId(node), hopCount[node]);
+                    }
+                }
+            }
+
+            if (addedEdges.length() == 0 && removedEdges.length() == 0
+                    && hops.length() == 0 && unreachable.length() == 0) {
+                return null;
+            }
+
+            JSObject event = new JSObject();
+            event.put("baseVersion", topologyVersion);
+            event.put("version", ++topologyVersion);
+            event.put("addedEdges", addedEdges);
+            event.put("removedEdges", removedEdges);
+            event.put("hopCounts", hops);
+            event.put("unreachable", unreachable);
+
+            if (emittedConnections.length < graph.capacity()) {
+                emittedConnections = Arrays.copyOf(emittedConnections, graph.capacity());
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                if (emittedConnections[node] == null || emittedConnections[node].length < graph.words()) {
+                    emittedConnections[node] = new long[graph.words()];
+                }
+                System.arraycopy(graph.neighbors(node), 0, emittedConnections[node], 0, graph.words());
             }
-            topology.put("hopCounts", hops);
-            
+            if (emittedHopCounts.length < graph.capacity()) {
+                emittedHopCounts = new int[graph.capacity()];
+            }
+            System.arraycopy(hopCount, 0, emittedHopCounts, 0, graph.capacity());
+            return event;
         } catch (JSONException e) {
-            Log.e(TAG, "Error creating topology snapshot", e);
+            Log.e(TAG, "Error creating topology change event", e);
+            return null;
         }
-        return topology;
     }
 
-    private void notifyTopologyChange() {
-        JSObject event = new JSObject();
-        event.put("topology", getTopologySnapshot());
-        plugin.notifyWebRTCEvent("topologyChange", event);
+    private void emitTopologyChange(JSObject change) {
+        if (change == null) return;
+        plugin.getFlightRecorder().record(FlightRecorder.TOPOLOGY_CHANGE, change.optLong("version"));
+        plugin.notifyWebRTCEvent("topologyChange", change);
+    }
+
+    private void putEdges(JSONArray edges, int from, int word, long bits) {
+        while (bits != 0) {
+            int to = (word << 6) + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            JSONArray edge = new JSONArray();
+            edge.put(graph.deviceId(from));
+            edge.put(graph.deviceId(to));
+            edges.put(edge);
+        }
     }
 
     public boolean shouldRelayMessage(String sourceDeviceId, String targetDeviceId) {
-        // Check if we're on the optimal path between source and target
-        List<String> optimalPath = getOptimalRoute(targetDeviceId);
-        int sourceIndex = optimalPath.indexOf(sourceDeviceId);
-        int localIndex = optimalPath.indexOf(localDeviceId);
-        int targetIndex = optimalPath.indexOf(targetDeviceId);
-        
-        return sourceIndex != -1 && localIndex != -1 && targetIndex != -1 
-            && sourceIndex < localIndex && localIndex < targetIndex;
+        // Relay only if we have a route to the target that doesn't lead back to the source
+        String nextHop = getNextHop(targetDeviceId);
+        return nextHop != null && !nextHop.equals(sourceDeviceId);
     }
 
+    /** Returns a snapshot of our direct peers. */
     public Set<String> getDirectPeers() {
-        return peerConnections.getOrDefault(localDeviceId, new HashSet<>());
+        synchronized (graph) {
+            return toDeviceIds(graph.neighbors(localIndex));
+        }
     }
 
     public int getHopCount(String deviceId) {
-        return hopCount.getOrDefault(deviceId, Integer.MAX_VALUE);
+        synchronized (graph) {
+            int node = graph.indexOf(deviceId);
+            return node < 0 || hopCount[node] == UNREACHABLE ? Integer.MAX_VALUE : hopCount[node];
+        }
     }
 
+    /*
+     * Only our link to the peer is known to be gone; the peer may still be
+     * reachable through others, and its own links are withdrawn by its
+     * link-state advertisements.
+     */
     public void handlePeerDisconnection(String deviceId) {
-        synchronized (peerConnections) {
-            removePeer(deviceId);
-            reorganizeMesh();
+        List<JSObject> requests = new ArrayList<>();
+        synchronized (graph) {
+            removeLink(localDeviceId, deviceId);
+            int peer = graph.indexOf(deviceId);
+            if (peer >= 0) {
+                MeshGraph.clear(suspectedPeers, peer);
+            }
+            reorganizeMesh(requests);
+        }
+        // Requests go out once the graph is unlocked
+        for (JSObject request : requests) {
+            plugin.notifyWebRTCEvent(request.getString("type"), request);
         }
     }
 
-    private void reorganizeMesh() {
+    private void reorganizeMesh(List<JSObject> requests) {
         long now = System.currentTimeMillis();
         if (now - lastReorganizationTime.getOrDefault(localDeviceId, 0L) < REORGANIZATION_COOLDOWN) {
             return; // Prevent too frequent reorganizations
@@ -188,85 +1038,64 @@ public class MeshTopologyManager {
         lastReorganizationTime.put(localDeviceId, now);
 
         // Check if we need more direct connections
-        Set<String> directPeers = getDirectPeers();
-        if (directPeers.size() < MIN_PEERS_PER_NODE) {
-            findNewPeers();
+        if (graph.degree(localIndex) < MIN_PEERS_PER_NODE) {
+            findNewPeers(requests);
         }
 
         // Balance the mesh if needed
-        balanceMeshConnections();
+        balanceMeshConnections(requests);
 
         // Notify about topology changes
         notifyTopologyChange();
     }
 
-    private void findNewPeers() {
-        Set<String> potentialPeers = new HashSet<>();
-        Set<String> directPeers = getDirectPeers();
-
-        // Find peers of peers (2-hop discovery)
-        for (String peer : directPeers) {
-            Set<String> peerConnections = this.peerConnections.getOrDefault(peer, new HashSet<>());
-            potentialPeers.addAll(peerConnections);
+    private void findNewPeers(List<JSObject> requests) {
+        // Peers of peers (2-hop discovery)
+        twoHop = graph.ensureSet(twoHop);
+        graph.twoHopInto(localIndex, twoHop);
+        List<Integer> potentialPeers = new ArrayList<>();
+        for (int node = MeshGraph.nextSetBit(twoHop, 0); node >= 0; node = MeshGraph.nextSetBit(twoHop, node + 1)) {
+            potentialPeers.add(node);
         }
 
-        // Remove existing connections and self
-        potentialPeers.removeAll(directPeers);
-        potentialPeers.remove(localDeviceId);
-
-        // Sort potential peers by connection count (prefer less connected peers)
-        List<String> sortedPeers = new ArrayList<>(potentialPeers);
-        sortedPeers.sort((a, b) -> {
-            int countA = this.peerConnections.getOrDefault(a, new HashSet<>()).size();
-            int countB = this.peerConnections.getOrDefault(b, new HashSet<>()).size();
-            return Integer.compare(countA, countB);
-        });
+        // Prefer less connected peers
+        potentialPeers.sort((a, b) -> Integer.compare(graph.degree(a), graph.degree(b)));
 
-        // Request new connections
-        for (String newPeer : sortedPeers) {
-            if (directPeers.size() >= MIN_PEERS_PER_NODE) break;
-            requestNewConnection(newPeer);
+        // Request just enough new connections to reach the minimum
+        int needed = MIN_PEERS_PER_NODE - graph.degree(localIndex);
+        for (int i = 0; i < needed && i < potentialPeers.size(); i++) {
+            requests.add(createConnectionRequest("connectionRequest", graph.deviceId(potentialPeers.get(i))));
         }
     }
 
-    private void balanceMeshConnections() {
-        Set<String> directPeers = getDirectPeers();
-        if (directPeers.size() > MAX_PEERS_PER_NODE) {
-            // Find peers with too many connections
-            List<String> overconnectedPeers = new ArrayList<>(directPeers);
-            overconnectedPeers.sort((a, b) -> {
-                int countA = this.peerConnections.getOrDefault(a, new HashSet<>()).size();
-                int countB = this.peerConnections.getOrDefault(b, new HashSet<>()).size();
-                return Integer.compare(countB, countA); // Descending order
-            });
+    private void balanceMeshConnections(List<JSObject> requests) {
+        int excess = graph.degree(localIndex) - MAX_PEERS_PER_NODE;
+        if (excess <= 0) return;
 
-            // Remove excess connections
-            while (directPeers.size() > MAX_PEERS_PER_NODE) {
-                String peerToRemove = overconnectedPeers.remove(0);
-                requestDisconnection(peerToRemove);
-            }
+        // Drop links to the most connected peers first
+        List<Integer> overconnectedPeers = new ArrayList<>();
+        long[] directPeers = graph.neighbors(localIndex);
+        for (int peer = MeshGraph.nextSetBit(directPeers, 0); peer >= 0; peer = MeshGraph.nextSetBit(directPeers, peer + 1)) {
+            overconnectedPeers.add(peer);
         }
-    }
+        overconnectedPeers.sort((a, b) -> Integer.compare(graph.degree(b), graph.degree(a)));
 
-    private void requestNewConnection(String targetPeerId) {
-        JSObject request = new JSObject();
-        request.put("type", "connectionRequest");
-        request.put("sourceId", localDeviceId);
-        request.put("targetId", targetPeerId);
-        plugin.notifyWebRTCEvent("connectionRequest", request);
+        for (int i = 0; i < excess; i++) {
+            requests.add(createConnectionRequest("disconnectionRequest", graph.deviceId(overconnectedPeers.get(i))));
+        }
     }
 
-    private void requestDisconnection(String peerId) {
+    // A connectionRequest or disconnectionRequest event for the peer
+    private JSObject createConnectionRequest(String type, String targetPeerId) {
         JSObject request = new JSObject();
-        request.put("type", "disconnectionRequest");
+        request.put("type", type);
         request.put("sourceId", localDeviceId);
-        request.put("targetId", peerId);
-        plugin.notifyWebRTCEvent("disconnectionRequest", request);
+        request.put("targetId", targetPeerId);
+        return request;
     }
 
     public void handleConnectionRequest(String sourceId) {
-        Set<String> directPeers = getDirectPeers();
-        if (directPeers.size() < MAX_PEERS_PER_NODE) {
+        if (getDegree(localDeviceId) < MAX_PEERS_PER_NODE) {
             JSObject response = new JSObject();
             response.put("type", "connectionResponse");
             response.put("sourceId", localDeviceId);
@@ -277,52 +1106,48 @@ public class MeshTopologyManager {
     }
 
     public boolean shouldAcceptConnection(String peerId) {
-        Set<String> directPeers = getDirectPeers();
-        if (directPeers.size() >= MAX_PEERS_PER_NODE) {
+        if (getDegree(localDeviceId) >= MAX_PEERS_PER_NODE) {
             return false;
         }
 
         // Check if this connection would improve mesh stability
-        int peerConnections = this.peerConnections.getOrDefault(peerId, new HashSet<>()).size();
-        return peerConnections < MAX_PEERS_PER_NODE;
+        return getDegree(peerId) < MAX_PEERS_PER_NODE;
+    }
+
+    private int getDegree(String deviceId) {
+        synchronized (graph) {
+            int node = graph.indexOf(deviceId);
+            return node < 0 ? 0 : graph.degree(node);
+        }
     }
 
     public JSONObject getMeshHealth() {
         JSONObject health = new JSONObject();
-        try {
-            int totalPeers = peerConnections.size();
-            int avgConnections = 0;
-            if (totalPeers > 0) {
-                for (Set<String> connections : peerConnections.values()) {
-                    avgConnections += connections.size();
-                }
-                avgConnections /= totalPeers;
-            }
+        synchronized (graph) {
+            try {
+                int totalPeers = graph.getNodeCount();
+                int avgConnections = totalPeers > 0 ? graph.getEdgeCount() / totalPeers : 0;
 
-            health.put("totalPeers", totalPeers);
-            health.put("directPeers", getDirectPeers().size());
-            health.put("averageConnections", avgConnections);
-            health.put("meshStability", calculateMeshStability());
-        } catch (JSONException e) {
-            Log.e(TAG, "Error creating mesh health snapshot", e);
+                health.put("totalPeers", totalPeers);
+                health.put("directPeers", graph.degree(localIndex));
+                health.put("averageConnections", avgConnections);
+                health.put("meshStability", calculateMeshStability());
+            } catch (JSONException e) {
+                Log.e(TAG, "Error creating mesh health snapshot", e);
+            }
         }
         return health;
     }
 
     private double calculateMeshStability() {
-        if (peerConnections.isEmpty()) return 1.0;
-
-        int totalConnections = 0;
-        int optimalConnections = peerConnections.size() * MIN_PEERS_PER_NODE;
-
-        for (Set<String> connections : peerConnections.values()) {
-            totalConnections += connections.size();
-        }
+        int nodeCount = graph.getNodeCount();
+        if (nodeCount == 0) return 1.0;
 
-        return Math.min(1.0, totalConnections / (double) optimalConnections);
+        int optimalConnections = nodeCount * MIN_PEERS_PER_NODE;
+        return Math.min(1.0, graph.getEdgeCount() / (double) optimalConnections);
     }
 
     public int getMaxHops() {
         return MAX_HOPS;
     }
-} 
\ No newline at end of file
+}
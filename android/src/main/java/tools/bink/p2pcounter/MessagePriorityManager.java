@@ -2,19 +2,30 @@ package tools.bink.p2pcounter;
 
 import android.util.Log;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessagePriorityManager {
     private static final String TAG = "MessagePriorityManager";
     private final PriorityBlockingQueue<PrioritizedMessage> messageQueue;
-    private final Map<String, Set<String>> messageAcks;
-    private final Map<String, PrioritizedMessage> pendingMessages;
+    private final Map<String, Set<String>> messageAcks; // By trackingId
+    private final Map<String, PendingMessage> pendingMessages; // By trackingId
     private final AtomicInteger sequenceNumber;
+    private final RetransmitTimeouts retransmitTimeouts;
+    private final MeshMetrics.Counter enqueued;
+    private final MeshMetrics.Counter retries;
+    private final FlightRecorder flightRecorder;
     private Timer retryTimer;
-    private static final long RETRY_INTERVAL = 1000; // 1 second
+    private static final long RETRY_INTERVAL = 1000; // 1 second, until a peer's RTT is known
+    private static final long RETRY_CHECK_INTERVAL = 100; // Resolution of RTT-based timeouts
     private static final int MAX_RETRIES = 3;
 
+    public interface RetransmitTimeouts {
+        /** Retransmit timeout for a peer in ms, or 0 if its RTT isn't known yet. */
+        long get(String peerId);
+    }
+
     public enum Priority {
         VERY_HIGH,
         HIGH,
@@ -26,6 +37,9 @@ public class MessagePriorityManager {
         public final String message;
         public final Priority priority;
         public final Set<String> targetPeers;
+        public String trackingId; // Wire _messageId, acked by receivers and used for latency tracking
+        public String type;
+        public boolean traced; // Frames are stamped with their send time
         final String messageId;
         final long timestamp;
         int retryCount;
@@ -56,37 +70,100 @@ public class MessagePriorityManager {
         }
     }
 
-    public MessagePriorityManager() {
+    // The chunks of one wire message, tracked until all targets ack
+    static class PendingMessage {
+        // Chunks sent to each target; copies of one message (e.g. one per
+        // disjoint route) share the trackingId but not their frames
+        final Map<String, List<PrioritizedMessage>> chunksByPeer = new ConcurrentHashMap<>();
+        final long timestamp;
+        int retryCount;
+
+        PendingMessage() {
+            this.timestamp = System.currentTimeMillis();
+        }
+    }
+
+    public MessagePriorityManager(RetransmitTimeouts retransmitTimeouts, MeshMetrics metrics,
+                                  FlightRecorder flightRecorder) {
+        this.retransmitTimeouts = retransmitTimeouts;
+        this.flightRecorder = flightRecorder;
+        this.enqueued = metrics.counter("queue.enqueued");
+        this.retries = metrics.counter("queue.retries");
         this.messageQueue = new PriorityBlockingQueue<>();
-        this.messageAcks = new HashMap<>();
-        this.pendingMessages = new HashMap<>();
+        this.messageAcks = new ConcurrentHashMap<>();
+        this.pendingMessages = new ConcurrentHashMap<>();
         this.sequenceNumber = new AtomicInteger(0);
+        for (Priority priority : Priority.values()) {
+            metrics.gauge("queue.depth." + priority, () -> getQueuedCount(priority));
+        }
+        metrics.gauge("queue.awaitingAck", pendingMessages::size);
         startRetryTimer();
     }
 
+    /** Queues a frame that isn't acknowledged, so it is sent once. */
     public void queueMessage(String message, Priority priority, Set<String> targetPeers) {
-        String messageId = generateMessageId();
-        PrioritizedMessage prioritizedMessage = new PrioritizedMessage(
-            message, priority, targetPeers
-        );
-        messageQueue.offer(prioritizedMessage);
-        pendingMessages.put(messageId, prioritizedMessage);
-        messageAcks.put(messageId, new HashSet<>(targetPeers));
+        offer(new PrioritizedMessage(message, priority, targetPeers));
+    }
+
+    /**
+     * Queues the chunks of one wire message and tracks them until every
+     * target acks its trackingId. Receivers ack once the whole message is
+     * reassembled, so one ack covers all chunks for that peer, and chunks
+     * still unacked after the retransmit timeout are resent together. A
+     * later copy with the same trackingId (a graft, or another route) adds
+     * its targets, and each target is retried with the copy it was sent.
+     */
+    public void queueMessage(List<String> chunks, Priority priority, Set<String> targetPeers,
+                             String trackingId, String type, boolean traced) {
+        List<PrioritizedMessage> messages = new ArrayList<>(chunks.size());
+        for (String chunk : chunks) {
+            PrioritizedMessage message = new PrioritizedMessage(chunk, priority, targetPeers);
+            message.trackingId = trackingId;
+            message.type = type;
+            message.traced = traced;
+            messages.add(message);
+        }
+        for (PrioritizedMessage message : messages) {
+            offer(message);
+        }
+        if (trackingId == null) return;
+
+        pendingMessages.compute(trackingId, (id, pending) -> {
+            if (pending == null) {
+                pending = new PendingMessage();
+                messageAcks.put(id, ConcurrentHashMap.newKeySet());
+            }
+            for (String peerId : targetPeers) {
+                pending.chunksByPeer.put(peerId, messages);
+            }
+            return pending;
+        });
+    }
+
+    private void offer(PrioritizedMessage message) {
+        messageQueue.offer(message);
+        enqueued.increment();
+        flightRecorder.record(FlightRecorder.ENQUEUE, message.priority.ordinal());
     }
 
     public PrioritizedMessage getNextMessage() {
-        return messageQueue.poll();
+        PrioritizedMessage message = messageQueue.poll();
+        if (message != null) {
+            flightRecorder.record(FlightRecorder.DEQUEUE, System.currentTimeMillis() - message.timestamp);
+        }
+        return message;
     }
 
-    public void handleAck(String messageId, String peerId) {
-        Set<String> acks = messageAcks.get(messageId);
+    /** Records that a peer received every chunk of the message with this trackingId. */
+    public void handleAck(String trackingId, String peerId) {
+        Set<String> acks = messageAcks.get(trackingId);
         if (acks != null) {
             acks.add(peerId);
-            PrioritizedMessage message = pendingMessages.get(messageId);
-            if (message != null && acks.containsAll(message.targetPeers)) {
+            PendingMessage pending = pendingMessages.get(trackingId);
+            if (pending != null && acks.containsAll(pending.chunksByPeer.keySet())) {
                 // Message fully acknowledged
-                pendingMessages.remove(messageId);
-                messageAcks.remove(messageId);
+                pendingMessages.remove(trackingId);
+                messageAcks.remove(trackingId);
             }
         }
     }
@@ -98,7 +175,7 @@ public class MessagePriorityManager {
             public void run() {
                 checkForRetries();
             }
-        }, RETRY_INTERVAL, RETRY_INTERVAL);
+        }, RETRY_CHECK_INTERVAL, RETRY_CHECK_INTERVAL);
     }
 
     private void checkForRetries() {
@@ -106,24 +183,47 @@ public class MessagePriorityManager {
         List<PrioritizedMessage> messagesToRetry = new ArrayList<>();
 
         // Find messages that need retry
-        for (PrioritizedMessage message : pendingMessages.values()) {
-            if (now - message.timestamp > RETRY_INTERVAL * (message.retryCount + 1)) {
-                Set<String> acks = messageAcks.get(message.messageId);
-                Set<String> remainingPeers = new HashSet<>(message.targetPeers);
-                if (acks != null) {
-                    remainingPeers.removeAll(acks);
+        Iterator<Map.Entry<String, PendingMessage>> pending = pendingMessages.entrySet().iterator();
+        while (pending.hasNext()) {
+            Map.Entry<String, PendingMessage> entry = pending.next();
+            PendingMessage message = entry.getValue();
+            Set<String> acks = messageAcks.get(entry.getKey());
+            // Peers still missing the message, grouped by the copy they were sent
+            Map<List<PrioritizedMessage>, Set<String>> remainingByCopy = new IdentityHashMap<>();
+            Set<String> remainingPeers = new HashSet<>();
+            for (Map.Entry<String, List<PrioritizedMessage>> target : message.chunksByPeer.entrySet()) {
+                if (acks != null && acks.contains(target.getKey())) continue;
+                Set<String> peers = remainingByCopy.get(target.getValue());
+                if (peers == null) {
+                    peers = new HashSet<>();
+                    remainingByCopy.put(target.getValue(), peers);
                 }
+                peers.add(target.getKey());
+                remainingPeers.add(target.getKey());
+            }
 
+            if (now - message.timestamp > getRetransmitTimeout(remainingPeers) * (message.retryCount + 1)) {
                 if (!remainingPeers.isEmpty() && message.retryCount < MAX_RETRIES) {
                     message.retryCount++;
-                    // Create new message for remaining peers
-                    PrioritizedMessage retryMessage = new PrioritizedMessage(
-                        message.message,
-                        message.priority,
-                        remainingPeers
-                    );
-                    retryMessage.retryCount = message.retryCount;
-                    messagesToRetry.add(retryMessage);
+                    // Resend every chunk of each copy to its peers that haven't acked
+                    for (Map.Entry<List<PrioritizedMessage>, Set<String>> copy : remainingByCopy.entrySet()) {
+                        for (PrioritizedMessage chunk : copy.getKey()) {
+                            PrioritizedMessage retryMessage = new PrioritizedMessage(
+                                chunk.message,
+                                chunk.priority,
+                                copy.getValue()
+                            );
+                            retryMessage.retryCount = message.retryCount;
+                            retryMessage.trackingId = chunk.trackingId;
+                            retryMessage.type = chunk.type;
+                            retryMessage.traced = chunk.traced;
+                            messagesToRetry.add(retryMessage);
+                        }
+                    }
+                } else {
+                    // Delivered or out of retries; stop tracking it
+                    pending.remove();
+                    messageAcks.remove(entry.getKey());
                 }
             }
         }
@@ -131,11 +231,19 @@ public class MessagePriorityManager {
         // Queue retry messages
         for (PrioritizedMessage message : messagesToRetry) {
             messageQueue.offer(message);
+            flightRecorder.record(FlightRecorder.RETRY, message.retryCount);
         }
+        retries.add(messagesToRetry.size());
     }
 
-    private String generateMessageId() {
-        return UUID.randomUUID().toString();
+    // Wait for the slowest peer still missing the message
+    private long getRetransmitTimeout(Set<String> peers) {
+        long timeout = 0;
+        for (String peerId : peers) {
+            long peerTimeout = retransmitTimeouts.get(peerId);
+            timeout = Math.max(timeout, peerTimeout > 0 ? peerTimeout : RETRY_INTERVAL);
+        }
+        return timeout > 0 ? timeout : RETRY_INTERVAL;
     }
 
     public void stop() {
@@ -149,6 +257,14 @@ public class MessagePriorityManager {
         return !messageQueue.isEmpty() || !pendingMessages.isEmpty();
     }
 
+    public int getQueuedCount(Priority priority) {
+        int count = 0;
+        for (PrioritizedMessage message : messageQueue) {
+            if (message.priority == priority) count++;
+        }
+        return count;
+    }
+
     public int getPendingCount() {
         return messageQueue.size() + pendingMessages.size();
     }
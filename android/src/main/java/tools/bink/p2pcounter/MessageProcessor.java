@@ -15,6 +15,12 @@ public class MessageProcessor {
     private static final int COMPRESSION_THRESHOLD = 1000; // Bytes
     private final Map<String, MessageAssembler> messageAssemblers;
     private final String localDeviceId;
+    private final MeshMetrics.Counter chunksOut;
+    private final MeshMetrics.Counter chunksIn;
+    private final MeshMetrics.Counter messagesReassembled;
+    private final MeshMetrics.Counter reassemblyEvictions;
+    private final MeshMetrics.Counter compressionInputBytes;
+    private final MeshMetrics.Counter compressionOutputBytes;
 
     private static class MessageAssembler {
         final Map<Integer, byte[]> chunks;
@@ -48,9 +54,16 @@ public class MessageProcessor {
         }
     }
 
-    public MessageProcessor(String localDeviceId) {
+    public MessageProcessor(String localDeviceId, MeshMetrics metrics) {
         this.localDeviceId = localDeviceId;
         this.messageAssemblers = new ConcurrentHashMap<>();
+        this.chunksOut = metrics.counter("chunks.out");
+        this.chunksIn = metrics.counter("chunks.in");
+        this.messagesReassembled = metrics.counter("chunks.reassembled");
+        this.reassemblyEvictions = metrics.counter("chunks.evicted");
+        this.compressionInputBytes = metrics.counter("compression.inputBytes");
+        this.compressionOutputBytes = metrics.counter("compression.outputBytes");
+        metrics.gauge("chunks.pendingMessages", messageAssemblers::size);
     }
 
     public List<JSONObject> processOutgoingMessage(String message) {
@@ -63,6 +76,8 @@ public class MessageProcessor {
             if (messageBytes.length > COMPRESSION_THRESHOLD) {
                 processedData = compress(messageBytes);
                 isCompressed = true;
+                compressionInputBytes.add(messageBytes.length);
+                compressionOutputBytes.add(processedData.length);
             }
 
             // Fragment if necessary
@@ -86,6 +101,7 @@ public class MessageProcessor {
                 chunks.add(chunkObj);
             }
 
+            chunksOut.add(totalChunks);
             return chunks;
         } catch (Exception e) {
             Log.e(TAG, "Error processing outgoing message", e);
@@ -99,6 +115,7 @@ public class MessageProcessor {
         int totalChunks = chunk.getInt("totalChunks");
         boolean isCompressed = chunk.getBoolean("compressed");
         byte[] data = Base64.getDecoder().decode(chunk.getString("data"));
+        chunksIn.increment();
 
         MessageAssembler assembler = messageAssemblers.computeIfAbsent(
             messageId, 
@@ -110,6 +127,7 @@ public class MessageProcessor {
         if (assembler.isComplete()) {
             byte[] assembled = assembler.assembleMessage();
             messageAssemblers.remove(messageId);
+            messagesReassembled.increment();
 
             // Decompress if necessary
             if (isCompressed) {
@@ -167,8 +185,12 @@ public class MessageProcessor {
 
     public void cleanup() {
         long now = System.currentTimeMillis();
-        messageAssemblers.entrySet().removeIf(entry -> 
-            now - entry.getValue().timestamp > 30000 // Remove incomplete messages after 30 seconds
-        );
+        Iterator<MessageAssembler> assemblers = messageAssemblers.values().iterator();
+        while (assemblers.hasNext()) {
+            if (now - assemblers.next().timestamp > 30000) { // Remove incomplete messages after 30 seconds
+                assemblers.remove();
+                reassemblyEvictions.increment();
+            }
+        }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,188 @@
+package tools.bink.p2pcounter;
+
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.*;
+
+/**
+ * Opt-in sampled tracing of messages across hops.
+ *
+ * The origin marks a sampled message with a _trace array, and every node it
+ * passes appends compact [node, stage, timestamp] records to it. The send
+ * stamp is taken after the message was serialized into chunk frames, so it
+ * rides on the frame as _traceSentAt and the receiver appends it on the
+ * sender's behalf. The origin names one receiver as the reporter (the target
+ * of a routed message, a random reachable device for a broadcast), and only
+ * that node reports the records back, so a sampled flood costs one report
+ * rather than one per delivering node. The origin keeps the most recent
+ * traces.
+ *
+ * Untraced messages cost one field lookup per stage; timestamps are each
+ * node's wall clock, so cross-node gaps include clock offset.
+ */
+public class MessageTracer {
+    private static final String TAG = "MessageTracer";
+    public static final String TYPE_REPORT = "traceReport";
+    static final String FIELD_TRACE = "_trace";
+    static final String FIELD_SENT_AT = "_traceSentAt";
+    static final String FIELD_REPORTER = "_traceReporter";
+    private static final int MAX_TRACES = 100; // Oldest reports are dropped first
+
+    public static final String STAGE_ORIGIN = "origin";
+    public static final String STAGE_ENQUEUE = "enqueue"; // Handed to the priority queue
+    public static final String STAGE_SEND = "send";       // Dequeued and written to the data channel
+    public static final String STAGE_RECEIVE = "receive"; // Last frame arrived and the message reassembled
+    public static final String STAGE_RELAY = "relay";     // Forwarded towards further hops
+    public static final String STAGE_DELIVER = "deliver";
+
+    private final Random random = new Random();
+    private final LinkedHashMap<String, JSONObject> traces; // messageId|reporter -> trace
+    private volatile double sampleRate;
+
+    public MessageTracer() {
+        this.traces = new LinkedHashMap<String, JSONObject>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                return size() > MAX_TRACES;
+            }
+        };
+    }
+
+    /** Share of originated messages to trace, 0 (off) to 1. */
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /** At the origin: decides whether to trace the message. */
+    public boolean shouldSample(JSONObject message) {
+        double rate = sampleRate;
+        if (rate <= 0 || TYPE_REPORT.equals(message.optString("type"))) return false;
+        return rate >= 1 || random.nextDouble() < rate;
+    }
+
+    /**
+     * At the origin: marks the message as traced, with one of the receivers
+     * picked to report back. Returns false, leaving the message untraced, if
+     * there is nobody to report.
+     */
+    public boolean mark(JSONObject message, String localDeviceId, List<String> receivers) throws JSONException {
+        if (receivers.isEmpty()) return false;
+        String reporter = receivers.get(random.nextInt(receivers.size()));
+        message.put(FIELD_TRACE, new JSONArray());
+        message.put(FIELD_REPORTER, reporter);
+        record(message, localDeviceId, STAGE_ORIGIN, System.currentTimeMillis());
+        return true;
+    }
+
+    public static boolean isTraced(JSONObject message) {
+        return message.has(FIELD_TRACE);
+    }
+
+    /** Appends a record to a traced message; untraced messages are left alone. */
+    public static void record(JSONObject message, String node, String stage, long timestamp) {
+        JSONArray trace = message.optJSONArray(FIELD_TRACE);
+        if (trace == null) return;
+        JSONArray entry = new JSONArray();
+        entry.put(node);
+        entry.put(stage);
+        entry.put(timestamp);
+        trace.put(entry);
+    }
+
+    /** Stamps an already serialized frame of a traced message with its send time. */
+    public static String stampFrame(String frame, long sentAt) {
+        try {
+            JSONObject json = new JSONObject(frame);
+            json.put(FIELD_SENT_AT, sentAt);
+            return json.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "Error stamping frame", e);
+            return frame;
+        }
+    }
+
+    /**
+     * On reassembly: records the previous hop's send stamp carried by the
+     * final frame, then our own receive.
+     */
+    public static void onReceived(JSONObject message, JSONObject lastFrame, String fromDeviceId,
+                                  String localDeviceId, long now) {
+        if (!isTraced(message)) return;
+        if (lastFrame.has(FIELD_SENT_AT)) {
+            record(message, fromDeviceId, STAGE_SEND, lastFrame.optLong(FIELD_SENT_AT));
+        }
+        record(message, localDeviceId, STAGE_RECEIVE, now);
+    }
+
+    /** Whether we are the receiver the origin picked to report this traced message. */
+    public static boolean isReporter(JSONObject message, String localDeviceId) {
+        return isTraced(message) && localDeviceId.equals(message.optString(FIELD_REPORTER));
+    }
+
+    /** Report of a delivered traced message, sent back to its origin. */
+    public static JSONObject createReport(JSONObject message, String localDeviceId) throws JSONException {
+        JSONObject report = new JSONObject();
+        report.put("type", TYPE_REPORT);
+        report.put("messageId", message.optString("_messageId"));
+        report.put("messageType", message.optString("type"));
+        report.put("reportedBy", localDeviceId);
+        report.put("records", message.getJSONArray(FIELD_TRACE));
+        return report;
+    }
+
+    /**
+     * Expands a report into { messageId, type, reportedBy, hops: [{node, stage,
+     * timestamp, elapsed}], total } and keeps it; elapsed is the gap to the
+     * previous record.
+     */
+    public JSONObject onReport(JSONObject report) throws JSONException {
+        JSONArray records = report.getJSONArray("records");
+        JSONArray hops = new JSONArray();
+        long first = 0;
+        long previous = 0;
+        for (int i = 0; i < records.length(); i++) {
+            JSONArray record = records.getJSONArray(i);
+            long timestamp = record.getLong(2);
+            if (i == 0) {
+                first = timestamp;
+                previous = timestamp;
+            }
+            JSONObject hop = new JSONObject();
+            hop.put("node", record.getString(0));
+            hop.put("stage", record.getString(1));
+            hop.put("timestamp", timestamp);
+            hop.put("elapsed", timestamp - previous);
+            hops.put(hop);
+            previous = timestamp;
+        }
+
+        JSONObject trace = new JSONObject();
+        trace.put("messageId", report.optString("messageId"));
+        trace.put("type", report.optString("messageType"));
+        trace.put("reportedBy", report.optString("reportedBy"));
+        trace.put("hops", hops);
+        trace.put("total", previous - first);
+        synchronized (this) {
+            traces.put(report.optString("messageId") + "|" + report.optString("reportedBy"), trace);
+        }
+        return trace;
+    }
+
+    /** Traces reported back to us, oldest first; clear empties the store. */
+    public synchronized JSONArray getTraces(boolean clear) {
+        JSONArray result = new JSONArray();
+        for (JSONObject trace : traces.values()) {
+            result.put(trace);
+        }
+        if (clear) {
+            traces.clear();
+        }
+        return result;
+    }
+}
@@ -18,11 +18,11 @@ public class NFCManager implements P2PCounterHCEService.NFCCallback {
     private final Activity activity;
     private String deviceId;
 
-    public NFCManager(P2PCounterPlugin plugin, Activity activity) {
+    public NFCManager(P2PCounterPlugin plugin, Activity activity, String deviceId) {
         this.plugin = plugin;
         this.activity = activity;
         this.nfcAdapter = NfcAdapter.getDefaultAdapter(activity);
-        this.deviceId = String.valueOf(System.currentTimeMillis());
+        this.deviceId = deviceId;
         P2PCounterHCEService.setCallback(this);
     }
 
@@ -0,0 +1,114 @@
+package tools.bink.p2pcounter;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.Collection;
+
+/**
+ * Constant-size summary of a neighbor set for mesh announcements.
+ *
+ * Carries the set size, an order-independent 64-bit hash for cheap change
+ * detection, and a 256-bit Bloom filter so membership (and thus overlap with
+ * our own neighborhood) can be estimated without the full list. Hash and
+ * filter travel as hex strings so they survive JavaScript numbers intact.
+ */
+public class NeighborDigest {
+    private static final int BLOOM_WORDS = 4; // 256 bits
+    private static final int BLOOM_BITS = BLOOM_WORDS * 64;
+    private static final int HASH_FUNCTIONS = 3;
+
+    private final int count;
+    private final long hash;
+    private final long[] bloom;
+
+    private NeighborDigest(int count, long hash, long[] bloom) {
+        this.count = count;
+        this.hash = hash;
+        this.bloom = bloom;
+    }
+
+    public static NeighborDigest of(Collection<String> deviceIds) {
+        long hash = 0;
+        long[] bloom = new long[BLOOM_WORDS];
+        for (String deviceId : deviceIds) {
+            long h = mix(deviceId);
+            hash += h; // Commutative, so iteration order doesn't matter
+            int h1 = (int) h;
+            int h2 = (int) (h >>> 32);
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                MeshGraph.set(bloom, Math.floorMod(h1 + i * h2, BLOOM_BITS));
+            }
+        }
+        return new NeighborDigest(deviceIds.size(), hash, bloom);
+    }
+
+    public static NeighborDigest fromJSON(JSONObject json) throws JSONException {
+        String bloomHex = json.getString("bloom");
+        if (bloomHex.length() != BLOOM_WORDS * 16) {
+            throw new JSONException("Invalid bloom filter length: " + bloomHex.length());
+        }
+        long[] bloom = new long[BLOOM_WORDS];
+        try {
+            for (int w = 0; w < BLOOM_WORDS; w++) {
+                bloom[w] = Long.parseUnsignedLong(bloomHex.substring(w * 16, (w + 1) * 16), 16);
+            }
+            return new NeighborDigest(json.getInt("count"),
+                Long.parseUnsignedLong(json.getString("hash"), 16), bloom);
+        } catch (NumberFormatException e) {
+            throw new JSONException("Invalid neighbor digest: " + e.getMessage());
+        }
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        StringBuilder bloomHex = new StringBuilder(BLOOM_WORDS * 16);
+        for (long word : bloom) {
+            String hex = Long.toHexString(word);
+            for (int i = hex.length(); i < 16; i++) {
+                bloomHex.append('0');
+            }
+            bloomHex.append(hex);
+        }
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("hash", Long.toHexString(hash));
+        json.put("bloom", bloomHex.toString());
+        return json;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    /** False means definitely absent; true may be a false positive. */
+    public boolean mightContain(String deviceId) {
+        long h = mix(deviceId);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            if (!MeshGraph.get(bloom, Math.floorMod(h1 + i * h2, BLOOM_BITS))) return false;
+        }
+        return true;
+    }
+
+    public boolean sameAs(NeighborDigest other) {
+        return other != null && count == other.count && hash == other.hash;
+    }
+
+    // 64-bit string hash with a murmur3 finalizer so similar ids spread across the filter
+    private static long mix(String deviceId) {
+        long h = 1125899906842597L;
+        for (int i = 0; i < deviceId.length(); i++) {
+            h = 31 * h + deviceId.charAt(i);
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
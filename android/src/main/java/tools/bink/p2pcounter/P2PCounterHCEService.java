@@ -14,11 +14,16 @@ public class P2PCounterHCEService extends HostApduService {
     };
     private static final byte[] SUCCESS_SW = {(byte)0x90, (byte)0x00};
     private static NFCCallback callback;
+    private static String deviceId;
 
     public static void setCallback(NFCCallback cb) {
         callback = cb;
     }
 
+    public static void setDeviceId(String id) {
+        deviceId = id;
+    }
+
     @Override
     public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
         if (Arrays.equals(SELECT_APDU, commandApdu)) {
@@ -40,7 +45,7 @@ public class P2PCounterHCEService extends HostApduService {
     private byte[] createDeviceInfoResponse() {
         try {
             JSONObject info = new JSONObject();
-            info.put("deviceId", String.valueOf(System.currentTimeMillis()));
+            info.put("deviceId", deviceId);
             info.put("timestamp", System.currentTimeMillis());
             
             byte[] infoBytes = info.toString().getBytes();
@@ -1,7 +1,9 @@
 package tools.bink.p2pcounter;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.nfc.NdefMessage;
 import android.nfc.NfcAdapter;
 import android.os.Parcelable;
@@ -9,16 +11,48 @@ import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.webrtc.*;
 import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 @CapacitorPlugin(name = "P2PCounter")
 public class P2PCounterPlugin extends Plugin {
+    private static final String PREFS_NAME = "P2PCounter";
+    private static final String PREF_DEVICE_ID = "deviceId";
     private PeerConnectionFactory peerConnectionFactory;
     private EglBase eglBase;
     private PeerConnectionManager peerConnectionManager;
     private NFCManager nfcManager;
+    private String deviceId;
+    private final MeshMetrics metrics = new MeshMetrics();
+    private final FlightRecorder flightRecorder = new FlightRecorder();
+    private final EventBatcher eventBatcher = new EventBatcher(this::deliverEvent);
+
+    // Events the native side emits; their bridge counters are looked up once
+    private static final String[] EVENT_NAMES = {
+        "connectionRequest", "connectionResponse", "counterReceived", "countsChanged",
+        "dataChannelStateChange", "iceCandidate", "meshDiscovery", "meshMessage",
+        "messageTrace", "metrics", "nfcDiscovered", "peerConnected", "peerSuspected",
+        "peerTimeout", "topologyChange"
+    };
+    private final Map<String, MeshMetrics.Counter> bridgeCounters = new HashMap<>();
+    private final MeshMetrics.Counter bridgeCrossings = metrics.counter("bridge.crossings");
+
+    {
+        for (String eventName : EVENT_NAMES) {
+            bridgeCounters.put(eventName, metrics.counter("bridge." + eventName));
+        }
+    }
     
     @Override
     public void load() {
@@ -62,7 +96,8 @@ public class P2PCounterPlugin extends Plugin {
             }
 
             try {
-                String deviceId = String.valueOf(System.currentTimeMillis());
+                deviceId = loadDeviceId();
+                P2PCounterHCEService.setDeviceId(deviceId);
                 peerConnectionManager = new PeerConnectionManager(
                     peerConnectionFactory, 
                     this,
@@ -81,7 +116,7 @@ public class P2PCounterPlugin extends Plugin {
                     Log.e("P2PCounterPlugin", "Activity is null");
                     return;
                 }
-                nfcManager = new NFCManager(this, activity);
+                nfcManager = new NFCManager(this, activity, deviceId);
                 Log.d("P2PCounterPlugin", "Plugin load complete");
             } catch (Exception e) {
                 Log.e("P2PCounterPlugin", "Error creating NFCManager", e);
@@ -90,6 +125,23 @@ public class P2PCounterPlugin extends Plugin {
             Log.e("P2PCounterPlugin", "Error loading plugin", e);
         }
     }
+
+    // One node id per install, so peers see a restart as the same device
+    private String loadDeviceId() {
+        SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String stored = prefs.getString(PREF_DEVICE_ID, null);
+        if (stored != null) {
+            try {
+                HybridLogicalClock.parseNodeId(stored);
+                return stored;
+            } catch (NumberFormatException e) {
+                Log.e("P2PCounterPlugin", "Invalid stored device ID: " + stored, e);
+            }
+        }
+        String created = HybridLogicalClock.formatNodeId(HybridLogicalClock.newNodeId());
+        prefs.edit().putString(PREF_DEVICE_ID, created).apply();
+        return created;
+    }
     
     @PluginMethod
     public void createPeerConnection(PluginCall call) {
@@ -150,6 +202,197 @@ public class P2PCounterPlugin extends Plugin {
         call.resolve();
     }
 
+    @PluginMethod
+    public void sendCounter(PluginCall call) {
+        String code = call.getString("code");
+        Boolean isPresent = call.getBoolean("isPresent");
+        String eventId = call.getString("eventId");
+        boolean isManual = call.getBoolean("isManual", false);
+        String priority = call.getString("priority", "HIGH");
+
+        if (code == null || isPresent == null) {
+            call.reject("Code and isPresent status are required");
+            return;
+        }
+
+        peerConnectionManager.sendCounter(code, eventId, isPresent, isManual, priority);
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void sendCounters(PluginCall call) {
+        JSArray counters = call.getArray("counters");
+        String priority = call.getString("priority", "HIGH");
+
+        if (counters == null) {
+            call.reject("Counters are required");
+            return;
+        }
+
+        try {
+            List<AttendeeStore.CounterUpdate> updates = new ArrayList<>(counters.length());
+            for (int i = 0; i < counters.length(); i++) {
+                JSONObject counter = counters.getJSONObject(i);
+                if (!counter.has("code") || !counter.has("isPresent")) {
+                    call.reject("Code and isPresent status are required for every counter");
+                    return;
+                }
+                updates.add(AttendeeStore.CounterUpdate.fromJSON(counter,
+                    peerConnectionManager.nextVersion(), peerConnectionManager.getNodeId()));
+            }
+            peerConnectionManager.sendCounters(updates, priority);
+            call.resolve();
+        } catch (JSONException e) {
+            Log.e("P2PCounterPlugin", "Error parsing counters", e);
+            call.reject("Invalid counters", e);
+        }
+    }
+
+    @PluginMethod
+    public void sendInitialState(PluginCall call) {
+        String deviceId = call.getString("deviceId");
+        JSObject state = call.getObject("state");
+
+        if (deviceId == null) {
+            call.reject("Device ID is required");
+            return;
+        }
+
+        try {
+            // Merge the JS-side state first so the native store is authoritative
+            if (state != null) {
+                List<AttendeeStore.CounterUpdate> updates = new ArrayList<>(state.length());
+                Iterator<String> codes = state.keys();
+                while (codes.hasNext()) {
+                    updates.add(AttendeeStore.CounterUpdate.fromStateJSON(state.getJSONObject(codes.next())));
+                }
+                peerConnectionManager.getAttendeeStore().applyAll(updates);
+            }
+            peerConnectionManager.sendInitialState(deviceId);
+            call.resolve();
+        } catch (JSONException e) {
+            Log.e("P2PCounterPlugin", "Error parsing initial state", e);
+            call.reject("Invalid state", e);
+        }
+    }
+
+    @PluginMethod
+    public void sendMeshMessage(PluginCall call) {
+        JSObject message = call.getObject("message");
+        if (message == null) {
+            call.reject("Message is required");
+            return;
+        }
+
+        peerConnectionManager.sendMeshMessage(message, call.getString("targetId"), call.getString("priority", "MEDIUM"));
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getCounts(PluginCall call) {
+        call.resolve(peerConnectionManager.getCounts(call.getString("eventId")));
+    }
+
+    @PluginMethod
+    public void startCountsUpdates(PluginCall call) {
+        peerConnectionManager.startCountsUpdates(call.getLong("throttleMs", 0L));
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void stopCountsUpdates(PluginCall call) {
+        peerConnectionManager.stopCountsUpdates();
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void configureMesh(PluginCall call) {
+        String broadcastMode = call.getString("broadcastMode");
+        if (broadcastMode != null) {
+            try {
+                peerConnectionManager.setBroadcastMode(
+                    PeerConnectionManager.BroadcastMode.valueOf(broadcastMode.toUpperCase())
+                );
+            } catch (IllegalArgumentException e) {
+                call.reject("Unknown broadcast mode: " + broadcastMode);
+                return;
+            }
+        }
+
+        Long topologyEventIntervalMs = call.getLong("topologyEventIntervalMs");
+        if (topologyEventIntervalMs != null) {
+            peerConnectionManager.setTopologyEventInterval(topologyEventIntervalMs);
+        }
+
+        Double traceSampleRate = call.getDouble("traceSampleRate");
+        if (traceSampleRate != null) {
+            peerConnectionManager.setTraceSampleRate(traceSampleRate);
+        }
+
+        Long metricsIntervalMs = call.getLong("metricsIntervalMs");
+        if (metricsIntervalMs != null) {
+            peerConnectionManager.setMetricsEventInterval(metricsIntervalMs);
+        }
+
+        // Event batching: buffered events arrive together as one eventBatch event
+        Long eventBatchIntervalMs = call.getLong("eventBatchIntervalMs");
+        Integer eventBatchMaxSize = call.getInt("eventBatchMaxSize");
+        JSArray immediateEvents = call.getArray("immediateEvents");
+        if (eventBatchIntervalMs != null || eventBatchMaxSize != null || immediateEvents != null) {
+            List<String> immediate = null;
+            if (immediateEvents != null) {
+                immediate = new ArrayList<>(immediateEvents.length());
+                for (int i = 0; i < immediateEvents.length(); i++) {
+                    immediate.add(immediateEvents.optString(i));
+                }
+            }
+            eventBatcher.configure(
+                eventBatchIntervalMs != null ? eventBatchIntervalMs : eventBatcher.getBatchInterval(),
+                eventBatchMaxSize != null ? eventBatchMaxSize : eventBatcher.getMaxBatchSize(),
+                immediate
+            );
+        }
+
+        // Phi-accrual thresholds: suspected peers are routed around, failed ones disconnected
+        Double suspectPhi = call.getDouble("suspectPhi");
+        Double failPhi = call.getDouble("failPhi");
+        if (suspectPhi != null || failPhi != null) {
+            peerConnectionManager.setFailureDetectorThresholds(
+                suspectPhi != null ? suspectPhi : peerConnectionManager.getSuspectPhi(),
+                failPhi != null ? failPhi : peerConnectionManager.getFailPhi()
+            );
+        }
+
+        // Number of disjoint routes per priority, e.g. { VERY_HIGH: 3 }
+        JSObject unicastRoutes = call.getObject("unicastRoutes");
+        if (unicastRoutes != null) {
+            Iterator<String> priorities = unicastRoutes.keys();
+            while (priorities.hasNext()) {
+                String priority = priorities.next();
+                try {
+                    peerConnectionManager.setUnicastRoutes(
+                        MessagePriorityManager.Priority.valueOf(priority.toUpperCase()),
+                        unicastRoutes.optInt(priority, 1)
+                    );
+                } catch (IllegalArgumentException e) {
+                    call.reject("Unknown priority: " + priority);
+                    return;
+                }
+            }
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getTopology(PluginCall call) {
+        try {
+            call.resolve(JSObject.fromJSONObject(peerConnectionManager.getTopology()));
+        } catch (JSONException e) {
+            Log.e("P2PCounterPlugin", "Error getting topology", e);
+            call.reject("Failed to get topology", e);
+        }
+    }
+
     @PluginMethod
     public void startNFCDiscovery(PluginCall call) {
         if (nfcManager.startDiscovery()) {
@@ -188,7 +431,72 @@ public class P2PCounterPlugin extends Plugin {
         }
     }
 
+    @PluginMethod
+    public void getLatencyHistograms(PluginCall call) {
+        try {
+            boolean reset = call.getBoolean("reset", false);
+            call.resolve(JSObject.fromJSONObject(peerConnectionManager.getLatencyHistograms(reset)));
+        } catch (JSONException e) {
+            Log.e("P2PCounterPlugin", "Error getting latency histograms", e);
+            call.reject("Failed to get latency histograms", e);
+        }
+    }
+
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        try {
+            call.resolve(JSObject.fromJSONObject(peerConnectionManager.getMetrics()));
+        } catch (JSONException e) {
+            Log.e("P2PCounterPlugin", "Error getting metrics", e);
+            call.reject("Failed to get metrics", e);
+        }
+    }
+
+    @PluginMethod
+    public void getTraces(PluginCall call) {
+        boolean clear = call.getBoolean("clear", false);
+        JSObject result = new JSObject();
+        result.put("traces", peerConnectionManager.getTraces(clear));
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void dumpFlightRecorder(PluginCall call) {
+        String fileName = call.getString("fileName", "flight-recorder-" + System.currentTimeMillis() + ".bin");
+        // Only a bare name, so the dump stays in app storage
+        File file = new File(getContext().getFilesDir(), new File(fileName).getName());
+        try {
+            int records = flightRecorder.dump(file);
+            JSObject result = new JSObject();
+            result.put("path", file.getAbsolutePath());
+            result.put("records", records);
+            result.put("bytes", file.length());
+            call.resolve(result);
+        } catch (IOException e) {
+            Log.e("P2PCounterPlugin", "Error dumping flight recorder", e);
+            call.reject("Failed to dump flight recorder", e);
+        }
+    }
+
+    MeshMetrics getMeshMetrics() {
+        return metrics;
+    }
+
+    FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
     public void notifyWebRTCEvent(String eventName, JSObject data) {
+        MeshMetrics.Counter counter = bridgeCounters.get(eventName);
+        if (counter == null) {
+            counter = metrics.counter("bridge." + eventName);
+        }
+        counter.increment();
+        eventBatcher.submit(eventName, data);
+    }
+
+    private void deliverEvent(String eventName, JSObject data) {
+        bridgeCrossings.increment();
         notifyListeners(eventName, data);
     }
     
@@ -205,6 +513,10 @@ public class P2PCounterPlugin extends Plugin {
 
     @Override
     protected void handleOnDestroy() {
+        if (peerConnectionManager != null) {
+            peerConnectionManager.handleOnDestroy();
+        }
+        eventBatcher.stop();
         nfcManager.stopDiscovery();
         if (peerConnectionFactory != null) {
             peerConnectionFactory.dispose();
@@ -1,15 +1,18 @@
 package tools.bink.p2pcounter;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 import com.getcapacitor.JSObject;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.nio.ByteBuffer;
@@ -18,6 +21,7 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import tools.bink.p2pcounter.MessagePriorityManager.Priority;
 
 public class PeerConnectionManager implements PeerConnection.Observer {
@@ -26,14 +30,18 @@ public class PeerConnectionManager implements PeerConnection.Observer {
     private final Map<String, PeerConnection> peerConnections;
     private final Map<String, DataChannel> dataChannels;
     private final P2PCounterPlugin plugin;
-    private final Map<String, Long> lastPingTimes;
-    private final Map<String, List<Long>> rttHistory;
-    private final Map<String, Integer> packetLossCount;
+    private final Map<String, KeepaliveState> keepaliveStates;
+    private final Map<String, LinkMetrics> linkMetrics;
     private static final long KEEPALIVE_INTERVAL = 5000; // 5 seconds base interval
     private static final long MAX_KEEPALIVE_INTERVAL = 30000; // 30 seconds max
-    private static final long PEER_TIMEOUT = 45000; // 45 seconds timeout
-    private Handler keepaliveHandler;
-    private boolean isKeepaliveRunning;
+    private static final long KEEPALIVE_TICK = 1000; // How often the mesh worker checks links
+    private static final double DEFAULT_SUSPECT_PHI = 3.0; // ~0.1% chance the peer is actually fine
+    private static final double DEFAULT_FAIL_PHI = 8.0;
+    private static final long ACCEPTABLE_HEARTBEAT_PAUSE = 3000; // One late pong isn't a failure
+    private static final long FAIL_CONFIRM_TIMEOUT = 3000; // Direct probe answer time before a failing peer is dropped
+    private TimerTask keepaliveTask;
+    private volatile double suspectPhi = DEFAULT_SUSPECT_PHI;
+    private volatile double failPhi = DEFAULT_FAIL_PHI;
     private final MeshTopologyManager topologyManager;
     private final String localDeviceId;
     private final MessageDeduplicator deduplicator;
@@ -42,23 +50,104 @@ public class PeerConnectionManager implements PeerConnection.Observer {
     private Timer messageProcessingTimer;
     private static final long PROCESSING_INTERVAL = 50; // 50ms
     private final MessageProcessor messageProcessor;
+    private final AttendeeStore attendeeStore;
+    private final HybridLogicalClock clock;
+    private final PlumtreeBroadcaster plumtree;
+    private final LinkStateDatabase linkStateDatabase;
+    private final LatencyRecorder latencyRecorder;
+    private final MessageTracer tracer;
+    private final MeshMetrics metrics;
+    private final FlightRecorder flightRecorder;
+    private final MeshMetrics.Counter dedupHits;
+    private final MeshMetrics.Counter floodRelays;
+    private final MeshMetrics.Counter treeRelays;
+    private final MeshMetrics.Counter unicastRelays;
+    private TimerTask metricsTask;
+    private static final long REASSEMBLY_CLEANUP_INTERVAL = 10000; // Incomplete messages expire after 30s
+    private volatile BroadcastMode broadcastMode = BroadcastMode.FLOOD;
+    private final Map<Priority, Integer> unicastRoutes; // Disjoint routes used per priority
+    private static final int DEFAULT_VERY_HIGH_ROUTES = 2;
+
+    // Liveness of one link; frames are recorded on the WebRTC thread, probes run on the mesh worker
+    private static class KeepaliveState {
+        // A quiet link is probed every KEEPALIVE_INTERVAL and the answer can take up to a tick longer
+        final PhiAccrualFailureDetector detector =
+            new PhiAccrualFailureDetector(KEEPALIVE_INTERVAL + KEEPALIVE_TICK, ACCEPTABLE_HEARTBEAT_PAUSE);
+        volatile long lastTraffic; // Any frame but a pong means the link carries other traffic
+        long lastProbe;
+        long interval = KEEPALIVE_INTERVAL;
+        boolean suspected;
+        long failingSince; // When phi first reached failPhi and a direct probe went out, 0 if it hasn't
+
+        KeepaliveState(long now) {
+            this.lastProbe = now;
+        }
+    }
+
+    public enum BroadcastMode {
+        FLOOD, // Send every message over every link
+        TREE,  // Eager payloads along a spanning tree, lazy ids elsewhere
+        MPR    // Flood, but only multipoint relays selected by the sender rebroadcast
+    }
+    private Timer countsTimer;
+    private long countsThrottleInterval = DEFAULT_COUNTS_THROTTLE_INTERVAL;
+    private boolean countsNotificationPending;
+    private static final long DEFAULT_COUNTS_THROTTLE_INTERVAL = 250; // 250ms
     private final String deviceId;
 
     public PeerConnectionManager(PeerConnectionFactory factory, P2PCounterPlugin plugin, Context context, String deviceId) {
         this.factory = factory;
         this.plugin = plugin;
-        this.peerConnections = new HashMap<>();
-        this.dataChannels = new HashMap<>();
-        this.lastPingTimes = new HashMap<>();
-        this.rttHistory = new HashMap<>();
-        this.packetLossCount = new HashMap<>();
-        this.keepaliveHandler = new Handler(Looper.getMainLooper());
-        this.localDeviceId = String.valueOf(System.currentTimeMillis());
+        // Iterated by the keepalive worker while WebRTC callbacks modify them
+        this.peerConnections = new ConcurrentHashMap<>();
+        this.dataChannels = new ConcurrentHashMap<>();
+        this.keepaliveStates = new ConcurrentHashMap<>();
+        this.linkMetrics = new ConcurrentHashMap<>();
+        this.metrics = plugin.getMeshMetrics();
+        this.flightRecorder = plugin.getFlightRecorder();
+        this.dedupHits = metrics.counter("dedup.hits");
+        this.floodRelays = metrics.counter("relay.flood");
+        this.treeRelays = metrics.counter("relay.tree");
+        this.unicastRelays = metrics.counter("relay.unicast");
+        this.unicastRoutes = Collections.synchronizedMap(new EnumMap<>(Priority.class));
+        unicastRoutes.put(Priority.VERY_HIGH, DEFAULT_VERY_HIGH_ROUTES);
+        this.localDeviceId = deviceId;
+        this.clock = new HybridLogicalClock(HybridLogicalClock.parseNodeId(deviceId));
         this.topologyManager = new MeshTopologyManager(localDeviceId, plugin);
         this.deduplicator = new MessageDeduplicator();
-        this.discoveryManager = new MeshDiscoveryManager(localDeviceId, plugin);
-        this.priorityManager = new MessagePriorityManager();
-        this.messageProcessor = new MessageProcessor(localDeviceId);
+        this.discoveryManager = new MeshDiscoveryManager(localDeviceId, plugin, topologyManager,
+            (peerId, message) -> sendToDevice(peerId, message.toString()));
+        this.priorityManager = new MessagePriorityManager(peerId -> {
+            LinkMetrics metrics = linkMetrics.get(peerId);
+            return metrics != null ? metrics.getRttStats().getRetransmitTimeout(0) : 0;
+        }, metrics, flightRecorder);
+        this.messageProcessor = new MessageProcessor(localDeviceId, metrics);
+        this.attendeeStore = new AttendeeStore();
+        this.latencyRecorder = new LatencyRecorder();
+        this.tracer = new MessageTracer();
+        this.plumtree = new PlumtreeBroadcaster(new PlumtreeBroadcaster.Transport() {
+            @Override
+            public void sendPayload(JSONObject message, Set<String> targetPeers) {
+                Priority priority = getPriorityFromString(message.optString("_priority", "MEDIUM"));
+                queueChunks(message, priority, targetPeers);
+            }
+
+            @Override
+            public void sendControl(String peerId, JSONObject control) {
+                sendToDevice(peerId, control.toString());
+            }
+        });
+        this.linkStateDatabase = new LinkStateDatabase(localDeviceId, topologyManager, clock, new LinkStateDatabase.Transport() {
+            @Override
+            public void sendLinkState(String peerId, JSONObject lsa) {
+                sendToDevice(peerId, lsa.toString());
+            }
+
+            @Override
+            public Collection<String> getLinkedPeers() {
+                return PeerConnectionManager.this.getLinkedPeers();
+            }
+        });
         this.deviceId = deviceId;
         startMessageProcessing();
     }
@@ -73,7 +162,7 @@ public class PeerConnectionManager implements PeerConnection.Observer {
         config.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
         config.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
 
-        PeerConnection peerConnection = factory.createPeerConnection(config, this);
+        PeerConnection peerConnection = factory.createPeerConnection(config, new PeerObserver(deviceId));
         if (peerConnection == null) {
             Log.e(TAG, "Failed to create peer connection");
             return;
@@ -86,6 +175,7 @@ public class PeerConnectionManager implements PeerConnection.Observer {
             init.ordered = true;
             init.maxRetransmits = 0; // Reliable messaging
             DataChannel dataChannel = peerConnection.createDataChannel("mesh", init);
+            dataChannel.registerObserver(new DataChannelObserver(deviceId));
             dataChannels.put(deviceId, dataChannel);
         }
 
@@ -94,49 +184,398 @@ public class PeerConnectionManager implements PeerConnection.Observer {
         peerEvent.put("deviceId", deviceId);
         peerEvent.put("isInitiator", isInitiator);
         plugin.notifyWebRTCEvent("peerConnected", peerEvent);
+        flightRecorder.record(FlightRecorder.PEER_CONNECTED, deviceId, 0);
 
-        // After successful connection
-        topologyManager.addPeer(deviceId, new ArrayList<>(peerConnections.keySet()));
+        // After successful connection; the peer's own links arrive in its link-state advertisement
+        topologyManager.addPeer(localDeviceId, Collections.singletonList(deviceId));
+        linkStateDatabase.onLocalLinksChanged();
+        discoveryManager.onLocalStateChanged();
     }
 
     // Handle mesh network message broadcasting
     public void broadcastToMesh(String message, String sourceDeviceId) {
         if (!deduplicator.isNewMessage(message, sourceDeviceId)) {
+            dedupHits.increment();
             return;
         }
 
         try {
             JSONObject messageObj = new JSONObject(message);
-            String type = messageObj.optString("type");
-            Priority priority = getPriorityFromString(messageObj.optString("_priority", "MEDIUM"));
-            
-            // Add message metadata
-            messageObj.put("_messageId", generateMessageId());
-            messageObj.put("_timestamp", System.currentTimeMillis());
+            boolean isOrigin = !messageObj.has("_messageId");
+            Priority priority = prepareMessage(messageObj, sourceDeviceId);
+            floodPrepared(messageObj, priority, sourceDeviceId, isOrigin);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error preparing message", e);
+        }
+    }
+
+    // Flood a message whose metadata is already set; isOrigin if we created it
+    private void floodPrepared(JSONObject messageObj, Priority priority, String sourceDeviceId, boolean isOrigin)
+            throws JSONException {
+        if (isOrigin && broadcastMode == BroadcastMode.TREE) {
+            messageObj.put("_tree", true);
+        }
+        if (messageObj.optBoolean("_tree")) {
+            if (isOrigin) {
+                plumtree.broadcast(messageObj, getLinkedPeers());
+            } else {
+                plumtree.relay(messageObj, sourceDeviceId, getLinkedPeers());
+                treeRelays.increment();
+            }
+            return;
+        }
+
+        Set<String> targetPeers = new HashSet<>(topologyManager.getDirectPeers());
+        targetPeers.remove(sourceDeviceId);
+        queueChunks(messageObj, priority, targetPeers);
+        if (!isOrigin) {
+            floodRelays.increment();
+        }
+    }
+
+    // Send a message to a single device, forwarded hop by hop along the routing table
+    public void unicastToMesh(String message, String targetDeviceId) {
+        try {
+            JSONObject messageObj = new JSONObject(message);
+            messageObj.put("_targetId", targetDeviceId);
+            Priority priority = prepareMessage(messageObj, localDeviceId);
+
+            int routeCount = unicastRoutes.getOrDefault(priority, 1);
+            if (routeCount > 1 && sendOverDisjointRoutes(messageObj, priority, targetDeviceId, routeCount)) {
+                return;
+            }
+
+            String nextHop = getUnicastNextHop(targetDeviceId);
+            if (nextHop == null) {
+                // No known route: fall back to bounded flooding
+                floodPrepared(messageObj, priority, localDeviceId, true);
+                return;
+            }
+            queueChunks(messageObj, priority, Collections.singleton(nextHop));
+        } catch (JSONException e) {
+            Log.e(TAG, "Error preparing unicast message", e);
+        }
+    }
+
+    /*
+     * Sends one copy of the message along each of up to routeCount node-disjoint
+     * routes, pinned with _route so relays don't converge back onto the same
+     * path. The receiver keeps the first copy; dedup drops the rest.
+     */
+    private boolean sendOverDisjointRoutes(JSONObject messageObj, Priority priority, String targetDeviceId, int routeCount)
+            throws JSONException {
+        List<List<String>> routes = new ArrayList<>();
+        for (List<String> route : topologyManager.getDisjointRoutes(targetDeviceId, routeCount)) {
+            if (dataChannels.containsKey(route.get(1))) {
+                routes.add(route);
+            }
+        }
+        if (routes.size() < 2) return false;
+
+        for (List<String> route : routes) {
+            JSONObject copy = new JSONObject(messageObj.toString());
+            copy.put("_route", new JSONArray(route));
+            queueChunks(copy, priority, Collections.singleton(route.get(1)));
+        }
+        return true;
+    }
+
+    private void forwardUnicast(JSONObject json, String sourceId, String fromDeviceId) {
+        String targetId = json.optString("_targetId");
+        String nextHop = getPinnedNextHop(json);
+        if (nextHop == null) {
+            nextHop = getUnicastNextHop(targetId);
+        }
+        if (nextHop == null || nextHop.equals(fromDeviceId)) {
+            // Next hop is gone or would bounce back: fall back to bounded flooding
+            broadcastToMesh(json.toString(), sourceId);
+            return;
+        }
+        Priority priority = getPriorityFromString(json.optString("_priority", "MEDIUM"));
+        queueChunks(json, priority, Collections.singleton(nextHop));
+        unicastRelays.increment();
+    }
+
+    public JSONObject getTopology() {
+        return topologyManager.getVersionedTopology();
+    }
+
+    public void setTopologyEventInterval(long interval) {
+        topologyManager.setTopologyEventInterval(interval);
+    }
+
+    public void setBroadcastMode(BroadcastMode mode) {
+        this.broadcastMode = mode;
+    }
+
+    // Next hop on a source-pinned route, or null if the message has none or it's broken
+    private String getPinnedNextHop(JSONObject json) {
+        JSONArray route = json.optJSONArray("_route");
+        if (route == null) return null;
+        for (int i = 0; i < route.length() - 1; i++) {
+            if (localDeviceId.equals(route.optString(i))) {
+                String nextHop = route.optString(i + 1);
+                return dataChannels.containsKey(nextHop) ? nextHop : null;
+            }
+        }
+        return null;
+    }
+
+    public void setUnicastRoutes(Priority priority, int routeCount) {
+        unicastRoutes.put(priority, Math.max(1, routeCount));
+    }
+
+    // Peers we currently hold a data channel to
+    private List<String> getLinkedPeers() {
+        return new ArrayList<>(dataChannels.keySet());
+    }
+
+    private String getUnicastNextHop(String targetDeviceId) {
+        // The cost-weighted route may bypass a poor direct link
+        String nextHop = topologyManager.getNextHop(targetDeviceId);
+        if (nextHop != null && dataChannels.containsKey(nextHop)) {
+            return nextHop;
+        }
+        return dataChannels.containsKey(targetDeviceId) ? targetDeviceId : null;
+    }
+
+    // Add message metadata once at the origin; relays keep it intact
+    private Priority prepareMessage(JSONObject messageObj, String sourceDeviceId) throws JSONException {
+        Priority priority = getPriorityFromString(messageObj.optString("_priority", "MEDIUM"));
+        if (!messageObj.has("_messageId")) {
+            long version = clock.now();
+            messageObj.put("_messageId", generateMessageId(version));
+            messageObj.put("_timestamp", version);
             messageObj.put("_sourceId", sourceDeviceId);
-            messageObj.put("_priority", priority.toString());
-            
-            // Process message (compress and fragment if needed)
-            List<JSONObject> chunks = messageProcessor.processOutgoingMessage(
-                messageObj.toString()
-            );
+            if (tracer.shouldSample(messageObj)) {
+                String targetId = messageObj.optString("_targetId", null);
+                tracer.mark(messageObj, localDeviceId, targetId != null
+                    ? Collections.singletonList(targetId)
+                    : topologyManager.getReachableDevices());
+            }
+        }
+        messageObj.put("_priority", priority.toString());
+        return priority;
+    }
 
-            Set<String> targetPeers = new HashSet<>(topologyManager.getDirectPeers());
-            targetPeers.remove(sourceDeviceId);
+    private void queueChunks(JSONObject messageObj, Priority priority, Set<String> targetPeers) {
+        boolean traced = MessageTracer.isTraced(messageObj);
+        if (traced) {
+            MessageTracer.record(messageObj, localDeviceId, MessageTracer.STAGE_ENQUEUE, System.currentTimeMillis());
+        }
+
+        // Process message (compress and fragment if needed)
+        List<JSONObject> chunks = messageProcessor.processOutgoingMessage(
+            messageObj.toString()
+        );
+
+        // Queue the chunks together; the receiver's ack covers all of them
+        List<String> frames = new ArrayList<>(chunks.size());
+        for (JSONObject chunk : chunks) {
+            frames.add(chunk.toString());
+        }
+        priorityManager.queueMessage(
+            frames,
+            priority,
+            targetPeers,
+            messageObj.optString("_messageId", null),
+            messageObj.optString("type"),
+            traced
+        );
+    }
+
+    // Apply a local counter update and propagate it through the mesh
+    public void sendCounter(String code, String eventId, boolean isPresent, boolean isManual, String priority) {
+        AttendeeStore.CounterUpdate update = new AttendeeStore.CounterUpdate(
+            code, eventId, isPresent, isManual, clock.now(), clock.getNodeId()
+        );
+        if (attendeeStore.apply(update)) {
+            scheduleCountsNotification();
+        }
+
+        try {
+            JSONObject counter = update.toJSON();
+            counter.put("type", "counter");
+            counter.put("_priority", priority);
+            broadcastToMesh(counter.toString(), localDeviceId);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating counter message", e);
+        }
+    }
+
+    // Apply a burst of local counter updates as one batch and one mesh frame
+    public void sendCounters(List<AttendeeStore.CounterUpdate> updates, String priority) {
+        if (updates.isEmpty()) return;
+        if (!attendeeStore.applyAll(updates).isEmpty()) {
+            scheduleCountsNotification();
+        }
 
-            // Queue each chunk
-            for (JSONObject chunk : chunks) {
-                priorityManager.queueMessage(
-                    chunk.toString(),
-                    priority,
-                    targetPeers
-                );
+        try {
+            JSONArray counters = new JSONArray();
+            for (AttendeeStore.CounterUpdate update : updates) {
+                counters.put(update.toJSON());
             }
+            JSONObject batch = new JSONObject();
+            batch.put("type", "counterBatch");
+            batch.put("counters", counters);
+            batch.put("_priority", priority);
+            broadcastToMesh(batch.toString(), localDeviceId);
         } catch (JSONException e) {
-            Log.e(TAG, "Error preparing message", e);
+            Log.e(TAG, "Error creating counter batch message", e);
+        }
+    }
+
+    private void handleCounter(String fromDeviceId, JSONObject counter) {
+        AttendeeStore.CounterUpdate update = AttendeeStore.CounterUpdate.fromJSON(counter);
+        if (!attendeeStore.apply(update)) {
+            return; // Stale update
+        }
+        scheduleCountsNotification();
+
+        JSObject counterEvent = new JSObject();
+        counterEvent.put("deviceId", fromDeviceId);
+        counterEvent.put("code", update.code);
+        counterEvent.put("eventId", update.eventId);
+        counterEvent.put("isPresent", update.isPresent);
+        counterEvent.put("isManual", update.isManual);
+        counterEvent.put("timestamp", HybridLogicalClock.physicalTime(update.version));
+        plugin.notifyWebRTCEvent("counterReceived", counterEvent);
+    }
+
+    private void handleCounterBatch(String fromDeviceId, JSONObject batch) throws JSONException {
+        JSONArray counters = batch.getJSONArray("counters");
+        List<AttendeeStore.CounterUpdate> updates = new ArrayList<>(counters.length());
+        for (int i = 0; i < counters.length(); i++) {
+            updates.add(AttendeeStore.CounterUpdate.fromJSON(counters.getJSONObject(i)));
+        }
+
+        List<AttendeeStore.CounterUpdate> applied = attendeeStore.applyAll(updates);
+        if (applied.isEmpty()) {
+            return; // All updates were stale
+        }
+        scheduleCountsNotification();
+
+        JSONArray appliedCounters = new JSONArray();
+        for (AttendeeStore.CounterUpdate update : applied) {
+            appliedCounters.put(update.toEventJSON());
+        }
+        JSObject counterEvent = new JSObject();
+        counterEvent.put("type", "batch");
+        counterEvent.put("deviceId", fromDeviceId);
+        counterEvent.put("counters", appliedCounters);
+        plugin.notifyWebRTCEvent("counterReceived", counterEvent);
+    }
+
+    // Send an application message to one device, or to the whole mesh if no target is given
+    public void sendMeshMessage(JSONObject message, String targetDeviceId, String priority) {
+        try {
+            message.put("_priority", getPriorityFromString(priority).toString());
+            if (targetDeviceId != null) {
+                unicastToMesh(message.toString(), targetDeviceId);
+            } else {
+                broadcastToMesh(message.toString(), localDeviceId);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating mesh message", e);
         }
     }
 
+    // New version for a local state change
+    public long nextVersion() {
+        return clock.now();
+    }
+
+    // Full node id, stamped next to our versions as their tie-breaker
+    public long getNodeId() {
+        return clock.getNodeId();
+    }
+
+    // Send our attendee state to a single (possibly multi-hop) peer
+    public void sendInitialState(String targetDeviceId) {
+        try {
+            JSONObject state = new JSONObject();
+            state.put("type", "initial_state");
+            state.put("attendees", attendeeStore.toJSON());
+            state.put("_priority", Priority.HIGH.toString());
+            unicastToMesh(state.toString(), targetDeviceId);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating initial state message", e);
+        }
+    }
+
+    private void handleInitialState(String fromDeviceId, JSONObject state) throws JSONException {
+        JSONObject attendees = state.getJSONObject("attendees");
+        List<AttendeeStore.CounterUpdate> updates = new ArrayList<>(attendees.length());
+        Iterator<String> codes = attendees.keys();
+        while (codes.hasNext()) {
+            updates.add(AttendeeStore.CounterUpdate.fromJSON(attendees.getJSONObject(codes.next())));
+        }
+
+        List<AttendeeStore.CounterUpdate> applied = attendeeStore.applyAll(updates);
+        if (applied.isEmpty()) {
+            return;
+        }
+        scheduleCountsNotification();
+
+        JSONObject appliedAttendees = new JSONObject();
+        for (AttendeeStore.CounterUpdate update : applied) {
+            appliedAttendees.put(update.code, update.toEventJSON());
+        }
+        JSObject stateEvent = new JSObject();
+        stateEvent.put("type", "initial_state");
+        stateEvent.put("deviceId", fromDeviceId);
+        stateEvent.put("attendees", appliedAttendees);
+        plugin.notifyWebRTCEvent("counterReceived", stateEvent);
+    }
+
+    public AttendeeStore getAttendeeStore() {
+        return attendeeStore;
+    }
+
+    public JSObject getCounts(String eventId) {
+        JSObject result = new JSObject();
+        if (eventId != null) {
+            JSONObject counts = attendeeStore.countsToJSON(eventId);
+            result.put("eventId", eventId);
+            result.put("counts", counts != null ? counts : JSONObject.NULL);
+        } else {
+            result.put("events", attendeeStore.countsToJSON());
+        }
+        return result;
+    }
+
+    // Emit countsChanged at most once per throttle interval while updates arrive
+    public synchronized void startCountsUpdates(long throttleInterval) {
+        countsThrottleInterval = throttleInterval > 0 ? throttleInterval : DEFAULT_COUNTS_THROTTLE_INTERVAL;
+        if (countsTimer == null) {
+            countsTimer = new Timer(true);
+        }
+    }
+
+    public synchronized void stopCountsUpdates() {
+        if (countsTimer != null) {
+            countsTimer.cancel();
+            countsTimer = null;
+        }
+        countsNotificationPending = false;
+    }
+
+    private synchronized void scheduleCountsNotification() {
+        if (countsTimer == null || countsNotificationPending) return;
+        countsNotificationPending = true;
+        countsTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (PeerConnectionManager.this) {
+                    countsNotificationPending = false;
+                }
+                JSObject countsEvent = new JSObject();
+                countsEvent.put("events", attendeeStore.countsToJSON());
+                plugin.notifyWebRTCEvent("countsChanged", countsEvent);
+            }
+        }, countsThrottleInterval);
+    }
+
     private Priority getPriorityFromString(String priorityStr) {
         try {
             return Priority.valueOf(priorityStr.toUpperCase());
@@ -149,28 +588,48 @@ public class PeerConnectionManager implements PeerConnection.Observer {
     private void sendToDevice(String deviceId, String message) {
         DataChannel channel = dataChannels.get(deviceId);
         if (channel != null && channel.state() == DataChannel.State.OPEN) {
-            ByteBuffer buffer = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
-            channel.send(new DataChannel.Buffer(buffer, false));
+            sendFrame(deviceId, channel, message);
         }
     }
 
+    private void sendFrame(String deviceId, DataChannel channel, String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        channel.send(new DataChannel.Buffer(ByteBuffer.wrap(bytes), false));
+        MeshMetrics.PeerCounters counters = metrics.peer(deviceId);
+        counters.bytesOut.add(bytes.length);
+        counters.framesOut.increment();
+        flightRecorder.record(FlightRecorder.FRAME_SENT, deviceId, bytes.length);
+    }
+
     // Network health monitoring
     public JSObject getNetworkStats() {
         JSObject stats = new JSObject();
         double avgLatency = 0;
         double avgPacketLoss = 0;
         int peerCount = peerConnections.size();
+        JSObject peers = new JSObject();
 
         if (peerCount > 0) {
             for (String deviceId : peerConnections.keySet()) {
-                List<Long> rtts = rttHistory.getOrDefault(deviceId, new ArrayList<>());
-                int losses = packetLossCount.getOrDefault(deviceId, 0);
-
-                if (!rtts.isEmpty()) {
-                    double peerLatency = rtts.stream().mapToLong(Long::longValue).average().getAsDouble();
-                    avgLatency += peerLatency;
-                    avgPacketLoss += (double) losses / rtts.size();
-                }
+                LinkMetrics metrics = linkMetrics.get(deviceId);
+                if (metrics == null) continue;
+                RttStats rtt = metrics.getRttStats();
+                if (rtt.getCount() == 0) continue;
+
+                avgLatency += rtt.getSmoothed();
+                avgPacketLoss += metrics.getLossRate();
+
+                JSObject peer = new JSObject();
+                peer.put("rtt", rtt.getSmoothed());
+                peer.put("rttVariation", rtt.getVariation());
+                peer.put("minRtt", rtt.getMin());
+                peer.put("maxRtt", rtt.getMax());
+                peer.put("p50", rtt.getPercentile(50));
+                peer.put("p95", rtt.getPercentile(95));
+                peer.put("p99", rtt.getPercentile(99));
+                peer.put("packetLoss", metrics.getLossRate());
+                peer.put("retransmitTimeout", rtt.getRetransmitTimeout(0));
+                peers.put(deviceId, peer);
             }
             avgLatency /= peerCount;
             avgPacketLoss /= peerCount;
@@ -178,67 +637,193 @@ public class PeerConnectionManager implements PeerConnection.Observer {
 
         stats.put("averageLatency", avgLatency);
         stats.put("packetLoss", avgPacketLoss);
-        stats.put("keepaliveInterval", KEEPALIVE_INTERVAL);
+        stats.put("keepaliveInterval", getAverageKeepaliveInterval());
         stats.put("peerCount", peerCount);
+        stats.put("peers", peers);
 
         return stats;
     }
 
-    // Add keepalive methods
-    public void startKeepalive() {
-        if (isKeepaliveRunning) return;
-        isKeepaliveRunning = true;
-        scheduleKeepalive();
+    /** Counters, gauges and per-peer traffic, plus the compression ratio derived from the byte counters. */
+    public JSONObject getMetrics() throws JSONException {
+        JSONObject snapshot = metrics.snapshot();
+        JSONObject counters = snapshot.getJSONObject("counters");
+        long compressedInput = counters.optLong("compression.inputBytes");
+        snapshot.put("compressionRatio", compressedInput == 0 ? 1.0
+            : (double) counters.optLong("compression.outputBytes") / compressedInput);
+        return snapshot;
     }
 
-    public void stopKeepalive() {
-        isKeepaliveRunning = false;
-        keepaliveHandler.removeCallbacksAndMessages(null);
+    /** Emits a "metrics" event with {@link #getMetrics()} every interval; 0 stops it. */
+    public synchronized void setMetricsEventInterval(long interval) {
+        if (metricsTask != null) {
+            metricsTask.cancel();
+            metricsTask = null;
+        }
+        if (interval <= 0 || messageProcessingTimer == null) return;
+        metricsTask = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    plugin.notifyWebRTCEvent("metrics", JSObject.fromJSONObject(getMetrics()));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Error creating metrics event", e);
+                }
+            }
+        };
+        messageProcessingTimer.scheduleAtFixedRate(metricsTask, interval, interval);
+    }
+
+    public void setTraceSampleRate(double sampleRate) {
+        tracer.setSampleRate(sampleRate);
+    }
+
+    /** Per-hop breakdowns of sampled messages reported back to us. */
+    public JSONArray getTraces(boolean clear) {
+        return tracer.getTraces(clear);
+    }
+
+    /** Latency histograms per stage, peer and message type; optionally starts a fresh window. */
+    public JSONObject getLatencyHistograms(boolean reset) throws JSONException {
+        return latencyRecorder.snapshot(reset);
+    }
+
+    // Keepalive runs on the mesh worker so a stalled UI thread can't delay probes or fake timeouts
+    public synchronized void startKeepalive() {
+        if (keepaliveTask != null || messageProcessingTimer == null) return;
+        keepaliveTask = new TimerTask() {
+            @Override
+            public void run() {
+                sendKeepaliveToAllPeers();
+                checkPeerTimeouts();
+            }
+        };
+        messageProcessingTimer.schedule(keepaliveTask, KEEPALIVE_TICK, KEEPALIVE_TICK);
+    }
+
+    public synchronized void stopKeepalive() {
+        if (keepaliveTask != null) {
+            keepaliveTask.cancel();
+            keepaliveTask = null;
+        }
     }
 
-    private void scheduleKeepalive() {
-        if (!isKeepaliveRunning) return;
+    /**
+     * Phi levels at which a peer is routed around, and at which it is probed
+     * directly and disconnected if the probe goes unanswered.
+     */
+    public void setFailureDetectorThresholds(double suspectPhi, double failPhi) {
+        this.suspectPhi = suspectPhi;
+        this.failPhi = Math.max(failPhi, suspectPhi);
+    }
 
-        keepaliveHandler.postDelayed(() -> {
-            sendKeepaliveToAllPeers();
-            checkPeerTimeouts();
-            scheduleKeepalive();
-        }, KEEPALIVE_INTERVAL);
+    public double getSuspectPhi() {
+        return suspectPhi;
+    }
+
+    public double getFailPhi() {
+        return failPhi;
+    }
+
+    private void recordFrame(String deviceId, String type) {
+        long now = System.currentTimeMillis();
+        KeepaliveState state = keepaliveStates.computeIfAbsent(deviceId, k -> new KeepaliveState(now));
+        state.detector.heartbeat(now);
+        if (!"pong".equals(type)) {
+            state.lastTraffic = now;
+        }
     }
 
     private void sendKeepaliveToAllPeers() {
         long now = System.currentTimeMillis();
-        JSONObject ping = new JSONObject();
+        String message = createPing(now);
+        if (message == null) return;
+
+        for (Map.Entry<String, DataChannel> entry : dataChannels.entrySet()) {
+            String deviceId = entry.getKey();
+            DataChannel channel = entry.getValue();
+            if (channel.state() != DataChannel.State.OPEN) continue;
+
+            KeepaliveState state = keepaliveStates.computeIfAbsent(deviceId, k -> new KeepaliveState(now));
+            // A quiet link is probed at the base rate so its failure detector keeps getting answers
+            boolean quiet = now - state.detector.getLastArrival() >= KEEPALIVE_INTERVAL;
+            if (now - state.lastProbe < (quiet ? KEEPALIVE_INTERVAL : state.interval)) continue;
+
+            // Traffic since the last probe already proves the link works, so back off;
+            // busy links still get a probe at the max interval to keep link metrics fresh
+            boolean busy = !quiet && state.lastTraffic > state.lastProbe;
+            state.interval = busy ? Math.min(state.interval * 2, MAX_KEEPALIVE_INTERVAL) : KEEPALIVE_INTERVAL;
+            state.lastProbe = now;
+            if (busy && state.interval < MAX_KEEPALIVE_INTERVAL) continue;
+
+            sendProbe(deviceId, channel, message);
+        }
+    }
+
+    private String createPing(long now) {
         try {
+            JSONObject ping = new JSONObject();
             ping.put("type", "ping");
             ping.put("timestamp", now);
-            String message = ping.toString();
-
-            for (Map.Entry<String, DataChannel> entry : dataChannels.entrySet()) {
-                String deviceId = entry.getKey();
-                DataChannel channel = entry.getValue();
-
-                // Only send if we haven't received a ping recently
-                Long lastPing = lastPingTimes.get(deviceId);
-                if (lastPing == null || now - lastPing >= KEEPALIVE_INTERVAL) {
-                    if (channel.state() == DataChannel.State.OPEN) {
-                        ByteBuffer buffer = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8));
-                        channel.send(new DataChannel.Buffer(buffer, false));
-                    }
-                }
-            }
+            return ping.toString();
         } catch (JSONException e) {
             Log.e(TAG, "Error creating keepalive message", e);
+            return null;
+        }
+    }
+
+    private void sendProbe(String deviceId, DataChannel channel, String ping) {
+        LinkMetrics metrics = linkMetrics.computeIfAbsent(deviceId, k -> new LinkMetrics());
+        if (metrics.onProbeSent()) {
+            // Previous ping went unanswered
+            publishLinkMetrics(deviceId, metrics);
+        }
+        sendFrame(deviceId, channel, ping);
+    }
+
+    private long getAverageKeepaliveInterval() {
+        if (keepaliveStates.isEmpty()) return KEEPALIVE_INTERVAL;
+        long total = 0;
+        for (KeepaliveState state : keepaliveStates.values()) {
+            total += state.interval;
         }
+        return total / keepaliveStates.size();
     }
 
     private void checkPeerTimeouts() {
         long now = System.currentTimeMillis();
         List<String> timedOutPeers = new ArrayList<>();
 
-        for (Map.Entry<String, Long> entry : lastPingTimes.entrySet()) {
-            if (now - entry.getValue() > PEER_TIMEOUT) {
+        for (Map.Entry<String, KeepaliveState> entry : keepaliveStates.entrySet()) {
+            KeepaliveState state = entry.getValue();
+            double phi = state.detector.phi(now);
+            if (phi < failPhi) {
+                state.failingSince = 0;
+            } else if (state.failingSince == 0) {
+                // Confirm with a direct probe; any frame in reply brings phi back down
+                state.failingSince = now;
+                DataChannel channel = dataChannels.get(entry.getKey());
+                String ping = createPing(now);
+                if (channel != null && channel.state() == DataChannel.State.OPEN && ping != null) {
+                    sendProbe(entry.getKey(), channel, ping);
+                }
+            } else if (now - state.failingSince >= FAIL_CONFIRM_TIMEOUT) {
                 timedOutPeers.add(entry.getKey());
+                continue;
+            }
+
+            // Route around a suspected peer while it still has a chance to recover
+            boolean suspected = phi >= suspectPhi;
+            if (suspected != state.suspected) {
+                state.suspected = suspected;
+                topologyManager.setPeerSuspected(entry.getKey(), suspected);
+                flightRecorder.record(FlightRecorder.PEER_SUSPECTED, entry.getKey(), suspected ? 1 : 0);
+
+                JSObject suspicionEvent = new JSObject();
+                suspicionEvent.put("deviceId", entry.getKey());
+                suspicionEvent.put("suspected", suspected);
+                suspicionEvent.put("phi", phi);
+                plugin.notifyWebRTCEvent("peerSuspected", suspicionEvent);
             }
         }
 
@@ -249,6 +834,7 @@ public class PeerConnectionManager implements PeerConnection.Observer {
     }
 
     private void handlePeerTimeout(String deviceId) {
+        flightRecorder.record(FlightRecorder.PEER_TIMEOUT, deviceId, 0);
         // Clean up peer connection
         PeerConnection connection = peerConnections.get(deviceId);
         if (connection != null) {
@@ -264,9 +850,10 @@ public class PeerConnectionManager implements PeerConnection.Observer {
         }
 
         // Clean up metrics
-        lastPingTimes.remove(deviceId);
-        rttHistory.remove(deviceId);
-        packetLossCount.remove(deviceId);
+        keepaliveStates.remove(deviceId);
+        latencyRecorder.removePeer(deviceId);
+        linkMetrics.remove(deviceId);
+        metrics.removePeer(deviceId);
 
         // Notify about peer timeout
         JSObject timeoutEvent = new JSObject();
@@ -274,7 +861,10 @@ public class PeerConnectionManager implements PeerConnection.Observer {
         timeoutEvent.put("reason", "timeout");
         plugin.notifyWebRTCEvent("peerTimeout", timeoutEvent);
 
+        plumtree.removePeer(deviceId);
         topologyManager.handlePeerDisconnection(deviceId);
+        linkStateDatabase.onLocalLinksChanged();
+        discoveryManager.onLocalStateChanged();
     }
 
     // Update DataChannelObserver to handle keepalive messages
@@ -289,60 +879,26 @@ public class PeerConnectionManager implements PeerConnection.Observer {
         public void onMessage(DataChannel.Buffer buffer) {
             byte[] data = new byte[buffer.data.remaining()];
             buffer.data.get(data);
+            MeshMetrics.PeerCounters counters = metrics.peer(deviceId);
+            counters.bytesIn.add(data.length);
+            counters.framesIn.increment();
+            flightRecorder.record(FlightRecorder.FRAME_RECEIVED, deviceId, data.length);
             String message = new String(data, StandardCharsets.UTF_8);
 
             try {
                 JSONObject json = new JSONObject(message);
-                String type = json.optString("type");
-
-                if ("messageChunk".equals(type)) {
+                recordFrame(deviceId, json.optString("type"));
+                if ("messageChunk".equals(json.optString("type"))) {
                     String assembledMessage = messageProcessor.processIncomingChunk(json);
                     if (assembledMessage != null) {
                         // Process complete message
-                        handleAssembledMessage(assembledMessage);
+                        JSONObject assembledJson = new JSONObject(assembledMessage);
+                        MessageTracer.onReceived(assembledJson, json, deviceId, localDeviceId, System.currentTimeMillis());
+                        handleIncomingMessage(deviceId, assembledMessage, assembledJson);
                     }
                     return;
                 }
-
-                String sourceId = json.optString("_sourceId", deviceId);
-                int hopCount = json.optInt("_hopCount", 0);
-
-                // Check if this is a duplicate message
-                if (!deduplicator.isNewMessage(message, sourceId)) {
-                    return;
-                }
-
-                // Increment hop count
-                json.put("_hopCount", hopCount + 1);
-
-                if ("ping".equals(type)) {
-                    handlePing(deviceId, json);
-                } else if ("pong".equals(type)) {
-                    handlePong(deviceId, json);
-                } else if ("meshAnnouncement".equals(type)) {
-                    discoveryManager.handleAnnouncement(deviceId, json);
-                    return;
-                } else if ("messageAck".equals(type)) {
-                    String messageId = json.getString("messageId");
-                    priorityManager.handleAck(messageId, deviceId);
-                    return;
-                } else {
-                    // Handle regular mesh messages
-                    JSObject messageEvent = new JSObject();
-                    messageEvent.put("deviceId", deviceId);
-                    messageEvent.put("data", json.toString());
-                    plugin.notifyWebRTCEvent("meshMessage", messageEvent);
-
-                    // Relay message if within hop limit
-                    if (hopCount < topologyManager.getMaxHops()) {
-                        broadcastToMesh(json.toString(), sourceId);
-                    }
-                }
-
-                // Send acknowledgment for received message
-                if (json.has("_messageId")) {
-                    sendAck(json.getString("_messageId"), deviceId);
-                }
+                handleIncomingMessage(deviceId, message, json);
             } catch (JSONException e) {
                 Log.e(TAG, "Error parsing message", e);
             }
@@ -368,7 +924,6 @@ public class PeerConnectionManager implements PeerConnection.Observer {
     private void handlePing(String deviceId, JSONObject ping) {
         try {
             long timestamp = ping.getLong("timestamp");
-            lastPingTimes.put(deviceId, System.currentTimeMillis());
 
             // Send pong response
             JSONObject pong = new JSONObject();
@@ -378,8 +933,7 @@ public class PeerConnectionManager implements PeerConnection.Observer {
 
             DataChannel channel = dataChannels.get(deviceId);
             if (channel != null && channel.state() == DataChannel.State.OPEN) {
-                ByteBuffer buffer = ByteBuffer.wrap(pong.toString().getBytes(StandardCharsets.UTF_8));
-                channel.send(new DataChannel.Buffer(buffer, false));
+                sendFrame(deviceId, channel, pong.toString());
             }
         } catch (JSONException e) {
             Log.e(TAG, "Error handling ping", e);
@@ -391,21 +945,20 @@ public class PeerConnectionManager implements PeerConnection.Observer {
             long originalTimestamp = pong.getLong("originalTimestamp");
             long rtt = System.currentTimeMillis() - originalTimestamp;
 
-            // Update RTT history
-            List<Long> history = rttHistory.getOrDefault(deviceId, new ArrayList<>());
-            history.add(rtt);
-            if (history.size() > 10) { // Keep last 10 measurements
-                history.remove(0);
-            }
-            rttHistory.put(deviceId, history);
-
-            // Update last ping time
-            lastPingTimes.put(deviceId, System.currentTimeMillis());
+            LinkMetrics metrics = linkMetrics.computeIfAbsent(deviceId, k -> new LinkMetrics());
+            metrics.onProbeAnswered(rtt);
+            publishLinkMetrics(deviceId, metrics);
         } catch (JSONException e) {
             Log.e(TAG, "Error handling pong", e);
         }
     }
 
+    private void publishLinkMetrics(String deviceId, LinkMetrics metrics) {
+        if (topologyManager.updateLinkMetrics(localDeviceId, deviceId, metrics.getEtx(), metrics.getRtt())) {
+            linkStateDatabase.onLocalLinksChanged();
+        }
+    }
+
     private void sendAck(String messageId, String targetPeerId) {
         try {
             JSONObject ack = new JSONObject();
@@ -419,22 +972,123 @@ public class PeerConnectionManager implements PeerConnection.Observer {
         }
     }
 
-    private void handleAssembledMessage(String message) {
-        try {
-            JSONObject json = new JSONObject(message);
-            String type = json.optString("type");
-            String sourceId = json.optString("_sourceId", deviceId);
-
-            // Process the assembled message as before
-            if ("ping".equals(type)) {
-                handlePing(deviceId, json);
-            } else if ("pong".equals(type)) {
-                handlePong(deviceId, json);
-            } else {
-                // ... rest of message handling ...
+    private void handleIncomingMessage(String deviceId, String message, JSONObject json) throws JSONException {
+        String type = json.optString("type");
+        String sourceId = json.optString("_sourceId", deviceId);
+        int hopCount = json.optInt("_hopCount", 0);
+
+        if (PlumtreeBroadcaster.TYPE_IHAVE.equals(type)
+                || PlumtreeBroadcaster.TYPE_GRAFT.equals(type)
+                || PlumtreeBroadcaster.TYPE_PRUNE.equals(type)) {
+            plumtree.handleControl(deviceId, json);
+            return;
+        }
+        if (LinkStateDatabase.TYPE_LINK_STATE.equals(type)) {
+            linkStateDatabase.handleAdvertisement(deviceId, json);
+            return;
+        }
+
+        // Check if this is a duplicate message; tree payloads are tracked by id
+        // so that a duplicate can prune the link it arrived on. Copies of one
+        // message differ in hop count and route, so dedup by id when there is one.
+        boolean isTree = json.optBoolean("_tree");
+        String dedupKey = json.has("_messageId") ? json.getString("_messageId") : message;
+        if (isTree ? !plumtree.onPayload(deviceId, json) : !deduplicator.isNewMessage(dedupKey, sourceId)) {
+            dedupHits.increment();
+            // Still ack it, or a retransmit whose ack was lost is retried until it gives up
+            if (json.has("_messageId")) {
+                sendAck(json.getString("_messageId"), deviceId);
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error handling assembled message", e);
+            return;
+        }
+
+        // Merge the origin's clock so our next versions order after it
+        if (json.has("_timestamp")) {
+            clock.update(json.optLong("_timestamp"));
+        }
+
+        // Increment hop count
+        json.put("_hopCount", hopCount + 1);
+
+        if ("ping".equals(type)) {
+            handlePing(deviceId, json);
+        } else if ("pong".equals(type)) {
+            handlePong(deviceId, json);
+        } else if ("meshAnnouncement".equals(type)) {
+            discoveryManager.handleAnnouncement(deviceId, json);
+            return;
+        } else if (MeshDiscoveryManager.TYPE_NEIGHBORS_REQUEST.equals(type)) {
+            discoveryManager.handleNeighborsRequest(deviceId);
+            return;
+        } else if (MeshDiscoveryManager.TYPE_NEIGHBORS.equals(type)) {
+            discoveryManager.handleNeighbors(deviceId, json);
+            return;
+        } else if ("messageAck".equals(type)) {
+            String messageId = json.getString("messageId");
+            priorityManager.handleAck(messageId, deviceId);
+            latencyRecorder.onAck(messageId, deviceId, System.currentTimeMillis());
+            return;
+        } else {
+            String targetId = json.optString("_targetId", null);
+            boolean forUs = targetId == null || targetId.equals(localDeviceId);
+
+            if (forUs) {
+                if (json.has("_timestamp")) {
+                    long originTime = HybridLogicalClock.physicalTime(json.getLong("_timestamp"));
+                    latencyRecorder.record(LatencyRecorder.Stage.ORIGIN_TO_DELIVERY, sourceId, type,
+                        Math.max(0, System.currentTimeMillis() - originTime));
+                }
+                if (MessageTracer.TYPE_REPORT.equals(type)) {
+                    handleTraceReport(json);
+                } else {
+                    deliverMessage(deviceId, type, json);
+                }
+                if (MessageTracer.isTraced(json)) {
+                    MessageTracer.record(json, localDeviceId, MessageTracer.STAGE_DELIVER, System.currentTimeMillis());
+                    if (MessageTracer.isReporter(json, localDeviceId) && !localDeviceId.equals(sourceId)) {
+                        unicastToMesh(MessageTracer.createReport(json, localDeviceId).toString(), sourceId);
+                    }
+                }
+            }
+
+            // Relay message if within hop limit
+            if (hopCount < topologyManager.getMaxHops()) {
+                // Only forwarded copies carry this record, so it's fine if nothing is relayed
+                MessageTracer.record(json, localDeviceId, MessageTracer.STAGE_RELAY, System.currentTimeMillis());
+                if (!forUs) {
+                    forwardUnicast(json, sourceId, deviceId);
+                } else if (isTree) {
+                    plumtree.relay(json, deviceId, getLinkedPeers());
+                    treeRelays.increment();
+                } else if (targetId == null && (broadcastMode != BroadcastMode.MPR || topologyManager.isRelayFor(deviceId))) {
+                    broadcastToMesh(json.toString(), sourceId);
+                }
+            }
+        }
+
+        // Send acknowledgment for received message
+        if (json.has("_messageId")) {
+            sendAck(json.getString("_messageId"), deviceId);
+        }
+    }
+
+    private void handleTraceReport(JSONObject report) throws JSONException {
+        plugin.notifyWebRTCEvent("messageTrace", JSObject.fromJSONObject(tracer.onReport(report)));
+    }
+
+    private void deliverMessage(String deviceId, String type, JSONObject json) throws JSONException {
+        if ("counter".equals(type)) {
+            handleCounter(deviceId, json);
+        } else if ("counterBatch".equals(type)) {
+            handleCounterBatch(deviceId, json);
+        } else if ("initial_state".equals(type)) {
+            handleInitialState(deviceId, json);
+        } else {
+            // Handle regular mesh messages
+            JSObject messageEvent = new JSObject();
+            messageEvent.put("deviceId", deviceId);
+            messageEvent.put("data", json.toString());
+            plugin.notifyWebRTCEvent("meshMessage", messageEvent);
         }
     }
 
@@ -450,7 +1104,83 @@ public class PeerConnectionManager implements PeerConnection.Observer {
 
     @Override
     public void onDataChannel(DataChannel dataChannel) {
-        // Instead use DataChannelObserver class
+        // Connections report through PeerObserver, which knows the peer
+        Log.w(TAG, "Data channel without a peer: " + dataChannel.label());
+    }
+
+    // Channel opened by the remote side of a connection we answered
+    private void onDataChannel(String deviceId, DataChannel dataChannel) {
+        dataChannel.registerObserver(new DataChannelObserver(deviceId));
+        dataChannels.put(deviceId, dataChannel);
+    }
+
+    // Per-connection observer, so callbacks can be attributed to their peer
+    private class PeerObserver implements PeerConnection.Observer {
+        private final String deviceId;
+
+        PeerObserver(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public void onDataChannel(DataChannel dataChannel) {
+            PeerConnectionManager.this.onDataChannel(deviceId, dataChannel);
+        }
+
+        @Override
+        public void onIceCandidate(IceCandidate iceCandidate) {
+            PeerConnectionManager.this.onIceCandidate(iceCandidate);
+        }
+
+        @Override
+        public void onIceCandidatesRemoved(IceCandidate[] candidates) {
+            PeerConnectionManager.this.onIceCandidatesRemoved(candidates);
+        }
+
+        @Override
+        public void onSignalingChange(PeerConnection.SignalingState signalingState) {
+            PeerConnectionManager.this.onSignalingChange(signalingState);
+        }
+
+        @Override
+        public void onIceConnectionChange(PeerConnection.IceConnectionState iceConnectionState) {
+            PeerConnectionManager.this.onIceConnectionChange(iceConnectionState);
+        }
+
+        @Override
+        public void onIceConnectionReceivingChange(boolean b) {
+            PeerConnectionManager.this.onIceConnectionReceivingChange(b);
+        }
+
+        @Override
+        public void onIceGatheringChange(PeerConnection.IceGatheringState iceGatheringState) {
+            PeerConnectionManager.this.onIceGatheringChange(iceGatheringState);
+        }
+
+        @Override
+        public void onAddStream(MediaStream mediaStream) {
+            PeerConnectionManager.this.onAddStream(mediaStream);
+        }
+
+        @Override
+        public void onRemoveStream(MediaStream mediaStream) {
+            PeerConnectionManager.this.onRemoveStream(mediaStream);
+        }
+
+        @Override
+        public void onRenegotiationNeeded() {
+            PeerConnectionManager.this.onRenegotiationNeeded();
+        }
+
+        @Override
+        public void onAddTrack(RtpReceiver rtpReceiver, MediaStream[] mediaStreams) {
+            PeerConnectionManager.this.onAddTrack(rtpReceiver, mediaStreams);
+        }
+
+        @Override
+        public void onTrack(RtpTransceiver transceiver) {
+            PeerConnectionManager.this.onTrack(transceiver);
+        }
     }
 
     // Other required Observer methods with empty implementations
@@ -515,9 +1245,9 @@ public class PeerConnectionManager implements PeerConnection.Observer {
         }
     }
 
-    private String generateMessageId() {
-        return localDeviceId + "_" + System.currentTimeMillis() + "_" + 
-               String.format("%04d", (int)(Math.random() * 10000));
+    private String generateMessageId(long version) {
+        // Versions are strictly increasing per node, so this is unique
+        return localDeviceId + "_" + Long.toHexString(version);
     }
 
     public void startDiscovery() {
@@ -536,19 +1266,34 @@ public class PeerConnectionManager implements PeerConnection.Observer {
                 processNextMessage();
             }
         }, 0, PROCESSING_INTERVAL);
+        messageProcessingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                messageProcessor.cleanup();
+            }
+        }, REASSEMBLY_CLEANUP_INTERVAL, REASSEMBLY_CLEANUP_INTERVAL);
     }
 
     private void processNextMessage() {
         MessagePriorityManager.PrioritizedMessage message = priorityManager.getNextMessage();
         if (message != null) {
+            long now = System.currentTimeMillis();
             for (String peerId : message.targetPeers) {
-                sendToDevice(peerId, message.message);
+                sendToDevice(peerId, message.traced ? MessageTracer.stampFrame(message.message, now) : message.message);
+                latencyRecorder.record(LatencyRecorder.Stage.ENQUEUE_TO_SEND, peerId, message.type, now - message.timestamp);
+                if (message.trackingId != null) {
+                    latencyRecorder.onSent(message.trackingId, peerId, message.type, now);
+                }
             }
         }
     }
 
     protected void handleOnDestroy() {
+        stopKeepalive();
         deduplicator.stop();
+        plumtree.stop();
+        linkStateDatabase.stop();
+        topologyManager.stop();
         discoveryManager.stopDiscovery();
         priorityManager.stop();
         if (messageProcessingTimer != null) {
@@ -556,6 +1301,7 @@ public class PeerConnectionManager implements PeerConnection.Observer {
             messageProcessingTimer = null;
         }
         messageProcessor.cleanup();
+        stopCountsUpdates();
     }
 
     public void setRemoteDescription(String deviceId, String sdp, String type) {
@@ -586,8 +1332,7 @@ public class PeerConnectionManager implements PeerConnection.Observer {
     public void sendMessage(String deviceId, String data) {
         DataChannel channel = dataChannels.get(deviceId);
         if (channel != null && channel.state() == DataChannel.State.OPEN) {
-            ByteBuffer buffer = ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8));
-            channel.send(new DataChannel.Buffer(buffer, false));
+            sendFrame(deviceId, channel, data);
         }
     }
 } 
\ No newline at end of file
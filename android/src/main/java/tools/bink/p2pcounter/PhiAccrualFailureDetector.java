@@ -0,0 +1,83 @@
+package tools.bink.p2pcounter;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al.) for one peer.
+ *
+ * Instead of a fixed timeout it learns the distribution of gaps between
+ * frames from the peer and reports phi, the -log10 probability that a gap
+ * this long is still normal. Phi 1 means a 10% chance we're wrong to suspect
+ * the peer, phi 3 means 0.1%, and so on. On a steady link phi climbs within
+ * seconds of the peer going silent; on a jittery one the wider spread keeps
+ * it low through ordinary hiccups.
+ *
+ * As in Akka, an acceptable heartbeat pause is added to the expected gap.
+ * After a long steady stretch the learned deviation is tiny, so without it a
+ * single heartbeat delayed by a GC pause or a radio wake-up would score as
+ * a near-certain failure.
+ */
+public class PhiAccrualFailureDetector {
+    private static final int WINDOW = 100; // Inter-arrival samples kept
+    private static final double MIN_STD_DEV = 500; // ms, so a perfectly regular link isn't hair-triggered
+
+    private final long[] intervals = new long[WINDOW];
+    private final double minMeanInterval;
+    private final double acceptablePause;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastArrival = -1;
+
+    /**
+     * @param minMeanInterval the longest gap the peer may legitimately leave,
+     *        such as its heartbeat interval. Frames on a busy link arrive far more
+     *        often than that, but once it goes quiet the next heartbeat can be a
+     *        full interval away, so the expected gap is never taken below it.
+     * @param acceptablePause how late a heartbeat may be on top of the expected
+     *        gap before it starts to count against the peer
+     */
+    public PhiAccrualFailureDetector(long minMeanInterval, long acceptablePause) {
+        this.minMeanInterval = minMeanInterval;
+        this.acceptablePause = acceptablePause;
+    }
+
+    public synchronized void heartbeat(long now) {
+        if (lastArrival >= 0) {
+            long interval = now - lastArrival;
+            if (count == WINDOW) {
+                long evicted = intervals[next];
+                sum -= evicted;
+                sumOfSquares -= (double) evicted * evicted;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % WINDOW;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+        lastArrival = now;
+    }
+
+    /** Suspicion level at the given time; 0 until the first frame arrives. */
+    public synchronized double phi(long now) {
+        if (lastArrival < 0) return 0.0;
+
+        double mean = count > 0 ? sum / count : minMeanInterval;
+        double variance = count > 0 ? Math.max(sumOfSquares / count - mean * mean, 0) : 0;
+        mean = Math.max(mean, minMeanInterval) + acceptablePause;
+        double stdDev = Math.max(Math.sqrt(variance), MIN_STD_DEV);
+
+        // Logistic approximation of the normal CDF's tail, accurate to ~0.1%
+        double y = (now - lastArrival - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - lastArrival > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    public synchronized long getLastArrival() {
+        return lastArrival;
+    }
+}
@@ -0,0 +1,310 @@
+package tools.bink.p2pcounter;
+
+import android.util.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.*;
+
+/**
+ * Epidemic broadcast tree (Plumtree) dissemination.
+ *
+ * Full payloads are pushed eagerly to a subset of direct peers that forms a
+ * spanning tree, while the remaining (lazy) links only carry message ids.
+ * A duplicate payload prunes the link it arrived on into the lazy set; an id
+ * announced before its payload arrives grafts the announcing link back into
+ * the tree.
+ *
+ * The best tree depends on where a broadcast starts, so each origin gets its
+ * own eager and lazy sets. A peer is in at most one of them; PRUNE and GRAFT
+ * move it between the two, and IHAVE alone never changes either.
+ */
+public class PlumtreeBroadcaster {
+    private static final String TAG = "PlumtreeBroadcaster";
+    public static final String TYPE_IHAVE = "treeIHave";
+    public static final String TYPE_GRAFT = "treeGraft";
+    public static final String TYPE_PRUNE = "treePrune";
+    private static final long GRAFT_TIMEOUT = 500; // Wait this long for an announced payload
+    private static final long SECOND_GRAFT_TIMEOUT = 250; // Retry with the next announcer
+    private static final long CACHE_TTL = 60000; // Longer than a broadcast takes to cross the mesh
+    private static final long CACHE_SWEEP_INTERVAL = 10000;
+    private static final int MAX_CACHE_SIZE = 10000; // Memory bound for bursts; age is the real limit
+
+    private final Transport transport;
+    private final long cacheTtl;
+    private final Map<String, Tree> trees; // origin -> links of its broadcast tree
+    private final LinkedHashMap<String, CachedMessage> receivedMessages; // messageId -> payload, oldest first
+    private final Map<String, MissingMessage> missingMessages;
+    private Timer graftTimer;
+
+    public interface Transport {
+        void sendPayload(JSONObject message, Set<String> targetPeers);
+        void sendControl(String peerId, JSONObject control);
+    }
+
+    // Eager and lazy links of one origin's tree; disjoint
+    private static class Tree {
+        final Set<String> eager = new HashSet<>();
+        final Set<String> lazy = new HashSet<>();
+
+        void makeEager(String peer) {
+            lazy.remove(peer);
+            eager.add(peer);
+        }
+
+        void makeLazy(String peer) {
+            eager.remove(peer);
+            lazy.add(peer);
+        }
+    }
+
+    private static class CachedMessage {
+        final String payload;
+        final long receivedAt;
+
+        CachedMessage(String payload, long receivedAt) {
+            this.payload = payload;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    private static class MissingMessage {
+        final String origin;
+        final List<String> announcers = new ArrayList<>();
+        TimerTask timeout;
+
+        MissingMessage(String origin) {
+            this.origin = origin;
+        }
+    }
+
+    public PlumtreeBroadcaster(Transport transport) {
+        this(transport, CACHE_TTL);
+    }
+
+    PlumtreeBroadcaster(Transport transport, long cacheTtl) {
+        this.transport = transport;
+        this.cacheTtl = cacheTtl;
+        this.trees = new HashMap<>();
+        this.receivedMessages = new LinkedHashMap<>();
+        this.missingMessages = new HashMap<>();
+        this.graftTimer = new Timer(true);
+        graftTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                expireCache();
+            }
+        }, CACHE_SWEEP_INTERVAL, CACHE_SWEEP_INTERVAL);
+    }
+
+    /** Originates a broadcast from this device. */
+    public synchronized void broadcast(JSONObject message, Collection<String> directPeers) {
+        String messageId = message.optString("_messageId");
+        cache(messageId, message);
+        push(message, messageId, null, directPeers);
+    }
+
+    /**
+     * Handles a payload received from a direct peer.
+     *
+     * @return true if the message is new and should be delivered and relayed
+     */
+    public synchronized boolean onPayload(String fromPeerId, JSONObject message) {
+        String messageId = message.optString("_messageId");
+        String origin = originOf(message);
+        Tree tree = tree(origin);
+        if (receivedMessages.containsKey(messageId)) {
+            // Redundant link: demote it and tell the sender to do the same
+            if (!tree.lazy.contains(fromPeerId)) {
+                tree.makeLazy(fromPeerId);
+                sendControl(fromPeerId, TYPE_PRUNE, messageId, origin);
+            }
+            return false;
+        }
+
+        cache(messageId, message);
+        MissingMessage missing = missingMessages.remove(messageId);
+        if (missing != null && missing.timeout != null) {
+            missing.timeout.cancel();
+        }
+        tree.makeEager(fromPeerId);
+        return true;
+    }
+
+    /** Relays a received payload along the tree, excluding the peer it came from. */
+    public synchronized void relay(JSONObject message, String fromPeerId, Collection<String> directPeers) {
+        push(message, message.optString("_messageId"), fromPeerId, directPeers);
+    }
+
+    public synchronized boolean hasReceived(String messageId) {
+        return receivedMessages.containsKey(messageId);
+    }
+
+    public synchronized void handleControl(String fromPeerId, JSONObject control) {
+        String type = control.optString("type");
+        String messageId = control.optString("messageId");
+        String origin = control.optString("origin");
+
+        if (TYPE_IHAVE.equals(type)) {
+            // The announcer keeps us lazy; our own links only change on GRAFT or PRUNE
+            if (receivedMessages.containsKey(messageId)) return;
+            MissingMessage missing = missingMessages.get(messageId);
+            if (missing == null) {
+                missing = new MissingMessage(origin);
+                missingMessages.put(messageId, missing);
+                scheduleGraft(messageId, missing, GRAFT_TIMEOUT);
+            }
+            missing.announcers.add(fromPeerId);
+        } else if (TYPE_GRAFT.equals(type)) {
+            tree(origin).makeEager(fromPeerId);
+            CachedMessage cached = receivedMessages.get(messageId);
+            if (cached != null) {
+                try {
+                    transport.sendPayload(new JSONObject(cached.payload), Collections.singleton(fromPeerId));
+                } catch (JSONException e) {
+                    Log.e(TAG, "Error replaying grafted message", e);
+                }
+            }
+        } else if (TYPE_PRUNE.equals(type)) {
+            tree(origin).makeLazy(fromPeerId);
+        }
+    }
+
+    public synchronized void removePeer(String peerId) {
+        for (Tree tree : trees.values()) {
+            tree.eager.remove(peerId);
+            tree.lazy.remove(peerId);
+        }
+        for (MissingMessage missing : missingMessages.values()) {
+            missing.announcers.remove(peerId);
+        }
+    }
+
+    public synchronized boolean isEager(String origin, String peerId) {
+        Tree tree = trees.get(origin);
+        return tree != null && tree.eager.contains(peerId);
+    }
+
+    public synchronized boolean isLazy(String origin, String peerId) {
+        Tree tree = trees.get(origin);
+        return tree != null && tree.lazy.contains(peerId);
+    }
+
+    /** Eager links summed over all origin trees. */
+    public synchronized int getEagerPeerCount() {
+        int count = 0;
+        for (Tree tree : trees.values()) {
+            count += tree.eager.size();
+        }
+        return count;
+    }
+
+    /** Lazy links summed over all origin trees. */
+    public synchronized int getLazyPeerCount() {
+        int count = 0;
+        for (Tree tree : trees.values()) {
+            count += tree.lazy.size();
+        }
+        return count;
+    }
+
+    public synchronized void stop() {
+        if (graftTimer != null) {
+            graftTimer.cancel();
+            graftTimer = null;
+        }
+        missingMessages.clear();
+    }
+
+    private void push(JSONObject message, String messageId, String excludedPeerId, Collection<String> directPeers) {
+        String origin = originOf(message);
+        Tree tree = tree(origin);
+        Set<String> eagerTargets = new HashSet<>();
+        for (String peer : directPeers) {
+            if (peer.equals(excludedPeerId)) continue;
+            if (tree.lazy.contains(peer)) {
+                sendControl(peer, TYPE_IHAVE, messageId, origin);
+            } else {
+                // Peers start out eager until a duplicate prunes them
+                tree.eager.add(peer);
+                eagerTargets.add(peer);
+            }
+        }
+        if (!eagerTargets.isEmpty()) {
+            transport.sendPayload(message, eagerTargets);
+        }
+    }
+
+    private void scheduleGraft(String messageId, MissingMessage missing, long delay) {
+        if (graftTimer == null) return;
+        missing.timeout = new TimerTask() {
+            @Override
+            public void run() {
+                onGraftTimeout(messageId);
+            }
+        };
+        graftTimer.schedule(missing.timeout, delay);
+    }
+
+    private synchronized void onGraftTimeout(String messageId) {
+        MissingMessage missing = missingMessages.get(messageId);
+        if (missing == null || receivedMessages.containsKey(messageId)) {
+            missingMessages.remove(messageId);
+            return;
+        }
+        if (missing.announcers.isEmpty()) {
+            missingMessages.remove(messageId);
+            return;
+        }
+
+        // Repair the tree through the first peer that announced the message
+        String announcer = missing.announcers.remove(0);
+        tree(missing.origin).makeEager(announcer);
+        sendControl(announcer, TYPE_GRAFT, messageId, missing.origin);
+        scheduleGraft(messageId, missing, SECOND_GRAFT_TIMEOUT);
+    }
+
+    private Tree tree(String origin) {
+        Tree tree = trees.get(origin);
+        if (tree == null) {
+            tree = new Tree();
+            trees.put(origin, tree);
+        }
+        return tree;
+    }
+
+    private static String originOf(JSONObject message) {
+        return message.optString("_sourceId");
+    }
+
+    private void cache(String messageId, JSONObject message) {
+        long now = System.currentTimeMillis();
+        receivedMessages.put(messageId, new CachedMessage(message.toString(), now));
+        expireCache(now);
+    }
+
+    private synchronized void expireCache() {
+        expireCache(System.currentTimeMillis());
+    }
+
+    // Entries are in arrival order, so expired ones are all at the head
+    private void expireCache(long now) {
+        Iterator<CachedMessage> cached = receivedMessages.values().iterator();
+        while (cached.hasNext()) {
+            CachedMessage message = cached.next();
+            if (now - message.receivedAt < cacheTtl && receivedMessages.size() <= MAX_CACHE_SIZE) break;
+            cached.remove();
+        }
+    }
+
+    private void sendControl(String peerId, String type, String messageId, String origin) {
+        try {
+            JSONObject control = new JSONObject();
+            control.put("type", type);
+            control.put("messageId", messageId);
+            control.put("origin", origin);
+            transport.sendControl(peerId, control);
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating " + type + " message", e);
+        }
+    }
+}
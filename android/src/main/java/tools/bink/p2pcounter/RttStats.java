@@ -0,0 +1,87 @@
+package tools.bink.p2pcounter;
+
+import java.util.Arrays;
+
+/**
+ * Round-trip time statistics for one link.
+ *
+ * Keeps the last WINDOW samples in a primitive ring buffer alongside the
+ * RFC 6298 smoothed RTT and RTT variation, which are updated per sample.
+ * Percentiles and window min/max sort a scratch copy, and only when asked
+ * after a new sample arrived.
+ */
+public class RttStats {
+    private static final int WINDOW = 64;
+    private static final double ALPHA = 0.125; // Smoothed RTT gain (RFC 6298)
+    private static final double BETA = 0.25; // RTT variation gain (RFC 6298)
+    private static final long MIN_RETRANSMIT_TIMEOUT = 200; // ms
+    private static final long MAX_RETRANSMIT_TIMEOUT = 5000; // ms
+
+    private final long[] samples = new long[WINDOW];
+    private final long[] sorted = new long[WINDOW];
+    private int count;
+    private int next;
+    private boolean sortedValid;
+    private double smoothed = -1;
+    private double variation;
+
+    public synchronized void add(long rtt) {
+        samples[next] = rtt;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) count++;
+        sortedValid = false;
+
+        if (smoothed < 0) {
+            smoothed = rtt;
+            variation = rtt / 2.0;
+        } else {
+            variation = (1 - BETA) * variation + BETA * Math.abs(smoothed - rtt);
+            smoothed = (1 - ALPHA) * smoothed + ALPHA * rtt;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /** Smoothed RTT in ms, or 0 before the first sample. */
+    public synchronized double getSmoothed() {
+        return Math.max(smoothed, 0);
+    }
+
+    /** Mean deviation of the RTT in ms. */
+    public synchronized double getVariation() {
+        return variation;
+    }
+
+    /** How long to wait for an answer before resending, or fallback before the first sample. */
+    public synchronized long getRetransmitTimeout(long fallback) {
+        if (smoothed < 0) return fallback;
+        long timeout = (long) Math.ceil(smoothed + 4 * variation);
+        return Math.max(MIN_RETRANSMIT_TIMEOUT, Math.min(timeout, MAX_RETRANSMIT_TIMEOUT));
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : sortedSamples()[0];
+    }
+
+    public synchronized long getMax() {
+        return count == 0 ? 0 : sortedSamples()[count - 1];
+    }
+
+    /** Nearest-rank percentile over the window, e.g. 95 for p95; 0 before the first sample. */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return 0;
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sortedSamples()[Math.max(0, Math.min(rank, count) - 1)];
+    }
+
+    private long[] sortedSamples() {
+        if (!sortedValid) {
+            System.arraycopy(samples, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            sortedValid = true;
+        }
+        return sorted;
+    }
+}
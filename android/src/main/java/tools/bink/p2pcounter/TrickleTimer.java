@@ -0,0 +1,117 @@
+package tools.bink.p2pcounter;
+
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Trickle timer (RFC 6206) for periodic state announcements.
+ *
+ * Each interval transmits once at a random point in its second half, unless
+ * {@code redundancy} consistent announcements were already heard in it. The
+ * interval doubles up to the maximum while everything stays consistent and
+ * drops back to the minimum on the first inconsistency, so a stable network
+ * goes quiet and a changing one converges quickly.
+ *
+ * Unlike plain Trickle, an announcement is never suppressed in two intervals
+ * in a row, so neighbors keep hearing from us at least every few intervals.
+ */
+public class TrickleTimer {
+    private static final int MAX_CONSECUTIVE_SUPPRESSIONS = 1;
+
+    public interface Listener {
+        /** Called on the timer thread when an announcement is due; interval is the current one in ms. */
+        void onTransmit(long interval);
+    }
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final int redundancy;
+    private final Listener listener;
+    private final Random random = new Random();
+    private Timer timer;
+    private long interval;
+    private int counter; // Consistent announcements heard this interval
+    private int suppressed; // Consecutive intervals we stayed quiet
+    private int generation; // Invalidates tasks of abandoned intervals
+
+    public TrickleTimer(long minInterval, long maxInterval, int redundancy, Listener listener) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.redundancy = redundancy;
+        this.listener = listener;
+        this.interval = minInterval;
+    }
+
+    public synchronized void start() {
+        if (timer != null) return;
+        timer = new Timer(true);
+        interval = minInterval;
+        suppressed = 0;
+        beginInterval();
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        generation++;
+    }
+
+    /** A neighbor announced state matching ours. */
+    public synchronized void hearConsistent() {
+        counter++;
+    }
+
+    /** Something changed; announce again soon. */
+    public synchronized void hearInconsistent() {
+        if (timer == null || interval == minInterval) return;
+        interval = minInterval;
+        beginInterval();
+    }
+
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    private void beginInterval() {
+        final int current = ++generation;
+        counter = 0;
+        long half = interval / 2;
+        long transmitAt = half + (long) (random.nextDouble() * (interval - half));
+
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                transmit(current);
+            }
+        }, transmitAt);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                endInterval(current);
+            }
+        }, interval);
+    }
+
+    private void transmit(int expectedGeneration) {
+        long currentInterval;
+        synchronized (this) {
+            if (generation != expectedGeneration) return;
+            if (counter >= redundancy && suppressed < MAX_CONSECUTIVE_SUPPRESSIONS) {
+                suppressed++;
+                return;
+            }
+            suppressed = 0;
+            currentInterval = interval;
+        }
+        listener.onTransmit(currentInterval);
+    }
+
+    private synchronized void endInterval(int expectedGeneration) {
+        if (generation != expectedGeneration || timer == null) return;
+        interval = Math.min(interval * 2, maxInterval);
+        beginInterval();
+    }
+}
@@ -0,0 +1,161 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class AttendeeStoreTest {
+
+    @Test
+    public void newerVersionWinsAndOlderIsIgnored() {
+        AttendeeStore store = new AttendeeStore();
+        assertTrue(store.apply("A1", "e1", true, false, 10));
+        assertFalse(store.apply("A1", "e1", false, false, 5));
+        assertTrue(store.isPresent("A1"));
+
+        assertTrue(store.apply("A1", "e1", false, false, 20));
+        assertFalse(store.isPresent("A1"));
+        assertEquals(20, store.getVersion("A1"));
+    }
+
+    @Test
+    public void redeliveredUpdateIsIdempotent() {
+        AttendeeStore store = new AttendeeStore();
+        assertTrue(store.apply("A1", "e1", true, true, 10));
+        assertFalse(store.apply("A1", "e1", true, true, 10));
+        assertEquals(1, store.getPresentCount("e1"));
+        assertEquals(1, store.getTotalCount("e1"));
+    }
+
+    @Test
+    public void equalVersionsFromConcurrentWritersConvergeInAnyOrder() {
+        // Two devices stamp the same code with the same packed version, as
+        // happens when their 8-bit node tags collide in the same millisecond
+        long version = HybridLogicalClock.fromPhysicalTime(1700000000000L);
+        long lowNode = 0x0000000000000001L;
+        long highNode = 0xf000000000000001L; // Compared unsigned, so this one wins
+        AttendeeStore.CounterUpdate present =
+            new AttendeeStore.CounterUpdate("A1", "e1", true, false, version, lowNode);
+        AttendeeStore.CounterUpdate absent =
+            new AttendeeStore.CounterUpdate("A1", "e1", false, false, version, highNode);
+
+        AttendeeStore first = new AttendeeStore();
+        assertTrue(first.apply(present));
+        assertTrue(first.apply(absent));
+
+        AttendeeStore second = new AttendeeStore();
+        assertTrue(second.apply(absent));
+        assertFalse(second.apply(present));
+
+        assertEquals(first.isPresent("A1"), second.isPresent("A1"));
+        assertFalse(first.isPresent("A1"));
+        assertEquals(first.getAbsentCount("e1"), second.getAbsentCount("e1"));
+    }
+
+    @Test
+    public void writerSurvivesTheJsonRoundTrip() throws JSONException {
+        AttendeeStore store = new AttendeeStore();
+        long nodeId = 0xfedcba9876543210L;
+        store.apply("A1", "e1", true, false, 42, nodeId);
+
+        JSONObject attendee = new JSONObject(store.toJSON().toString()).getJSONObject("A1");
+        AttendeeStore.CounterUpdate parsed = AttendeeStore.CounterUpdate.fromJSON(attendee);
+        assertEquals(42, parsed.version);
+        assertEquals(nodeId, parsed.nodeId);
+
+        // The same update from the same writer is a redelivery
+        assertFalse(store.apply(parsed));
+    }
+
+    @Test
+    public void countsFollowAnAttendeeAcrossEvents() {
+        AttendeeStore store = new AttendeeStore();
+        store.apply("A1", "e1", true, true, 1);
+        store.apply("A2", "e1", false, false, 1);
+        assertEquals(1, store.getPresentCount("e1"));
+        assertEquals(1, store.getAbsentCount("e1"));
+        assertEquals(1, store.getManualCount("e1"));
+
+        store.apply("A1", "e2", true, false, 2);
+        assertEquals(0, store.getPresentCount("e1"));
+        assertEquals(1, store.getTotalCount("e1"));
+        assertEquals(0, store.getManualCount("e1"));
+        assertEquals(1, store.getPresentCount("e2"));
+        assertEquals("e2", store.getEventId("A1"));
+    }
+
+    @Test
+    public void updateWithoutEventKeepsCurrentEvent() {
+        AttendeeStore store = new AttendeeStore();
+        store.apply("A1", "e1", true, false, 1);
+        store.apply("A1", null, false, false, 2);
+        assertEquals("e1", store.getEventId("A1"));
+        assertEquals(1, store.getAbsentCount("e1"));
+    }
+
+    @Test
+    public void manualOnlyCountsPresentAttendees() {
+        AttendeeStore store = new AttendeeStore();
+        store.apply("A1", "e1", false, true, 1);
+        assertEquals(0, store.getManualCount("e1"));
+        store.apply("A1", "e1", true, true, 2);
+        assertEquals(1, store.getManualCount("e1"));
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        AttendeeStore store = new AttendeeStore(16);
+        for (int i = 0; i < 5000; i++) {
+            store.apply("code-" + i, "e" + (i % 20), i % 3 == 0, false, i + 1);
+        }
+        assertEquals(5000, store.size());
+        assertEquals(20, store.getEventCount());
+        int present = 0;
+        for (int e = 0; e < 20; e++) {
+            assertEquals(250, store.getTotalCount("e" + e));
+            present += store.getPresentCount("e" + e);
+        }
+        assertEquals(1667, present);
+        assertTrue(store.isPresent("code-4998"));
+        assertFalse(store.isPresent("code-4999"));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        AttendeeStore store = new AttendeeStore();
+        store.apply("A1", "e1", true, false, 1);
+        store.clear();
+        assertFalse(store.contains("A1"));
+        assertEquals(0, store.size());
+        assertEquals(0, store.getPresentCount("e1"));
+        assertTrue(store.apply("A1", "e1", true, false, 1));
+    }
+
+    @Test
+    public void jsStateKeepsTheVersionAndWriterOfItsEvents() throws JSONException {
+        AttendeeStore.CounterUpdate remote = new AttendeeStore.CounterUpdate(
+            "A1", "e1", true, false, HybridLogicalClock.fromPhysicalTime(1000) + 3, 0x8000000000000001L);
+        JSONObject event = new JSONObject(remote.toEventJSON().toString());
+        AttendeeStore.CounterUpdate parsed = AttendeeStore.CounterUpdate.fromStateJSON(event);
+        assertEquals(remote.version, parsed.version);
+        assertEquals(remote.nodeId, parsed.nodeId);
+    }
+
+    @Test
+    public void jsStateWithoutAWriterLosesTies() throws JSONException {
+        JSONObject state = new JSONObject();
+        state.put("code", "A1");
+        state.put("eventId", "e1");
+        state.put("isPresent", false);
+        state.put("timestamp", 1000);
+        AttendeeStore.CounterUpdate parsed = AttendeeStore.CounterUpdate.fromStateJSON(state);
+        assertEquals(0, parsed.nodeId);
+
+        AttendeeStore store = new AttendeeStore();
+        store.apply("A1", "e1", true, false, parsed.version, 1);
+        assertFalse(store.apply(parsed));
+        assertTrue(store.isPresent("A1"));
+    }
+}
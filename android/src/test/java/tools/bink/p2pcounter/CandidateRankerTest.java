@@ -0,0 +1,74 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class CandidateRankerTest {
+
+    @Test
+    public void keepsTheBestCandidatesBestFirst() {
+        CandidateRanker ranker = new CandidateRanker(2);
+        ranker.update("a", 0.1);
+        ranker.update("b", 0.9);
+        ranker.update("c", 0.5);
+        assertEquals(List.of("b", "c"), ranker.getTop());
+        assertEquals(3, ranker.size());
+    }
+
+    @Test
+    public void outsiderMovesUpWhenAMemberDrops() {
+        CandidateRanker ranker = new CandidateRanker(2);
+        ranker.update("a", 0.1);
+        ranker.update("b", 0.9);
+        ranker.update("c", 0.5);
+        ranker.update("b", 0.0);
+        assertEquals(List.of("c", "a"), ranker.getTop());
+    }
+
+    @Test
+    public void outsiderMovesUpWhenAMemberIsRemoved() {
+        CandidateRanker ranker = new CandidateRanker(2);
+        ranker.update("a", 0.1);
+        ranker.update("b", 0.9);
+        ranker.update("c", 0.5);
+        ranker.remove("b");
+        assertEquals(List.of("c", "a"), ranker.getTop());
+        assertFalse(ranker.contains("b"));
+        assertEquals(0.0, ranker.getScore("b"), 0);
+    }
+
+    @Test
+    public void matchesBruteForceUnderRandomUpdates() {
+        Random random = new Random(7);
+        CandidateRanker ranker = new CandidateRanker(8);
+        Map<String, Double> scores = new HashMap<>();
+
+        for (int step = 0; step < 20000; step++) {
+            String id = "d" + random.nextInt(60);
+            if (random.nextInt(10) == 0) {
+                ranker.remove(id);
+                scores.remove(id);
+            } else {
+                double score = random.nextInt(100) / 100.0; // Plenty of ties
+                ranker.update(id, score);
+                scores.put(id, score);
+            }
+            assertEquals(bruteForceTop(scores, 8), ranker.getTop());
+        }
+    }
+
+    private static List<String> bruteForceTop(Map<String, Double> scores, int k) {
+        List<String> ids = new ArrayList<>(scores.keySet());
+        ids.sort((a, b) -> {
+            int result = Double.compare(scores.get(b), scores.get(a));
+            return result != 0 ? result : b.compareTo(a);
+        });
+        return ids.subList(0, Math.min(k, ids.size()));
+    }
+}
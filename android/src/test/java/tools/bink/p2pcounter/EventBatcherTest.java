@@ -0,0 +1,63 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import com.getcapacitor.JSObject;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+public class EventBatcherTest {
+    private EventBatcher batcher;
+
+    @After
+    public void tearDown() {
+        if (batcher != null) batcher.stop();
+    }
+
+    @Test
+    public void immediateEventFlushesTheBufferFirst() {
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        batcher = new EventBatcher((name, data) -> delivered.add(name));
+        batcher.configure(10000, 100, null);
+        batcher.submit("meshMessage", new JSObject());
+        batcher.submit("meshMessage", new JSObject());
+        assertTrue(delivered.isEmpty());
+
+        batcher.submit("peerConnected", new JSObject());
+        assertEquals(2, delivered.size());
+        assertEquals(EventBatcher.EVENT_BATCH, delivered.get(0));
+        assertEquals("peerConnected", delivered.get(1));
+    }
+
+    @Test
+    public void bufferingDoesNotWaitOnASlowDelivery() throws InterruptedException {
+        CountDownLatch delivering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        batcher = new EventBatcher((name, data) -> {
+            delivering.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        batcher.configure(10000, 100, null);
+
+        Thread slow = new Thread(() -> batcher.submit("peerConnected", new JSObject()));
+        slow.start();
+        assertTrue(delivering.await(1, TimeUnit.SECONDS));
+
+        // The bridge is busy; buffering another event must still return at once
+        Thread producer = new Thread(() -> batcher.submit("meshMessage", new JSObject()));
+        producer.start();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+
+        release.countDown();
+        slow.join(1000);
+    }
+}
@@ -0,0 +1,149 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FlightRecorderTest {
+    private File file;
+
+    private static class Dump {
+        long totalRecorded;
+        long wallClock;
+        final List<String> peers = new ArrayList<>();
+        final List<long[]> records = new ArrayList<>(); // sequence, nanoTime, event, peer, arg
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("flight", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    // Parses the documented format independently of FlightRecorder
+    private Dump read() throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            assertEquals("P2FR", new String(magic, StandardCharsets.US_ASCII));
+            assertEquals(FlightRecorder.VERSION, in.readUnsignedShort());
+            assertEquals(FlightRecorder.RECORD_SIZE, in.readUnsignedShort());
+
+            Dump dump = new Dump();
+            dump.wallClock = in.readLong();
+            in.readLong(); // nanoTime at dump
+            dump.totalRecorded = in.readLong();
+            int peerCount = in.readInt();
+            for (int i = 0; i < peerCount; i++) {
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                dump.peers.add(new String(id, StandardCharsets.UTF_8));
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long sequence = in.readLong();
+                long nanoTime = in.readLong();
+                int event = in.readUnsignedShort();
+                assertEquals(0, in.readUnsignedShort());
+                int peer = in.readInt();
+                long arg = in.readLong();
+                dump.records.add(new long[] {sequence, nanoTime, event, peer, arg});
+            }
+            assertEquals(-1, in.read());
+            return dump;
+        }
+    }
+
+    @Test
+    public void dumpFollowsTheDocumentedFormat() throws IOException {
+        FlightRecorder recorder = new FlightRecorder(16);
+        recorder.record(FlightRecorder.PEER_CONNECTED, "peer-\u00e9", 0);
+        recorder.record(FlightRecorder.FRAME_SENT, "peer-\u00e9", 512);
+        recorder.record(FlightRecorder.TOPOLOGY_CHANGE, 7);
+
+        assertEquals(3, recorder.dump(file));
+        Dump dump = read();
+        assertEquals(3, dump.totalRecorded);
+        assertEquals(List.of("peer-\u00e9"), dump.peers);
+        assertEquals(3, dump.records.size());
+
+        long[] sent = dump.records.get(1);
+        assertEquals(2, sent[0]);
+        assertEquals(FlightRecorder.FRAME_SENT, sent[2]);
+        assertEquals(0, sent[3]);
+        assertEquals(512, sent[4]);
+
+        long[] topology = dump.records.get(2);
+        assertEquals(FlightRecorder.TOPOLOGY_CHANGE, topology[2]);
+        assertEquals(-1, topology[3]);
+        assertEquals(7, topology[4]);
+        assertTrue(topology[1] >= sent[1]);
+    }
+
+    @Test
+    public void wrappedRingKeepsTheNewestRecordsInOrder() throws IOException {
+        FlightRecorder recorder = new FlightRecorder(8);
+        for (int i = 0; i < 20; i++) {
+            recorder.record(FlightRecorder.ENQUEUE, i);
+        }
+        assertEquals(8, recorder.dump(file));
+        Dump dump = read();
+        assertEquals(20, dump.totalRecorded);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(13 + i, dump.records.get(i)[0]);
+            assertEquals(12 + i, dump.records.get(i)[4]);
+        }
+    }
+
+    @Test
+    public void capacityRoundsUpToAPowerOfTwo() throws IOException {
+        FlightRecorder recorder = new FlightRecorder(5);
+        for (int i = 0; i < 20; i++) {
+            recorder.record(FlightRecorder.RETRY, i);
+        }
+        assertEquals(8, recorder.dump(file));
+    }
+
+    @Test
+    public void dumpDuringConcurrentWritesOnlyContainsWholeRecords() throws Exception {
+        FlightRecorder recorder = new FlightRecorder(1024);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final String peer = "p" + t;
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 200000; i++) {
+                    recorder.record(FlightRecorder.FRAME_RECEIVED, peer, id);
+                }
+            });
+            writers[t].start();
+        }
+        recorder.dump(file);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        Dump dump = read();
+        long previous = 0;
+        for (long[] record : dump.records) {
+            assertTrue(record[0] > previous);
+            previous = record[0];
+            assertEquals(FlightRecorder.FRAME_RECEIVED, record[2]);
+            // Each writer interned its own peer and tags records with its id
+            assertEquals(dump.peers.get((int) record[3]), "p" + record[4]);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class HybridLogicalClockTest {
+
+    @Test
+    public void versionsAreStrictlyIncreasing() {
+        HybridLogicalClock clock = new HybridLogicalClock(1);
+        long previous = clock.now();
+        for (int i = 0; i < 10000; i++) {
+            long version = clock.now();
+            assertTrue(version > previous);
+            previous = version;
+        }
+    }
+
+    @Test
+    public void updateOrdersAfterARemoteVersionFromTheFuture() {
+        HybridLogicalClock local = new HybridLogicalClock(1);
+        long remote = HybridLogicalClock.fromPhysicalTime(System.currentTimeMillis() + 5000);
+        long merged = local.update(remote);
+        assertTrue(merged > remote);
+        assertTrue(local.now() > merged);
+    }
+
+    @Test
+    public void updateIgnoresAFarFutureClock() {
+        HybridLogicalClock local = new HybridLogicalClock(1);
+        long now = System.currentTimeMillis();
+        long merged = local.update(HybridLogicalClock.fromPhysicalTime(now + 3600000));
+        assertTrue(HybridLogicalClock.physicalTime(merged) < now + 60000);
+    }
+
+    @Test
+    public void physicalTimeRoundTrips() {
+        long millis = 1700000000000L;
+        assertEquals(millis, HybridLogicalClock.physicalTime(HybridLogicalClock.fromPhysicalTime(millis)));
+    }
+
+    @Test
+    public void nodeIdRoundTripsThroughItsHexForm() {
+        long nodeId = 0xfedcba9876543210L; // Negative as a signed long
+        String formatted = HybridLogicalClock.formatNodeId(nodeId);
+        assertEquals("fedcba9876543210", formatted);
+        assertEquals(nodeId, HybridLogicalClock.parseNodeId(formatted));
+        assertEquals(nodeId, new HybridLogicalClock(nodeId).getNodeId());
+    }
+
+    @Test
+    public void distinctNodesCanShareANodeTag() {
+        // The packed version only keeps 8 bits of the node id, so equal
+        // versions from different devices are expected
+        long first = HybridLogicalClock.newNodeId();
+        long tag = new HybridLogicalClock(first).now() & 0xff;
+        long second;
+        do {
+            second = HybridLogicalClock.newNodeId();
+        } while (second == first || (new HybridLogicalClock(second).now() & 0xff) != tag);
+        assertNotEquals(first, second);
+    }
+}
@@ -0,0 +1,94 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void everyValueFallsInsideItsBucket() {
+        for (long value = 0; value < 200000; value++) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(value + " below bucket " + index, LatencyHistogram.lowerBound(index) <= value);
+            assertTrue(value + " above bucket " + index, value <= LatencyHistogram.upperBound(index));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int index = 1; index < LatencyHistogram.bucketIndex(3600000); index++) {
+            assertEquals(LatencyHistogram.upperBound(index - 1) + 1, LatencyHistogram.lowerBound(index));
+        }
+    }
+
+    @Test
+    public void bucketWidthIsBoundedRelativeToValue() {
+        for (int index = LatencyHistogram.SUB_BUCKETS; index < LatencyHistogram.bucketIndex(3600000); index++) {
+            long lower = LatencyHistogram.lowerBound(index);
+            long width = LatencyHistogram.upperBound(index) - lower + 1;
+            assertTrue(width * LatencyHistogram.SUB_BUCKETS <= lower);
+        }
+    }
+
+    @Test
+    public void percentilesStayWithinOneBucketOfExact() {
+        Random random = new Random(42);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (Math.exp(random.nextGaussian() + 4)); // Long-tailed, median ~55ms
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[] {50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getPercentile(percentile);
+            int index = LatencyHistogram.bucketIndex(exact);
+            assertEquals("p" + percentile, Math.min(LatencyHistogram.upperBound(index), values[values.length - 1]), reported);
+        }
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void mergeEqualsRecordingEverything() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        LatencyHistogram all = new LatencyHistogram();
+        for (long value = 0; value < 5000; value += 7) {
+            (value % 2 == 0 ? a : b).record(value * 13);
+            all.record(value * 13);
+        }
+        a.merge(b);
+        assertEquals(all.getCount(), a.getCount());
+        assertEquals(all.getMean(), a.getMean(), 1e-9);
+        assertEquals(all.getMin(), a.getMin());
+        assertEquals(all.getMax(), a.getMax());
+        for (double percentile = 1; percentile <= 100; percentile++) {
+            assertEquals(all.getPercentile(percentile), a.getPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void valuesAreClampedToRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(3600000, histogram.getMax());
+    }
+
+    @Test
+    public void resetEmptiesTheHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMin());
+    }
+}
@@ -0,0 +1,51 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+
+    @Test
+    public void ackLatencyIsRecordedOncePerPeer() throws JSONException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.onSent("m1", "a", "counter", 100);
+        recorder.onSent("m1", "a", "counter", 150); // Later chunk keeps the first send
+        recorder.onAck("m1", "a", 130);
+        recorder.onAck("m1", "a", 140); // Duplicate ack
+
+        JSONObject sendToAck = recorder.snapshot(false).getJSONObject("sendToAck");
+        assertEquals(1, sendToAck.getJSONObject("all").getLong("count"));
+        assertEquals(30, sendToAck.getJSONObject("peers").getJSONObject("a").getLong("max"));
+    }
+
+    @Test
+    public void originsAndTypesAreCapped() throws JSONException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 0; i < 1000; i++) {
+            recorder.record(LatencyRecorder.Stage.ORIGIN_TO_DELIVERY, "origin-" + i, "type-" + i, 10);
+        }
+
+        JSONObject delivery = recorder.snapshot(false).getJSONObject("originToDelivery");
+        JSONObject peers = delivery.getJSONObject("peers");
+        JSONObject types = delivery.getJSONObject("types");
+        assertTrue(peers.length() <= 257);
+        assertTrue(types.length() <= 65);
+        assertTrue(peers.has("origin-0"));
+        assertTrue(peers.getJSONObject(LatencyRecorder.OTHER).getLong("count") > 0);
+        // Nothing is lost from the totals
+        assertEquals(1000, delivery.getJSONObject("all").getLong("count"));
+    }
+
+    @Test
+    public void resetStartsAFreshWindow() throws JSONException {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record(LatencyRecorder.Stage.ENQUEUE_TO_SEND, "a", "counter", 5);
+        recorder.snapshot(true);
+        JSONObject enqueue = recorder.snapshot(false).getJSONObject("enqueueToSend");
+        assertEquals(0, enqueue.getJSONObject("all").getLong("count"));
+        assertEquals(0, enqueue.getJSONObject("peers").length());
+    }
+}
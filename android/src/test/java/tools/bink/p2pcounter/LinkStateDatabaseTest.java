@@ -0,0 +1,140 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LinkStateDatabaseTest {
+    private final List<JSONObject> sent = new ArrayList<>();
+    private final List<String> linkedPeers = new ArrayList<>();
+    private MeshTopologyManager topology;
+    private LinkStateDatabase database;
+    private long sequence = HybridLogicalClock.fromPhysicalTime(System.currentTimeMillis());
+
+    @Before
+    public void setUp() {
+        topology = new MeshTopologyManager("local", null);
+        topology.stop();
+        database = new LinkStateDatabase("local", topology, new HybridLogicalClock(1),
+            new LinkStateDatabase.Transport() {
+                @Override
+                public void sendLinkState(String peerId, JSONObject lsa) {
+                    sent.add(lsa);
+                }
+
+                @Override
+                public Collection<String> getLinkedPeers() {
+                    return linkedPeers;
+                }
+            });
+        // We are directly linked to a
+        topology.addPeer("local", Collections.singletonList("a"));
+        linkedPeers.add("a");
+        linkedPeers.add("x");
+    }
+
+    @After
+    public void tearDown() {
+        database.stop();
+    }
+
+    private JSONObject lsa(String origin, int age, String... links) throws JSONException {
+        JSONObject lsa = new JSONObject();
+        lsa.put("type", LinkStateDatabase.TYPE_LINK_STATE);
+        lsa.put("origin", origin);
+        lsa.put("sequence", ++sequence);
+        lsa.put("age", age);
+        JSONObject linkMetrics = new JSONObject();
+        for (String link : links) {
+            linkMetrics.put(link, new JSONObject());
+        }
+        lsa.put("links", linkMetrics);
+        return lsa;
+    }
+
+    @Test
+    public void forwardingLeavesTheReceivedLsaUntouched() throws JSONException {
+        JSONObject received = lsa("a", 7, "local", "b");
+        String before = received.toString();
+        database.handleAdvertisement("a", received);
+
+        assertEquals(before, received.toString());
+        assertFalse(sent.isEmpty());
+        for (JSONObject forwarded : sent) {
+            // Age is in seconds, and relaying takes far less than one
+            assertEquals(7, forwarded.getInt("age"));
+        }
+    }
+
+    @Test
+    public void databaseSyncReportsAgeInSecondsWithoutHopIncrements() throws JSONException {
+        database.handleAdvertisement("x", lsa("b", 30, "a"));
+        sent.clear();
+        // A new direct neighbor's first LSA triggers a database sync to it
+        database.handleAdvertisement("a", lsa("a", 0, "local", "b"));
+
+        boolean synced = false;
+        for (JSONObject lsa : sent) {
+            if (lsa.getString("origin").equals("b")) {
+                assertEquals(30, lsa.getInt("age"));
+                synced = true;
+            }
+        }
+        assertTrue(synced);
+    }
+
+    @Test
+    public void oneWayLinksAreNotInstalled() throws JSONException {
+        database.handleAdvertisement("a", lsa("a", 0, "local", "b"));
+        // b hasn't confirmed its side of the link yet
+        assertTrue(topology.getOptimalRoute("b").isEmpty());
+
+        database.handleAdvertisement("a", lsa("b", 0, "a"));
+        assertEquals(Arrays.asList("local", "a", "b"), topology.getOptimalRoute("b"));
+
+        // b withdraws the link; a's stale claim alone doesn't keep it
+        database.handleAdvertisement("a", lsa("b", 0));
+        assertTrue(topology.getOptimalRoute("b").isEmpty());
+    }
+
+    @Test
+    public void linkToUsNeedsOurSideToo() throws JSONException {
+        // c claims a link to us that we don't have
+        database.handleAdvertisement("a", lsa("a", 0, "local", "c"));
+        database.handleAdvertisement("a", lsa("c", 0, "local", "a"));
+        assertEquals(Arrays.asList("local", "a", "c"), topology.getOptimalRoute("c"));
+        assertEquals(Collections.singletonList("a"), connections("c"));
+        assertEquals(Arrays.asList("c", "local"), connections("a"));
+    }
+
+    private List<String> connections(String deviceId) throws JSONException {
+        JSONArray peers = topology.getTopologySnapshot().getJSONObject("connections").getJSONArray(deviceId);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < peers.length(); i++) {
+            ids.add(peers.getString(i));
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void lsaAtMaxAgeFlushesTheOrigin() throws JSONException {
+        database.handleAdvertisement("a", lsa("a", 0, "local", "b"));
+        database.handleAdvertisement("a", lsa("b", 0, "a"));
+        assertEquals(2, database.size());
+
+        database.handleAdvertisement("a", lsa("b", LinkStateDatabase.MAX_AGE, "a"));
+        assertEquals(1, database.size());
+        assertTrue(topology.getOptimalRoute("b").isEmpty());
+    }
+}
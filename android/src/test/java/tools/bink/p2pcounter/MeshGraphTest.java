@@ -0,0 +1,121 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MeshGraphTest {
+
+    @Test
+    public void internKeepsIndexesStable() {
+        MeshGraph graph = new MeshGraph();
+        int a = graph.intern("a");
+        int b = graph.intern("b");
+        assertEquals(a, graph.intern("a"));
+        assertEquals(b, graph.indexOf("b"));
+        assertEquals(-1, graph.indexOf("c"));
+        assertEquals("b", graph.deviceId(b));
+    }
+
+    @Test
+    public void edgesSurviveGrowth() {
+        MeshGraph graph = new MeshGraph();
+        int first = graph.intern("n0");
+        for (int i = 1; i < 200; i++) {
+            int node = graph.intern("n" + i);
+            graph.addEdge(first, node);
+            graph.addEdge(node, first);
+        }
+        assertTrue(graph.capacity() >= 200);
+        assertEquals(398, graph.getEdgeCount());
+        assertEquals(199, graph.degree(first));
+        assertTrue(graph.hasEdge(graph.indexOf("n150"), first));
+    }
+
+    @Test
+    public void addAndRemoveEdgeKeepCount() {
+        MeshGraph graph = new MeshGraph();
+        int a = graph.intern("a");
+        int b = graph.intern("b");
+        assertTrue(graph.addEdge(a, b));
+        assertFalse(graph.addEdge(a, b));
+        assertEquals(1, graph.getEdgeCount());
+        assertEquals(a, graph.nextIncoming(b, 0));
+        assertTrue(graph.removeEdge(a, b));
+        assertFalse(graph.removeEdge(a, b));
+        assertEquals(0, graph.getEdgeCount());
+        assertEquals(-1, graph.nextIncoming(b, 0));
+    }
+
+    @Test
+    public void removeNodeDropsEdgesInBothDirections() {
+        MeshGraph graph = new MeshGraph();
+        int a = graph.intern("a");
+        int b = graph.intern("b");
+        int c = graph.intern("c");
+        graph.addNode(a);
+        graph.addNode(b);
+        graph.addEdge(a, b);
+        graph.addEdge(b, a);
+        graph.addEdge(c, b);
+        graph.addEdge(b, c);
+
+        assertTrue(graph.removeNode(b));
+        assertEquals(0, graph.getEdgeCount());
+        assertEquals(-1, graph.nextNeighbor(a, 0));
+        assertEquals(-1, graph.nextNeighbor(c, 0));
+        assertFalse(graph.contains(b));
+        assertEquals(1, graph.getNodeCount());
+        assertFalse(graph.removeNode(b));
+    }
+
+    @Test
+    public void twoHopExcludesDirectNeighborsAndSelf() {
+        // a - b - c, a - d - c, d - e
+        MeshGraph graph = new MeshGraph();
+        int a = graph.intern("a");
+        int b = graph.intern("b");
+        int c = graph.intern("c");
+        int d = graph.intern("d");
+        int e = graph.intern("e");
+        link(graph, a, b);
+        link(graph, b, c);
+        link(graph, a, d);
+        link(graph, d, c);
+        link(graph, d, e);
+
+        long[] twoHop = graph.ensureSet(null);
+        graph.twoHopInto(a, twoHop);
+        assertTrue(MeshGraph.get(twoHop, c));
+        assertTrue(MeshGraph.get(twoHop, e));
+        assertFalse(MeshGraph.get(twoHop, a));
+        assertFalse(MeshGraph.get(twoHop, b));
+        assertFalse(MeshGraph.get(twoHop, d));
+        assertEquals(2, MeshGraph.cardinality(twoHop));
+
+        // d reaches c and e, only c is in the set
+        assertEquals(2, graph.countNeighborsIn(d, twoHop));
+        assertEquals(1, graph.countNeighborsNotIn(d, twoHop));
+    }
+
+    @Test
+    public void bitsetHelpersCrossWordBoundaries() {
+        long[] set = new long[3];
+        MeshGraph.set(set, 63);
+        MeshGraph.set(set, 64);
+        MeshGraph.set(set, 130);
+        assertEquals(63, MeshGraph.nextSetBit(set, 0));
+        assertEquals(64, MeshGraph.nextSetBit(set, 64));
+        assertEquals(130, MeshGraph.nextSetBit(set, 65));
+        assertEquals(-1, MeshGraph.nextSetBit(set, 131));
+        MeshGraph.clear(set, 64);
+        assertFalse(MeshGraph.get(set, 64));
+        assertFalse(MeshGraph.get(set, 1000));
+        assertEquals(2, MeshGraph.cardinality(set));
+    }
+
+    private static void link(MeshGraph graph, int a, int b) {
+        graph.addEdge(a, b);
+        graph.addEdge(b, a);
+    }
+}
@@ -0,0 +1,181 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MeshTopologyManagerTest {
+    private MeshTopologyManager topology;
+
+    @Before
+    public void setUp() {
+        topology = new MeshTopologyManager("local", null);
+        topology.stop(); // No plugin to deliver topology events to
+    }
+
+    @After
+    public void tearDown() {
+        topology.stop();
+    }
+
+    private void link(String a, String b, double etx) {
+        topology.addPeer(a, Collections.singletonList(b));
+        topology.addPeer(b, Collections.singletonList(a));
+        topology.updateLinkMetrics(a, b, etx, 0);
+    }
+
+    @Test
+    public void cheaperLongerPathWins() {
+        link("local", "a", 1);
+        link("a", "b", 1);
+        link("b", "target", 1);
+        link("local", "target", 10);
+        assertEquals(Arrays.asList("local", "a", "b", "target"), topology.getOptimalRoute("target"));
+        assertEquals("a", topology.getNextHop("target"));
+        assertEquals(3, topology.getRouteDistance("target"));
+        assertEquals(3.0, topology.getRouteCost("target"), 1e-9);
+    }
+
+    @Test
+    public void cheapPathAtTheHopLimitDoesNotHideAShorterOne() {
+        // x is cheapest over a five-link chain, which leaves no hop to reach y;
+        // y is still within reach over the costlier two-link path to x
+        link("local", "c1", 1);
+        link("c1", "c2", 1);
+        link("c2", "c3", 1);
+        link("c3", "c4", 1);
+        link("c4", "x", 1);
+        link("local", "b", 10);
+        link("b", "x", 10);
+        link("x", "y", 1);
+
+        assertEquals(5, topology.getRouteDistance("x"));
+        assertEquals("c1", topology.getNextHop("x"));
+        assertEquals(Arrays.asList("local", "b", "x", "y"), topology.getOptimalRoute("y"));
+        assertEquals(21.0, topology.getRouteCost("y"), 1e-9);
+    }
+
+    @Test
+    public void targetsBeyondTheHopLimitAreUnreachable() {
+        String previous = "local";
+        for (int i = 1; i <= topology.getMaxHops() + 1; i++) {
+            link(previous, "n" + i, 1);
+            previous = "n" + i;
+        }
+        assertEquals(topology.getMaxHops(), topology.getRouteDistance("n" + topology.getMaxHops()));
+        assertNull(topology.getNextHop(previous));
+        assertTrue(topology.getOptimalRoute(previous).isEmpty());
+    }
+
+    @Test
+    public void linkMetricsAreKeptPerLinkAndDroppedWithIt() throws JSONException {
+        link("local", "a", 1);
+        assertTrue(topology.updateLinkMetrics("local", "b", 2.5, 40));
+        assertFalse(topology.updateLinkMetrics("local", "b", 2.55, 40)); // Within the reroute threshold
+
+        JSONObject metrics = topology.getLinkMetrics("local");
+        assertEquals(2, metrics.length());
+        assertEquals(2.55, metrics.getJSONObject("b").getDouble("etx"), 1e-9);
+        assertEquals(40, metrics.getJSONObject("b").getDouble("rtt"), 1e-9);
+
+        topology.removeLink("local", "a");
+        assertFalse(topology.getLinkMetrics("local").has("a"));
+        topology.addPeer("b", Collections.singletonList("local"));
+        topology.removePeer("b");
+        assertEquals(0, topology.getLinkMetrics("local").length());
+        assertEquals(0, topology.getLinkMetrics("unknown").length());
+    }
+
+    @Test
+    public void linkCostsCoverDevicesSeenAfterTheGraphGrows() {
+        // Past the graph's initial capacity, so cost rows must grow with it
+        for (int i = 0; i < 150; i++) {
+            topology.addPeer("local", Collections.singletonList("p" + i));
+            topology.updateLinkMetrics("local", "p" + i, 1 + i, 0);
+        }
+        link("p149", "far", 1);
+        assertEquals(150.0, topology.getRouteCost("p149"), 1e-9);
+        assertEquals(151.0, topology.getRouteCost("far"), 1e-9);
+    }
+
+    @Test
+    public void matchesBruteForceOnRandomMeshes() {
+        Random random = new Random(11);
+        for (int round = 0; round < 30; round++) {
+            topology = new MeshTopologyManager("local", null);
+            topology.stop();
+            int nodes = 9;
+            double[][] cost = new double[nodes][nodes];
+            for (int a = 0; a < nodes; a++) {
+                for (int b = a + 1; b < nodes; b++) {
+                    if (random.nextInt(3) != 0) continue;
+                    double etx = 1 + random.nextInt(8);
+                    link(name(a), name(b), etx);
+                    cost[a][b] = etx;
+                    cost[b][a] = etx;
+                }
+            }
+            for (int target = 1; target < nodes; target++) {
+                double expected = cheapest(cost, 0, target, topology.getMaxHops(), new boolean[nodes]);
+                List<String> route = topology.getOptimalRoute(name(target));
+                if (expected == Double.MAX_VALUE) {
+                    assertTrue(route.isEmpty());
+                    continue;
+                }
+                assertEquals(expected, topology.getRouteCost(name(target)), 1e-9);
+                // The returned path is a real path with that cost
+                assertEquals("local", route.get(0));
+                assertEquals(name(target), route.get(route.size() - 1));
+                assertTrue(route.size() - 1 <= topology.getMaxHops());
+                double walked = 0;
+                for (int i = 1; i < route.size(); i++) {
+                    double hop = cost[index(route.get(i - 1))][index(route.get(i))];
+                    assertTrue(hop > 0);
+                    walked += hop;
+                }
+                assertEquals(expected, walked, 1e-9);
+            }
+        }
+    }
+
+    private static String name(int node) {
+        return node == 0 ? "local" : "d" + node;
+    }
+
+    private static int index(String name) {
+        return name.equals("local") ? 0 : Integer.parseInt(name.substring(1));
+    }
+
+    // Cheapest simple path within the hop budget, by exhaustive search
+    private static double cheapest(double[][] cost, int from, int to, int hops, boolean[] visited) {
+        if (from == to) return 0;
+        if (hops == 0) return Double.MAX_VALUE;
+        visited[from] = true;
+        double best = Double.MAX_VALUE;
+        for (int next = 0; next < cost.length; next++) {
+            if (cost[from][next] == 0 || visited[next]) continue;
+            double rest = cheapest(cost, next, to, hops - 1, visited);
+            if (rest != Double.MAX_VALUE) best = Math.min(best, cost[from][next] + rest);
+        }
+        visited[from] = false;
+        return best;
+    }
+
+    @Test
+    public void reachableDevicesExcludeUsAndIslands() {
+        link("local", "a", 1);
+        link("a", "b", 1);
+        link("x", "y", 1);
+        List<String> reachable = topology.getReachableDevices();
+        Collections.sort(reachable);
+        assertEquals(Arrays.asList("a", "b"), reachable);
+    }
+}
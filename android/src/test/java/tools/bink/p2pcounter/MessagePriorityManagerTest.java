@@ -0,0 +1,123 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessagePriorityManagerTest {
+    private static final long RTO = 50;
+
+    private MeshMetrics metrics;
+    private MessagePriorityManager manager;
+
+    @Before
+    public void setUp() {
+        metrics = new MeshMetrics();
+        manager = new MessagePriorityManager(peerId -> RTO, metrics, new FlightRecorder(64));
+    }
+
+    @After
+    public void tearDown() {
+        manager.stop();
+    }
+
+    private List<MessagePriorityManager.PrioritizedMessage> drain() {
+        List<MessagePriorityManager.PrioritizedMessage> sent = new ArrayList<>();
+        MessagePriorityManager.PrioritizedMessage message;
+        while ((message = manager.getNextMessage()) != null) {
+            sent.add(message);
+        }
+        return sent;
+    }
+
+    @Test
+    public void oneAckPerPeerClearsEveryChunkAndStopsRetries() throws InterruptedException {
+        Set<String> peers = new HashSet<>(Arrays.asList("a", "b"));
+        manager.queueMessage(Arrays.asList("chunk-0", "chunk-1", "chunk-2"),
+            MessagePriorityManager.Priority.HIGH, peers, "wire-1", "counter", false);
+        assertEquals(3, drain().size());
+
+        // Acks carry the wire _messageId, as PeerConnectionManager sends them
+        manager.handleAck("wire-1", "a");
+        manager.handleAck("wire-1", "b");
+        assertFalse(manager.hasPendingMessages());
+
+        Thread.sleep(RTO * 5);
+        assertTrue(drain().isEmpty());
+        assertEquals(0, metrics.counter("queue.retries").sum());
+    }
+
+    @Test
+    public void unackedChunksAreResentOnlyToTheMissingPeer() throws InterruptedException {
+        Set<String> peers = new HashSet<>(Arrays.asList("a", "b"));
+        manager.queueMessage(Arrays.asList("chunk-0", "chunk-1"),
+            MessagePriorityManager.Priority.HIGH, peers, "wire-1", "counter", false);
+        drain();
+        manager.handleAck("wire-1", "a");
+
+        Thread.sleep(RTO * 3);
+        List<MessagePriorityManager.PrioritizedMessage> retried = drain();
+        assertFalse(retried.isEmpty());
+        for (MessagePriorityManager.PrioritizedMessage message : retried) {
+            assertEquals(Collections.singleton("b"), message.targetPeers);
+            assertEquals("wire-1", message.trackingId);
+        }
+
+        manager.handleAck("wire-1", "b");
+        assertFalse(manager.hasPendingMessages());
+        long retries = metrics.counter("queue.retries").sum();
+        Thread.sleep(RTO * 5);
+        assertTrue(drain().isEmpty());
+        assertEquals(retries, metrics.counter("queue.retries").sum());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws InterruptedException {
+        manager.queueMessage(Collections.singletonList("chunk-0"),
+            MessagePriorityManager.Priority.LOW, Collections.singleton("a"), "wire-1", "counter", false);
+        // Timeouts back off linearly: 50, 100, 150, 200ms after the first send
+        Thread.sleep(RTO * 14);
+        assertEquals(4, drain().size()); // Original plus three retries
+        assertFalse(manager.hasPendingMessages());
+    }
+
+    @Test
+    public void untrackedFramesAreNotRetried() throws InterruptedException {
+        manager.queueMessage("frame", MessagePriorityManager.Priority.MEDIUM, Collections.singleton("a"));
+        assertEquals(1, drain().size());
+        assertFalse(manager.hasPendingMessages());
+        Thread.sleep(RTO * 3);
+        assertTrue(drain().isEmpty());
+    }
+
+    @Test
+    public void eachCopyIsResentToItsOwnTarget() throws InterruptedException {
+        // Two route copies of one wire message, as sendOverDisjointRoutes queues them
+        manager.queueMessage(Collections.singletonList("route-1"),
+            MessagePriorityManager.Priority.VERY_HIGH, Collections.singleton("a"), "wire-1", "alert", false);
+        manager.queueMessage(Collections.singletonList("route-2"),
+            MessagePriorityManager.Priority.VERY_HIGH, Collections.singleton("b"), "wire-1", "alert", false);
+        assertEquals(2, drain().size());
+
+        Thread.sleep(RTO * 3);
+        List<MessagePriorityManager.PrioritizedMessage> retried = drain();
+        assertFalse(retried.isEmpty());
+        for (MessagePriorityManager.PrioritizedMessage message : retried) {
+            String expected = message.targetPeers.contains("a") ? "route-1" : "route-2";
+            assertEquals(1, message.targetPeers.size());
+            assertEquals(expected, message.message);
+        }
+
+        manager.handleAck("wire-1", "a");
+        manager.handleAck("wire-1", "b");
+        assertFalse(manager.hasPendingMessages());
+    }
+}
@@ -0,0 +1,65 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class MessageTracerTest {
+
+    private static JSONObject message(String type) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("type", type);
+        message.put("_messageId", "m1");
+        return message;
+    }
+
+    @Test
+    public void samplingIsOffByDefaultAndNeverTracesReports() throws JSONException {
+        MessageTracer tracer = new MessageTracer();
+        assertFalse(tracer.shouldSample(message("counter")));
+        tracer.setSampleRate(1);
+        assertTrue(tracer.shouldSample(message("counter")));
+        assertFalse(tracer.shouldSample(message(MessageTracer.TYPE_REPORT)));
+    }
+
+    @Test
+    public void onlyThePickedReceiverReports() throws JSONException {
+        List<String> receivers = Arrays.asList("a", "b", "c", "d");
+        JSONObject message = message("counter");
+        assertTrue(new MessageTracer().mark(message, "origin", receivers));
+
+        int reporters = 0;
+        for (String receiver : receivers) {
+            if (MessageTracer.isReporter(message, receiver)) reporters++;
+        }
+        assertEquals(1, reporters);
+        assertFalse(MessageTracer.isReporter(message, "origin"));
+    }
+
+    @Test
+    public void reporterIsSpreadOverTheReceivers() throws JSONException {
+        MessageTracer tracer = new MessageTracer();
+        List<String> receivers = Arrays.asList("a", "b", "c");
+        Set<String> picked = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            JSONObject message = message("counter");
+            tracer.mark(message, "origin", receivers);
+            picked.add(message.getString(MessageTracer.FIELD_REPORTER));
+        }
+        assertEquals(new HashSet<>(receivers), picked);
+    }
+
+    @Test
+    public void nothingIsTracedWithoutAReceiver() throws JSONException {
+        JSONObject message = message("counter");
+        assertFalse(new MessageTracer().mark(message, "origin", Collections.<String>emptyList()));
+        assertFalse(MessageTracer.isTraced(message));
+    }
+}
@@ -0,0 +1,68 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class NeighborDigestTest {
+
+    private static List<String> devices(String prefix, int count) {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(prefix + i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void digestIgnoresOrder() {
+        List<String> ids = devices("device-", 20);
+        NeighborDigest digest = NeighborDigest.of(ids);
+        Collections.reverse(ids);
+        assertTrue(digest.sameAs(NeighborDigest.of(ids)));
+    }
+
+    @Test
+    public void digestDetectsAChange() {
+        NeighborDigest before = NeighborDigest.of(Arrays.asList("a", "b", "c"));
+        assertFalse(before.sameAs(NeighborDigest.of(Arrays.asList("a", "b", "d"))));
+        assertFalse(before.sameAs(NeighborDigest.of(Arrays.asList("a", "b"))));
+        assertFalse(before.sameAs(null));
+    }
+
+    @Test
+    public void jsonRoundTripKeepsEverything() throws JSONException {
+        List<String> ids = devices("device-", 30);
+        NeighborDigest digest = NeighborDigest.of(ids);
+        NeighborDigest parsed = NeighborDigest.fromJSON(new JSONObject(digest.toJSON().toString()));
+        assertTrue(digest.sameAs(parsed));
+        assertEquals(30, parsed.getCount());
+        for (String id : ids) {
+            assertTrue(parsed.mightContain(id));
+        }
+    }
+
+    @Test
+    public void falsePositiveRateIsLowForATypicalNeighborhood() {
+        NeighborDigest digest = NeighborDigest.of(devices("member-", 30));
+        int falsePositives = 0;
+        for (String id : devices("stranger-", 10000)) {
+            if (digest.mightContain(id)) falsePositives++;
+        }
+        // 256 bits and 3 hashes at 30 members: about 2% in theory
+        assertTrue("false positives: " + falsePositives, falsePositives < 500);
+    }
+
+    @Test(expected = JSONException.class)
+    public void rejectsATruncatedFilter() throws JSONException {
+        JSONObject json = NeighborDigest.of(Arrays.asList("a")).toJSON();
+        json.put("bloom", json.getString("bloom").substring(2));
+        NeighborDigest.fromJSON(json);
+    }
+}
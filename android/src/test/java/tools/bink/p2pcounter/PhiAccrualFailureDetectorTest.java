@@ -0,0 +1,79 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PhiAccrualFailureDetectorTest {
+    // Mirrors PeerConnectionManager: pings every 5s, checked every second
+    private static final long MIN_MEAN = 6000;
+    private static final long PAUSE = 3000;
+    private static final double SUSPECT_PHI = 3.0;
+    private static final double FAIL_PHI = 8.0;
+
+    // A quiet link answering every probe on time for a while
+    private static long stablePongs(PhiAccrualFailureDetector detector, int count) {
+        long now = 0;
+        for (int i = 0; i < count; i++) {
+            now += MIN_MEAN;
+            detector.heartbeat(now);
+        }
+        return now;
+    }
+
+    @Test
+    public void phiIsZeroBeforeTheFirstFrame() {
+        assertEquals(0.0, new PhiAccrualFailureDetector(MIN_MEAN, PAUSE).phi(100000), 0);
+    }
+
+    @Test
+    public void phiGrowsWithSilence() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(MIN_MEAN, PAUSE);
+        long last = stablePongs(detector, 50);
+        double previous = 0;
+        for (long gap = 1000; gap <= 20000; gap += 1000) {
+            double phi = detector.phi(last + gap);
+            assertTrue(phi >= previous);
+            previous = phi;
+        }
+    }
+
+    @Test
+    public void oneLatePongAfterAStablePeriodLooksLikeAFailureWithoutAPause() {
+        // The false positive: a stable link has a tiny learned deviation, so a
+        // single pong 3.5s late scores far past the disconnect threshold
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(MIN_MEAN, 0);
+        long last = stablePongs(detector, 50);
+        assertTrue(detector.phi(last + 9500) >= FAIL_PHI);
+    }
+
+    @Test
+    public void acceptablePauseAbsorbsOneLatePong() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(MIN_MEAN, PAUSE);
+        long last = stablePongs(detector, 50);
+        assertTrue(detector.phi(last + 9500) < SUSPECT_PHI);
+
+        // The late pong arrives and the link carries on
+        detector.heartbeat(last + 9500);
+        assertTrue(detector.phi(last + 9500 + MIN_MEAN) < 1);
+    }
+
+    @Test
+    public void aSilentPeerStillFailsWithinSeconds() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(MIN_MEAN, PAUSE);
+        long last = stablePongs(detector, 50);
+        assertTrue(detector.phi(last + 13000) >= FAIL_PHI);
+    }
+
+    @Test
+    public void busyLinkUsesTheMinimumMean() {
+        // Frames every 100ms, then the link goes quiet until the next ping
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(MIN_MEAN, PAUSE);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            now += 100;
+            detector.heartbeat(now);
+        }
+        assertTrue(detector.phi(now + MIN_MEAN) < SUSPECT_PHI);
+    }
+}
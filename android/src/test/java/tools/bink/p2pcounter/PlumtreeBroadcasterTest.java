@@ -0,0 +1,146 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PlumtreeBroadcasterTest {
+    private final List<String> payloads = new ArrayList<>(); // "peer:messageId"
+    private final List<String> controls = new ArrayList<>(); // "peer:type:messageId"
+    private PlumtreeBroadcaster plumtree;
+
+    @Before
+    public void setUp() {
+        plumtree = new PlumtreeBroadcaster(transport(), 200);
+    }
+
+    @After
+    public void tearDown() {
+        plumtree.stop();
+    }
+
+    private PlumtreeBroadcaster.Transport transport() {
+        return new PlumtreeBroadcaster.Transport() {
+            @Override
+            public void sendPayload(JSONObject message, Set<String> targetPeers) {
+                for (String peer : targetPeers) {
+                    payloads.add(peer + ":" + message.optString("_messageId"));
+                }
+            }
+
+            @Override
+            public void sendControl(String peerId, JSONObject control) {
+                controls.add(peerId + ":" + control.optString("type") + ":" + control.optString("messageId"));
+            }
+        };
+    }
+
+    private static JSONObject message(String id, String origin) throws JSONException {
+        JSONObject message = new JSONObject();
+        message.put("_messageId", id);
+        message.put("_sourceId", origin);
+        message.put("_tree", true);
+        return message;
+    }
+
+    private static JSONObject control(String type, String id, String origin) throws JSONException {
+        JSONObject control = new JSONObject();
+        control.put("type", type);
+        control.put("messageId", id);
+        control.put("origin", origin);
+        return control;
+    }
+
+    @Test
+    public void duplicateMovesTheLinkToLazyForThatOriginOnly() throws JSONException {
+        List<String> peers = Arrays.asList("a", "b", "c");
+        assertTrue(plumtree.onPayload("a", message("m1", "o1")));
+        assertFalse(plumtree.onPayload("b", message("m1", "o1")));
+        assertTrue(controls.contains("b:" + PlumtreeBroadcaster.TYPE_PRUNE + ":m1"));
+        assertTrue(plumtree.isLazy("o1", "b"));
+        assertFalse(plumtree.isEager("o1", "b"));
+
+        // Next message from o1: payload to c, only an id to b
+        payloads.clear();
+        controls.clear();
+        plumtree.relay(message("m2", "o1"), "a", peers);
+        assertEquals(Arrays.asList("c:m2"), payloads);
+        assertEquals(Arrays.asList("b:" + PlumtreeBroadcaster.TYPE_IHAVE + ":m2"), controls);
+
+        // Another origin's tree still uses the link
+        payloads.clear();
+        plumtree.relay(message("m3", "o2"), "a", peers);
+        assertEquals(new HashSet<>(Arrays.asList("b:m3", "c:m3")), new HashSet<>(payloads));
+    }
+
+    @Test
+    public void iHaveDoesNotChangeTheTree() throws JSONException {
+        plumtree.relay(message("m1", "o1"), null, Arrays.asList("a"));
+        assertTrue(plumtree.isEager("o1", "a"));
+
+        plumtree.handleControl("a", control(PlumtreeBroadcaster.TYPE_IHAVE, "m0", "o1"));
+        assertTrue(plumtree.isEager("o1", "a"));
+        assertFalse(plumtree.isLazy("o1", "a"));
+    }
+
+    @Test
+    public void pruneAndGraftMoveThePeerBetweenDisjointSets() throws JSONException {
+        plumtree.broadcast(message("m1", "me"), Arrays.asList("a"));
+        plumtree.handleControl("a", control(PlumtreeBroadcaster.TYPE_PRUNE, "m1", "me"));
+        assertTrue(plumtree.isLazy("me", "a"));
+        assertFalse(plumtree.isEager("me", "a"));
+
+        payloads.clear();
+        plumtree.handleControl("a", control(PlumtreeBroadcaster.TYPE_GRAFT, "m1", "me"));
+        assertTrue(plumtree.isEager("me", "a"));
+        assertFalse(plumtree.isLazy("me", "a"));
+        assertEquals(Arrays.asList("a:m1"), payloads); // Replayed from the cache
+    }
+
+    @Test
+    public void missingPayloadIsGraftedFromTheAnnouncer() throws Exception {
+        plumtree.handleControl("a", control(PlumtreeBroadcaster.TYPE_IHAVE, "m1", "o1"));
+        Thread.sleep(800);
+        synchronized (plumtree) {
+            assertTrue(controls.contains("a:" + PlumtreeBroadcaster.TYPE_GRAFT + ":m1"));
+        }
+        assertTrue(plumtree.isEager("o1", "a"));
+        assertFalse(plumtree.isLazy("o1", "a"));
+    }
+
+    @Test
+    public void removedPeerLeavesEveryTree() throws JSONException {
+        plumtree.relay(message("m1", "o1"), null, Arrays.asList("a"));
+        plumtree.onPayload("b", message("m2", "o2"));
+        plumtree.onPayload("a", message("m2", "o2"));
+        plumtree.removePeer("a");
+        assertFalse(plumtree.isEager("o1", "a"));
+        assertFalse(plumtree.isLazy("o2", "a"));
+        assertEquals(1, plumtree.getEagerPeerCount());
+        assertEquals(0, plumtree.getLazyPeerCount());
+    }
+
+    @Test
+    public void cacheExpiresByAgeNotCount() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            plumtree.onPayload("a", message("m" + i, "o1"));
+        }
+        // Far more than the old 500-entry cap, all still recognized as duplicates
+        assertTrue(plumtree.hasReceived("m0"));
+        assertFalse(plumtree.onPayload("b", message("m0", "o1")));
+
+        Thread.sleep(300);
+        plumtree.onPayload("a", message("late", "o1"));
+        assertFalse(plumtree.hasReceived("m999"));
+        assertTrue(plumtree.hasReceived("late"));
+    }
+}
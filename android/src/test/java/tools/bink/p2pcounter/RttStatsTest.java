@@ -0,0 +1,64 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RttStatsTest {
+
+    @Test
+    public void firstSampleSeedsTheEstimator() {
+        RttStats stats = new RttStats();
+        assertEquals(1000, stats.getRetransmitTimeout(1000));
+        stats.add(100);
+        assertEquals(100, stats.getSmoothed(), 1e-9);
+        assertEquals(50, stats.getVariation(), 1e-9);
+        assertEquals(300, stats.getRetransmitTimeout(1000)); // 100 + 4 * 50
+    }
+
+    @Test
+    public void followsRfc6298Updates() {
+        RttStats stats = new RttStats();
+        stats.add(100);
+        stats.add(200);
+        // variation = 0.75 * 50 + 0.25 * |100 - 200|, smoothed = 0.875 * 100 + 0.125 * 200
+        assertEquals(62.5, stats.getVariation(), 1e-9);
+        assertEquals(112.5, stats.getSmoothed(), 1e-9);
+        assertEquals(363, stats.getRetransmitTimeout(0));
+    }
+
+    @Test
+    public void retransmitTimeoutIsClamped() {
+        RttStats fast = new RttStats();
+        fast.add(2);
+        assertEquals(200, fast.getRetransmitTimeout(0));
+
+        RttStats slow = new RttStats();
+        slow.add(4000);
+        assertEquals(5000, slow.getRetransmitTimeout(0));
+    }
+
+    @Test
+    public void percentilesUseNearestRank() {
+        RttStats stats = new RttStats();
+        for (int rtt = 1; rtt <= 20; rtt++) {
+            stats.add(rtt * 10);
+        }
+        assertEquals(10, stats.getMin());
+        assertEquals(200, stats.getMax());
+        assertEquals(100, stats.getPercentile(50));
+        assertEquals(190, stats.getPercentile(95));
+        assertEquals(200, stats.getPercentile(99));
+    }
+
+    @Test
+    public void windowKeepsTheLatestSamples() {
+        RttStats stats = new RttStats();
+        for (int rtt = 1; rtt <= 100; rtt++) {
+            stats.add(rtt);
+        }
+        assertEquals(64, stats.getCount());
+        assertEquals(37, stats.getMin());
+        assertEquals(100, stats.getMax());
+    }
+}
@@ -0,0 +1,75 @@
+package tools.bink.p2pcounter;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.After;
+import org.junit.Test;
+
+public class TrickleTimerTest {
+    private TrickleTimer timer;
+
+    @After
+    public void tearDown() {
+        if (timer != null) timer.stop();
+    }
+
+    @Test
+    public void intervalDoublesUpToTheMaximum() throws InterruptedException {
+        List<Long> intervals = new CopyOnWriteArrayList<>();
+        timer = new TrickleTimer(20, 160, 3, intervals::add);
+        timer.start();
+        Thread.sleep(800);
+
+        assertTrue(intervals.size() >= 4);
+        assertEquals(20L, (long) intervals.get(0));
+        for (int i = 1; i < intervals.size(); i++) {
+            assertEquals(Math.min(intervals.get(i - 1) * 2, 160), (long) intervals.get(i));
+        }
+        assertEquals(160, timer.getInterval());
+    }
+
+    @Test
+    public void inconsistencyResetsToTheMinimum() throws InterruptedException {
+        List<Long> intervals = new CopyOnWriteArrayList<>();
+        timer = new TrickleTimer(20, 640, 3, intervals::add);
+        timer.start();
+        Thread.sleep(400);
+        assertTrue(timer.getInterval() > 20);
+
+        timer.hearInconsistent();
+        assertEquals(20, timer.getInterval());
+        int before = intervals.size();
+        Thread.sleep(60);
+        assertTrue(intervals.size() > before);
+        assertEquals(20L, (long) intervals.get(before));
+    }
+
+    @Test
+    public void redundantAnnouncementsSuppressEveryOtherInterval() throws InterruptedException {
+        List<Long> intervals = new CopyOnWriteArrayList<>();
+        timer = new TrickleTimer(100, 100, 1, intervals::add);
+        timer.start();
+
+        // Neighbors keep announcing the same state
+        long end = System.currentTimeMillis() + 1000;
+        while (System.currentTimeMillis() < end) {
+            timer.hearConsistent();
+            Thread.sleep(5);
+        }
+
+        // Ten intervals: at most one suppression in a row, so about five transmissions
+        assertTrue("transmitted " + intervals.size(), intervals.size() >= 3 && intervals.size() <= 7);
+    }
+
+    @Test
+    public void stopCancelsPendingTransmissions() throws InterruptedException {
+        List<Long> intervals = new CopyOnWriteArrayList<>();
+        timer = new TrickleTimer(50, 50, 3, intervals::add);
+        timer.start();
+        timer.stop();
+        Thread.sleep(150);
+        assertTrue(intervals.isEmpty());
+    }
+}
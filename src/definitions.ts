@@ -14,6 +14,10 @@ export interface CounterData {
   eventId: string;
   isManual: boolean;
   timestamp: number;
+  /** Opaque 64-bit version from counter events; pass it back unchanged in sendInitialState */
+  version?: string;
+  /** Hex id of the device that wrote this state, from counter events */
+  node?: string;
 }
 
 export interface InitialState {
@@ -40,6 +44,7 @@ export interface P2PCounterPlugin {
     code: string;
     isPresent: boolean;
     eventId: string;
+    isManual?: boolean;
     priority?: 'HIGH' | 'MEDIUM' | 'LOW';
     retryPolicy?: {
       maxAttempts: number;
@@ -47,6 +52,28 @@ export interface P2PCounterPlugin {
       timeout: number;
     };
   }): Promise<void>;
+  sendCounters(options: {
+    counters: Array<{
+      code: string;
+      isPresent: boolean;
+      eventId: string;
+      isManual?: boolean;
+    }>;
+    priority?: 'HIGH' | 'MEDIUM' | 'LOW';
+  }): Promise<void>;
+  /** Sends an application message to one device (routed) or to the whole mesh */
+  sendMeshMessage(options: {
+    message: Record<string, unknown>;
+    targetId?: string;
+    priority?: 'VERY_HIGH' | 'HIGH' | 'MEDIUM' | 'LOW';
+  }): Promise<void>;
+  getCounts(options?: { eventId?: string }): Promise<{
+    eventId?: string;
+    counts?: EventCounts | null;
+    events?: Record<string, EventCounts>;
+  }>;
+  startCountsUpdates(options?: { throttleMs?: number }): Promise<void>;
+  stopCountsUpdates(): Promise<void>;
   sendInitialState(options: { deviceId: string, state: Record<string, CounterData> }): Promise<void>;
   disconnectPeer(options: { deviceId: string }): Promise<void>;
   startKeepalive(): Promise<void>;
@@ -55,24 +82,74 @@ export interface P2PCounterPlugin {
     averageLatency: number;
     packetLoss: number;
     keepaliveInterval: number;
+    peerCount?: number;
+    peers?: Record<string, PeerLinkStats>;
   }>;
+  /** Latency histograms since the last reset; pass reset to start a new window */
+  getLatencyHistograms(options?: { reset?: boolean }): Promise<LatencyHistograms>;
+  /** Cumulative pipeline counters, current gauges and per-peer traffic */
+  getMetrics(): Promise<MeshMetrics>;
+  /** Per-hop breakdowns of sampled messages this device originated; pass clear to empty the store */
+  getTraces(options?: { clear?: boolean }): Promise<{ traces: MessageTrace[] }>;
+  /**
+   * Writes the flight recorder's recent mesh events to app storage; read the
+   * file back with decodeFlightRecorder
+   */
+  dumpFlightRecorder(options?: { fileName?: string }): Promise<{ path: string; records: number; bytes: number }>;
   configureMesh(options: {
     optimizationInterval: number;
     targetRedundancy: number;
     loadBalancing: boolean;
     adaptiveRouting: boolean;
+    /**
+     * 'flood' sends every message over every link; 'tree' uses epidemic broadcast trees;
+     * 'mpr' floods but only multipoint relays chosen by the sender rebroadcast
+     */
+    broadcastMode?: 'flood' | 'tree' | 'mpr';
+    /** Node-disjoint routes used for routed messages of each priority; VERY_HIGH defaults to 2 */
+    unicastRoutes?: Partial<Record<'VERY_HIGH' | 'HIGH' | 'MEDIUM' | 'LOW', number>>;
+    /** Window over which topology changes are coalesced into one topologyChange event (default 200ms) */
+    topologyEventIntervalMs?: number;
+    /** Phi-accrual level at which a peer is suspected and routed around (default 3) */
+    suspectPhi?: number;
+    /** Phi-accrual level at which a peer is sent a direct probe and disconnected if it stays unanswered (default 8) */
+    failPhi?: number;
+    /** Emit a metrics event with a getMetrics snapshot this often; 0 stops it (default off) */
+    metricsIntervalMs?: number;
+    /** Share of originated messages traced hop by hop, 0 (default, off) to 1 */
+    traceSampleRate?: number;
+    /**
+     * Buffer events for this long and deliver them together as one eventBatch
+     * event; 0 (default) delivers each event on its own
+     */
+    eventBatchIntervalMs?: number;
+    /** Buffered events that trigger an early flush (default 200) */
+    eventBatchMaxSize?: number;
+    /**
+     * Event types that bypass batching; defaults to peerConnected, peerTimeout
+     * and the NFC events
+     */
+    immediateEvents?: string[];
   }): Promise<void>;
+  /** Full topology snapshot; apply topologyChange events with a higher version on top of it */
+  getTopology(): Promise<TopologySnapshot>;
   
   // Event Listeners with platform-specific handling
   addListener(eventName: 'nfcDiscovered', listenerFunc: (event: NFCDiscoveredEvent) => void): PluginListenerHandle;
   addListener(eventName: 'nfcError', listenerFunc: (event: NFCErrorEvent) => void): PluginListenerHandle;
   addListener(eventName: 'nfcPushComplete', listenerFunc: (event: NFCPushCompleteEvent) => void): PluginListenerHandle;
   addListener(eventName: 'counterReceived', listenerFunc: (event: CounterEvent) => void): PluginListenerHandle;
+  addListener(eventName: 'countsChanged', listenerFunc: (event: CountsChangedEvent) => void): PluginListenerHandle;
   addListener(eventName: 'peerConnected', listenerFunc: (event: PeerEvent) => void): PluginListenerHandle;
   addListener(eventName: 'peerTimeout', listenerFunc: (event: PeerEvent) => void): PluginListenerHandle;
+  addListener(eventName: 'peerSuspected', listenerFunc: (event: PeerSuspicionEvent) => void): PluginListenerHandle;
   addListener(eventName: 'meshDiscovery', listenerFunc: (event: MeshDiscoveryEvent) => void): PluginListenerHandle;
   addListener(eventName: 'meshMessage', listenerFunc: (event: MessageEvent) => void): PluginListenerHandle;
   addListener(eventName: 'messageStatus', listenerFunc: (event: MessageStatusEvent) => void): PluginListenerHandle;
+  addListener(eventName: 'topologyChange', listenerFunc: (event: TopologyChangeEvent) => void): PluginListenerHandle;
+  addListener(eventName: 'metrics', listenerFunc: (event: MeshMetrics) => void): PluginListenerHandle;
+  addListener(eventName: 'messageTrace', listenerFunc: (event: MessageTrace) => void): PluginListenerHandle;
+  addListener(eventName: 'eventBatch', listenerFunc: (event: EventBatch) => void): PluginListenerHandle;
   addListener(eventName: 'meshHealth', listenerFunc: (event: { 
     redundancy: number;
     avgHopCount: number;
@@ -109,6 +186,115 @@ export interface NetworkStats {
   keepaliveInterval: number;
   messageCount?: number;
   networkStrength?: number;
+  peerCount?: number;
+  peers?: Record<string, PeerLinkStats>;
+}
+
+/** Keepalive round-trip statistics of one direct link, in ms */
+export interface PeerLinkStats {
+  /** Smoothed RTT */
+  rtt: number;
+  rttVariation: number;
+  minRtt: number;
+  maxRtt: number;
+  p50: number;
+  p95: number;
+  p99: number;
+  /** Smoothed share of unanswered probes, 0..1 */
+  packetLoss: number;
+  retransmitTimeout: number;
+}
+
+/**
+ * Log-linear latency histogram in ms. Non-empty buckets are flattened as
+ * [index, count, ...]; index i < subBuckets holds exactly i, otherwise its lower
+ * bound is (i % subBuckets + subBuckets) << (floor(i / subBuckets) - 1). Histograms
+ * merge by adding counts of equal indexes.
+ */
+export interface LatencyHistogram {
+  count: number;
+  min: number;
+  max: number;
+  mean: number;
+  p50: number;
+  p90: number;
+  p99: number;
+  p999: number;
+  buckets: number[];
+}
+
+export interface StageLatencies {
+  all: LatencyHistogram;
+  /** Target peer, next hop or origin, depending on the stage */
+  peers: Record<string, LatencyHistogram>;
+  /** By message type */
+  types: Record<string, LatencyHistogram>;
+}
+
+export interface LatencyHistograms {
+  subBuckets: number;
+  /** Time in the outgoing priority queue */
+  enqueueToSend: StageLatencies;
+  /** First send until the next hop acknowledged */
+  sendToAck: StageLatencies;
+  /** Origin timestamp until local delivery; includes clock offset between devices */
+  originToDelivery: StageLatencies;
+}
+
+export interface PeerTraffic {
+  bytesIn: number;
+  bytesOut: number;
+  framesIn: number;
+  framesOut: number;
+}
+
+/**
+ * Counters are cumulative since the plugin loaded, e.g. chunks.in/out,
+ * compression.inputBytes/outputBytes, dedup.hits, queue.retries,
+ * chunks.evicted, relay.flood/tree/unicast and bridge.<eventName>.
+ * Gauges are read at snapshot time, e.g. queue.depth.<PRIORITY>.
+ */
+export interface MeshMetrics {
+  timestamp: number;
+  counters: Record<string, number>;
+  gauges: Record<string, number>;
+  /** Traffic per direct link, by device id */
+  peers: Record<string, PeerTraffic>;
+  /** Compressed over uncompressed size of the messages that were compressed */
+  compressionRatio: number;
+}
+
+export interface TraceHop {
+  node: string;
+  stage: 'origin' | 'enqueue' | 'send' | 'receive' | 'relay' | 'deliver';
+  /** Wall clock of the recording node in ms */
+  timestamp: number;
+  /** Gap to the previous record; across nodes this includes their clock offset */
+  elapsed: number;
+}
+
+/**
+ * Path of one sampled message to one receiver, reported back to the origin.
+ * Only one receiver reports per message: the target of a routed message, or
+ * a random reachable device for a broadcast.
+ */
+export interface MessageTrace {
+  messageId: string;
+  type: string;
+  reportedBy: string;
+  hops: TraceHop[];
+  /** Last record minus first */
+  total: number;
+}
+
+/**
+ * Events buffered while batching is enabled, in arrival order per type.
+ * countsChanged and metrics keep only their latest event per batch.
+ */
+export interface EventBatch {
+  count: number;
+  /** Event data by event type, e.g. events.meshMessage is MessageEvent[] */
+  events: Record<string, unknown[]>;
 }
 
 export interface NFCDiscoveredEvent {
@@ -130,12 +316,56 @@ export interface PeerEvent {
   isInitiator?: boolean;
 }
 
+export interface PeerSuspicionEvent {
+  deviceId: string;
+  /** false once the peer is heard from again */
+  suspected: boolean;
+  /** Failure detector suspicion level when the state changed */
+  phi: number;
+}
+
 export interface CounterEvent {
-  type?: 'initial_state';
+  type?: 'initial_state' | 'batch';
+  deviceId?: string;
   code?: string;
   isPresent?: boolean;
+  eventId?: string;
+  isManual?: boolean;
   timestamp?: number;
   attendees?: Record<string, Attendee>;
+  counters?: CounterData[];
+}
+
+export interface EventCounts {
+  present: number;
+  absent: number;
+  /** Attendees that are present and were entered manually */
+  manual: number;
+  total: number;
+}
+
+export interface CountsChangedEvent {
+  events: Record<string, EventCounts>;
+}
+
+export interface TopologySnapshot {
+  version: number;
+  localDeviceId: string;
+  connections: Record<string, string[]>;
+  hopCounts: Record<string, number>;
+}
+
+/** Changes since the snapshot or event at baseVersion */
+export interface TopologyChangeEvent {
+  baseVersion: number;
+  version: number;
+  /** [from, to] pairs */
+  addedEdges: [string, string][];
+  removedEdges: [string, string][];
+  /** New or changed hop counts */
+  hopCounts: Record<string, number>;
+  /** Devices that no longer have a hop count */
+  unreachable: string[];
 }
 
 export interface MeshDiscoveryEvent {
@@ -159,8 +389,14 @@ export interface P2PCounterPluginEvents {
   nfcPushComplete: NFCPushCompleteEvent;
   peerConnected: PeerEvent;
   peerTimeout: PeerEvent;
+  peerSuspected: PeerSuspicionEvent;
   counterReceived: CounterEvent;
+  countsChanged: CountsChangedEvent;
+  topologyChange: TopologyChangeEvent;
   meshDiscovery: MeshDiscoveryEvent;
   meshMessage: MessageEvent;
   messageStatus: MessageStatusEvent;
+  metrics: MeshMetrics;
+  messageTrace: MessageTrace;
+  eventBatch: EventBatch;
 }
\ No newline at end of file
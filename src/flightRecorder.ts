@@ -0,0 +1,130 @@
+/**
+ * Offline decoder for files written by dumpFlightRecorder. Works in Node
+ * (pass the Buffer from fs.readFileSync) or a browser.
+ *
+ * Format, big-endian:
+ *   magic "P2FR", u16 version (1), u16 record size (32)
+ *   i64 wall clock ms and i64 monotonic ns at dump time
+ *   i64 events ever recorded, u32 peer count, per peer u16 length + UTF-8 id
+ *   u32 record count, then records oldest first:
+ *     i64 sequence, i64 monotonic ns, u16 event, u16 reserved, i32 peer index (-1 none), i64 arg
+ */
+
+export type FlightRecorderEventType =
+  | 'frameSent'
+  | 'frameReceived'
+  | 'enqueue'
+  | 'dequeue'
+  | 'retry'
+  | 'peerTimeout'
+  | 'topologyChange'
+  | 'peerConnected'
+  | 'peerSuspected'
+  | 'unknown';
+
+const EVENT_TYPES: Record<number, FlightRecorderEventType> = {
+  1: 'frameSent',
+  2: 'frameReceived',
+  3: 'enqueue',
+  4: 'dequeue',
+  5: 'retry',
+  6: 'peerTimeout',
+  7: 'topologyChange',
+  8: 'peerConnected',
+  9: 'peerSuspected',
+};
+
+export interface FlightRecorderEvent {
+  sequence: number;
+  type: FlightRecorderEventType;
+  /** Raw event code, useful when type is 'unknown' */
+  code: number;
+  /** Wall clock ms, derived from the monotonic timestamp */
+  timestamp: number;
+  /** Nanoseconds before the dump */
+  nanosBeforeDump: number;
+  peer?: string;
+  /**
+   * frameSent/frameReceived: bytes; enqueue: priority (0 = VERY_HIGH);
+   * dequeue: ms queued; retry: retry count; topologyChange: version;
+   * peerSuspected: 1 suspected, 0 cleared
+   */
+  arg: number;
+}
+
+export interface FlightRecording {
+  version: number;
+  dumpedAt: number;
+  /** Events ever recorded; more than events.length once the ring has wrapped */
+  totalRecorded: number;
+  peers: string[];
+  events: FlightRecorderEvent[];
+}
+
+export function decodeFlightRecorder(data: ArrayBuffer | Uint8Array): FlightRecording {
+  const bytes = data instanceof Uint8Array ? data : new Uint8Array(data);
+  const view = new DataView(bytes.buffer, bytes.byteOffset, bytes.byteLength);
+  let offset = 0;
+
+  // i64 as a double; exact below 2^53, which covers ms, ns uptimes and counts
+  const readInt64 = (): number => {
+    const high = view.getInt32(offset);
+    const low = view.getUint32(offset + 4);
+    offset += 8;
+    return high * 4294967296 + low;
+  };
+
+  const magic = String.fromCharCode(bytes[0], bytes[1], bytes[2], bytes[3]);
+  if (magic !== 'P2FR') {
+    throw new Error('Not a flight recorder dump');
+  }
+  offset = 4;
+  const version = view.getUint16(offset);
+  const recordSize = view.getUint16(offset + 2);
+  offset += 4;
+  if (version !== 1) {
+    throw new Error(`Unsupported flight recorder version ${version}`);
+  }
+
+  const dumpedAt = readInt64();
+  const dumpNanos = readInt64();
+  const totalRecorded = readInt64();
+
+  const decoder = new TextDecoder('utf-8');
+  const peers: string[] = [];
+  const peerCount = view.getUint32(offset);
+  offset += 4;
+  for (let i = 0; i < peerCount; i++) {
+    const length = view.getUint16(offset);
+    offset += 2;
+    peers.push(decoder.decode(bytes.subarray(offset, offset + length)));
+    offset += length;
+  }
+
+  const events: FlightRecorderEvent[] = [];
+  const recordCount = view.getUint32(offset);
+  offset += 4;
+  for (let i = 0; i < recordCount; i++) {
+    const start = offset;
+    const sequence = readInt64();
+    const nanos = readInt64();
+    const code = view.getUint16(offset);
+    const peerIndex = view.getInt32(offset + 4);
+    offset += 8;
+    const arg = readInt64();
+    offset = start + recordSize;
+
+    const nanosBeforeDump = dumpNanos - nanos;
+    events.push({
+      sequence,
+      type: EVENT_TYPES[code] ?? 'unknown',
+      code,
+      timestamp: dumpedAt - nanosBeforeDump / 1e6,
+      nanosBeforeDump,
+      peer: peerIndex >= 0 ? peers[peerIndex] : undefined,
+      arg,
+    });
+  }
+
+  return { version, dumpedAt, totalRecorded, peers, events };
+}
@@ -6,14 +6,35 @@ export type {
   P2PCounterPlugin,
   Attendee,
   NetworkStats,
+  PeerLinkStats,
+  LatencyHistogram,
+  StageLatencies,
+  LatencyHistograms,
+  PeerTraffic,
+  MeshMetrics,
+  TraceHop,
+  MessageTrace,
+  EventBatch,
   NFCDiscoveredEvent,
   NFCErrorEvent,
   NFCPushCompleteEvent,
   PeerEvent,
+  PeerSuspicionEvent,
   CounterEvent,
+  EventCounts,
+  CountsChangedEvent,
+  TopologySnapshot,
+  TopologyChangeEvent,
   MeshDiscoveryEvent,
   MessageEvent,
   MessageStatusEvent
 } from './definitions';
 
+export { decodeFlightRecorder } from './flightRecorder';
+export type {
+  FlightRecorderEventType,
+  FlightRecorderEvent,
+  FlightRecording
+} from './flightRecorder';
+
 export const P2PCounter = registerPlugin<P2PCounterPlugin>('P2PCounter');
\ No newline at end of file
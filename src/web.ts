@@ -85,6 +85,30 @@ export class P2PCounterWeb extends WebPlugin implements P2PCounterPlugin {
     throw new Error('QR scanning not supported in web implementation');
   }
 
+  async sendCounters(): Promise<void> {
+    throw new Error('Method not implemented.');
+  }
+
+  async sendMeshMessage(): Promise<void> {
+    throw new Error('Method not implemented.');
+  }
+
+  async getTopology(): Promise<any> {
+    throw new Error('Method not implemented.');
+  }
+
+  async getCounts(): Promise<any> {
+    throw new Error('Method not implemented.');
+  }
+
+  async startCountsUpdates(): Promise<void> {
+    throw new Error('Method not implemented.');
+  }
+
+  async stopCountsUpdates(): Promise<void> {
+    throw new Error('Method not implemented.');
+  }
+
   async sendInitialState(): Promise<void> {
     throw new Error('Method not implemented.');
   }
@@ -105,6 +129,22 @@ export class P2PCounterWeb extends WebPlugin implements P2PCounterPlugin {
     throw new Error('Method not implemented.');
   }
 
+  async getLatencyHistograms(): Promise<any> {
+    throw new Error('Method not implemented.');
+  }
+
+  async getMetrics(): Promise<any> {
+    throw new Error('Method not implemented.');
+  }
+
+  async getTraces(): Promise<any> {
+    throw new Error('Method not implemented.');
+  }
+
+  async dumpFlightRecorder(): Promise<any> {
+    throw new Error('Method not implemented.');
+  }
+
   async configureMesh(): Promise<void> {
     throw new Error('Method not implemented.');
   }